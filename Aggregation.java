@@ -0,0 +1,159 @@
+import java.util.*;
+
+/**
+ * count/sum/min/max/avg over rows, optionally grouped by columns, as sent to
+ * /api/aggregate. Rows are fed one at a time, so a whole table is
+ * aggregated in a single pass without keeping any of its rows.
+ *
+ * sum and avg use the numeric cells and skip the rest; min and max compare
+ * cells in value order (see {@link RowQuery.Value}); count of a column
+ * counts its non-empty cells and count without a column counts rows.
+ */
+public class Aggregation {
+
+    enum Fn {
+        COUNT, SUM, MIN, MAX, AVG;
+
+        static Fn parse(String name) {
+            if (name == null) throw new IllegalArgumentException("Missing aggregate fn");
+            try {
+                return valueOf(name.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown aggregate: " + name);
+            }
+        }
+    }
+
+    static class Measure {
+        final Fn fn;
+        final int column;   // -1 for count of rows
+        final String name;
+
+        Measure(Fn fn, int column, String name) {
+            if (column < 0 && fn != Fn.COUNT) throw new IllegalArgumentException(fn.name().toLowerCase() + " needs a column");
+            this.fn = fn;
+            this.column = column;
+            this.name = name;
+        }
+    }
+
+    static class Accumulator {
+        long count;
+        double sum;
+        long numbers;
+        RowQuery.Value min;
+        RowQuery.Value max;
+
+        void add(Measure m, String[] row) {
+            if (m.column < 0) {
+                count++;
+                return;
+            }
+            String cell = m.column < row.length ? row[m.column] : null;
+            if (cell == null || cell.isEmpty()) return;
+            count++;
+            RowQuery.Value value = RowQuery.Value.of(cell);
+            if (value.isNumber()) {
+                sum += value.number;
+                numbers++;
+            }
+            if (min == null || value.compareTo(min) < 0) min = value;
+            if (max == null || value.compareTo(max) > 0) max = value;
+        }
+
+        void merge(Accumulator other) {
+            count += other.count;
+            sum += other.sum;
+            numbers += other.numbers;
+            if (other.min != null && (min == null || other.min.compareTo(min) < 0)) min = other.min;
+            if (other.max != null && (max == null || other.max.compareTo(max) > 0)) max = other.max;
+        }
+
+        Object result(Fn fn) {
+            switch (fn) {
+                case COUNT: return count;
+                case SUM: return sum;
+                case AVG: return numbers > 0 ? sum / numbers : null;
+                case MIN: return min != null ? min.text : null;
+                default: return max != null ? max.text : null;
+            }
+        }
+    }
+
+    final List<Measure> measures;
+    final int[] groupBy;
+    private final Map<List<String>, Accumulator[]> groups = new HashMap<>();
+
+    Aggregation(List<Measure> measures, int[] groupBy) {
+        this.measures = measures;
+        this.groupBy = groupBy;
+    }
+
+    void add(String[] row) {
+        Accumulator[] acc = group(groupKey(row));
+        for (int i = 0; i < acc.length; i++) acc[i].add(measures.get(i), row);
+    }
+
+    /** An empty aggregation with the same measures, for one range of a parallel scan. */
+    Aggregation emptyCopy() {
+        return new Aggregation(measures, groupBy);
+    }
+
+    /** Adds the groups of {@code other} into this one and returns this. */
+    Aggregation merge(Aggregation other) {
+        for (Map.Entry<List<String>, Accumulator[]> e : other.groups.entrySet()) {
+            Accumulator[] acc = group(e.getKey());
+            for (int i = 0; i < acc.length; i++) acc[i].merge(e.getValue()[i]);
+        }
+        return this;
+    }
+
+    /** The accumulators of one group, created empty on first use. */
+    Accumulator[] group(List<String> key) {
+        return groups.computeIfAbsent(key, k -> {
+            Accumulator[] acc = new Accumulator[measures.size()];
+            for (int i = 0; i < acc.length; i++) acc[i] = new Accumulator();
+            return acc;
+        });
+    }
+
+    /**
+     * One row per group, ordered by the group values: the group values
+     * followed by each measure's result (Long, Double, String or null).
+     * Without grouping there is always exactly one row.
+     */
+    List<Object[]> results() {
+        if (groupBy.length == 0) group(List.of());
+        List<List<String>> keys = new ArrayList<>(groups.keySet());
+        keys.sort((a, b) -> {
+            for (int i = 0; i < a.size(); i++) {
+                int c = RowQuery.Value.of(a.get(i)).compareTo(RowQuery.Value.of(b.get(i)));
+                if (c != 0) return c;
+            }
+            return 0;
+        });
+        List<Object[]> results = new ArrayList<>(keys.size());
+        for (List<String> key : keys) {
+            Accumulator[] acc = groups.get(key);
+            Object[] result = new Object[key.size() + acc.length];
+            for (int i = 0; i < key.size(); i++) result[i] = key.get(i);
+            for (int i = 0; i < acc.length; i++) result[key.size() + i] = acc[i].result(measures.get(i).fn);
+            results.add(result);
+        }
+        return results;
+    }
+
+    boolean countsOnly() {
+        for (Measure m : measures) {
+            if (m.fn != Fn.COUNT || m.column >= 0) return false;
+        }
+        return true;
+    }
+
+    private List<String> groupKey(String[] row) {
+        if (groupBy.length == 0) return List.of();
+        String[] key = new String[groupBy.length];
+        for (int i = 0; i < key.length; i++) key[i] = groupBy[i] < row.length ? row[groupBy[i]] : null;
+        return Arrays.asList(key);
+    }
+}
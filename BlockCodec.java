@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression for the blocks of database files. Every block says which
+ * codec packed it, so a file can mix codecs and blocks written before a
+ * codec change stay readable. A new codec needs an unused id and an entry
+ * in {@link #forId}.
+ */
+public interface BlockCodec {
+    /** Id stored with every block; 0 means stored as is. */
+    int id();
+
+    String name();
+
+    /**
+     * Packs {@code length} bytes of {@code data}, or returns null if that
+     * wouldn't make them smaller.
+     */
+    byte[] encode(byte[] data, int length);
+
+    /** Unpacks a block that {@link #encode} packed to {@code rawLength} bytes. */
+    ByteBuffer decode(ByteBuffer packed, int rawLength) throws IOException;
+
+    /**
+     * The codec for a name and level from the configuration: "deflate"
+     * (levels 1-9) or "none".
+     */
+    static BlockCodec named(String name, int level) {
+        switch (name) {
+            case "none":
+                return NONE;
+            case "deflate":
+                return new DeflateCodec(level);
+            default:
+                throw new IllegalArgumentException("Unknown compression '" + name + "', expected none or deflate");
+        }
+    }
+
+    /** The codec that reads blocks stored with {@code id}. */
+    static BlockCodec forId(int id) throws IOException {
+        switch (id) {
+            case 0:
+                return NONE;
+            case DeflateCodec.ID:
+                return DeflateCodec.READER;
+            default:
+                throw new IOException("Unknown block codec " + id);
+        }
+    }
+
+    BlockCodec NONE = new BlockCodec() {
+        @Override
+        public int id() {
+            return 0;
+        }
+
+        @Override
+        public String name() {
+            return "none";
+        }
+
+        @Override
+        public byte[] encode(byte[] data, int length) {
+            return null;
+        }
+
+        @Override
+        public ByteBuffer decode(ByteBuffer packed, int rawLength) {
+            return packed;
+        }
+    };
+
+    /**
+     * Raw deflate (no zlib header). Deflaters and inflaters hold native
+     * memory and are costly to create, so every thread keeps one of each
+     * and resets it between blocks.
+     */
+    class DeflateCodec implements BlockCodec {
+        static final int ID = 1;
+        static final DeflateCodec READER = new DeflateCodec(Deflater.DEFAULT_COMPRESSION);
+        private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+        private final int level;
+        private final ThreadLocal<Deflater> deflaters;
+
+        DeflateCodec(int level) {
+            if (level != Deflater.DEFAULT_COMPRESSION && (level < 1 || level > 9)) {
+                throw new IllegalArgumentException("Deflate level must be 1-9, got " + level);
+            }
+            this.level = level;
+            this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+        }
+
+        @Override
+        public int id() {
+            return ID;
+        }
+
+        @Override
+        public String name() {
+            return level == Deflater.DEFAULT_COMPRESSION ? "deflate" : "deflate-" + level;
+        }
+
+        @Override
+        public byte[] encode(byte[] data, int length) {
+            Deflater deflater = deflaters.get();
+            deflater.reset();
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            // Anything that doesn't fit in fewer bytes than the input isn't worth keeping
+            byte[] out = new byte[length];
+            int packed = 0;
+            while (!deflater.finished() && packed < out.length) {
+                packed += deflater.deflate(out, packed, out.length - packed);
+            }
+            if (!deflater.finished() || packed >= length) return null;
+            byte[] result = new byte[packed];
+            System.arraycopy(out, 0, result, 0, packed);
+            return result;
+        }
+
+        @Override
+        public ByteBuffer decode(ByteBuffer packed, int rawLength) throws IOException {
+            Inflater inflater = inflaters.get();
+            inflater.reset();
+            inflater.setInput(packed.duplicate());
+            ByteBuffer out = ByteBuffer.allocate(rawLength);
+            try {
+                while (out.hasRemaining() && !inflater.finished()) {
+                    if (inflater.inflate(out) == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed block", e);
+            }
+            if (out.hasRemaining()) throw new IOException("Compressed block is shorter than expected");
+            return out.flip();
+        }
+    }
+}
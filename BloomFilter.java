@@ -0,0 +1,88 @@
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bloom filter over the values of one column. "No" is definite, so a
+ * lookup for a value the table doesn't have can usually answer without
+ * touching any rows; "maybe" still needs a scan.
+ *
+ * Values can't be removed, so after deletes the filter only gets less
+ * useful, never wrong. The owner rebuilds it when deletes pile up or more
+ * values were added than it was sized for.
+ */
+public class BloomFilter {
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    private final long[] bits;
+    private final int bitCount;
+    private final int hashes;
+    private final int capacity;
+    private int added;
+
+    /** Sized for {@code capacity} values at a 1% false-positive rate. */
+    BloomFilter(int capacity) {
+        this.capacity = Math.max(capacity, 64);
+        long m = (long) Math.ceil(-this.capacity * Math.log(FALSE_POSITIVE_RATE) / (Math.log(2) * Math.log(2)));
+        this.bitCount = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, m));
+        this.bits = new long[(bitCount + 63) / 64];
+        this.hashes = Math.max(1, (int) Math.round((double) bitCount / this.capacity * Math.log(2)));
+    }
+
+    void add(String value) {
+        if (value == null) return;
+        long h = hash(value);
+        int h1 = (int) h, h2 = (int) (h >>> 32);
+        for (int i = 0; i < hashes; i++) {
+            int bit = Math.floorMod(h1 + i * h2, bitCount);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+        added++;
+    }
+
+    boolean mightContain(String value) {
+        if (value == null) return false;
+        long h = hash(value);
+        int h1 = (int) h, h2 = (int) (h >>> 32);
+        for (int i = 0; i < hashes; i++) {
+            int bit = Math.floorMod(h1 + i * h2, bitCount);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    /** True once more values were added than the filter was sized for. */
+    boolean isFull() {
+        return added > capacity;
+    }
+
+    // 64-bit FNV-1a over the UTF-8 bytes, finished with a MurmurHash3 mix
+    private static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe1e2d3c5L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * How one column's filter is doing, kept across rebuilds. A false
+     * positive is a "maybe" that the scan then found to be absent.
+     */
+    static class Stats {
+        final AtomicLong negatives = new AtomicLong();
+        final AtomicLong falsePositives = new AtomicLong();
+        final AtomicLong truePositives = new AtomicLong();
+
+        /** False positives among lookups of absent values, or 0 before any. */
+        double falsePositiveRate() {
+            long absent = negatives.get() + falsePositives.get();
+            return absent == 0 ? 0 : (double) falsePositives.get() / absent;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+import java.util.*;
+
+/**
+ * One dictionary per column of a table, holding each distinct value once.
+ * Rows keep a reference to the dictionary's copy of their value instead of
+ * a String of their own, so a column that repeats a few values across a
+ * million rows holds a few Strings rather than a million. While a column is
+ * encoded, every row of the table shares those instances, so an equality
+ * test against the column is a reference comparison and a value that isn't
+ * in the dictionary is known to be absent without looking at any row.
+ *
+ * A column stops being encoded for good once it has more distinct values
+ * than the limit; its dictionary is dropped and its cells keep the
+ * references they already have.
+ *
+ * Not thread-safe: building and {@link #intern} rewrite cells in place, so
+ * they need the table's write lock; the lookups need its read lock.
+ */
+public class ColumnDictionaries {
+    private final int maxValues;
+    private final List<Map<String, String>> columns = new ArrayList<>();
+
+    /** Builds the dictionaries from a table's rows, sharing their values as it goes. */
+    ColumnDictionaries(List<String[]> rows, int columnCount, int maxValues) {
+        this.maxValues = maxValues;
+        for (int c = 0; c < columnCount; c++) columns.add(new HashMap<>());
+        for (String[] row : rows) intern(row);
+    }
+
+    /** Replaces the cells of {@code row} in encoded columns with the dictionary's copies, adding new values. */
+    void intern(String[] row) {
+        for (int c = 0; c < row.length && c < columns.size(); c++) {
+            Map<String, String> values = columns.get(c);
+            if (values == null || row[c] == null) continue;
+            String shared = values.putIfAbsent(row[c], row[c]);
+            if (shared != null) {
+                row[c] = shared;
+            } else if (values.size() > maxValues) {
+                columns.set(c, null);
+            }
+        }
+    }
+
+    boolean isEncoded(int column) {
+        return column >= 0 && column < columns.size() && columns.get(column) != null;
+    }
+
+    /** The instance every row with {@code value} in an encoded column shares, or null if no row has it. */
+    String lookup(int column, String value) {
+        return columns.get(column).get(value);
+    }
+}
@@ -0,0 +1,92 @@
+import java.math.BigDecimal;
+import java.time.*;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+
+/**
+ * The type a column can be declared with when its table is created, as
+ * {@code name:type}. Cells of typed columns are checked and brought into one
+ * form on insert (timestamps become epoch milliseconds, booleans "true" or
+ * "false", numbers their shortest text), so the rest of the server can take
+ * them as they are and equal numbers always have equal text. Empty
+ * cells are allowed in every type and mean "no value".
+ */
+public enum ColumnType {
+    STRING, INT, LONG, DOUBLE, BOOLEAN, TIMESTAMP;
+
+    static ColumnType parse(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown column type '" + name
+                    + "', expected int, long, double, boolean, timestamp or string");
+        }
+    }
+
+    /** The types of a table's columns from its saved schema; columns without one are strings. */
+    static List<ColumnType> listOf(String schema, int columns) {
+        List<ColumnType> types = new ArrayList<>(Collections.nCopies(columns, STRING));
+        if (schema == null || schema.isEmpty()) return types;
+        String[] names = schema.split(",");
+        for (int i = 0; i < names.length && i < columns; i++) types.set(i, parse(names[i]));
+        return types;
+    }
+
+    /** True for the types whose cells compare as numbers. */
+    boolean isNumeric() {
+        return this == INT || this == LONG || this == DOUBLE || this == TIMESTAMP;
+    }
+
+    /** The cell in this type's form; throws if it isn't a value of the type. */
+    String normalize(String cell) {
+        if (cell == null || cell.isEmpty() || this == STRING) return cell;
+        String s = cell.trim();
+        try {
+            switch (this) {
+                case INT:
+                    return Integer.toString(Integer.parseInt(s));
+                case LONG:
+                    return Long.toString(Long.parseLong(s));
+                case DOUBLE:
+                    double d = Double.parseDouble(s);
+                    if (Double.isNaN(d) || Double.isInfinite(d)) break;
+                    return format(d);
+                case BOOLEAN:
+                    switch (s.toLowerCase()) {
+                        case "true": case "1": case "yes": return "true";
+                        case "false": case "0": case "no": return "false";
+                    }
+                    break;
+                default:
+                    return Long.toString(epochMillis(s));
+            }
+        } catch (NumberFormatException | DateTimeParseException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("'" + cell + "' is not " + (this == INT ? "an " : "a ") + this);
+    }
+
+    /** The text of a double column's value: "1.5", "3", "0.001"; very large or small values in E notation. */
+    static String format(double d) {
+        String plain = BigDecimal.valueOf(d + 0.0).stripTrailingZeros().toPlainString();
+        return plain.length() <= 24 ? plain : Double.toString(d);
+    }
+
+    // Epoch milliseconds, or an ISO-8601 date or date-time (UTC unless it has an offset)
+    private static long epochMillis(String s) {
+        if (!s.isEmpty() && s.chars().skip(s.charAt(0) == '-' ? 1 : 0).allMatch(Character::isDigit)) {
+            return Long.parseLong(s);
+        }
+        if (s.length() <= 10) return LocalDate.parse(s).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        try {
+            return OffsetDateTime.parse(s).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return LocalDateTime.parse(s).toInstant(ZoneOffset.UTC).toEpochMilli();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase();
+    }
+}
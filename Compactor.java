@@ -0,0 +1,145 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Reclaims the dead space that appending saves leave in database files.
+ * One background thread checks every open database at a fixed interval,
+ * measuring how much of its file the current directory still refers to.
+ * A file whose dead bytes pass both the ratio and the minimum is rewritten
+ * with only its live blocks and swapped in; see
+ * {@link SimpleWebServer.UserDatabase#compact}.
+ *
+ * Copying is paced to a byte rate so compaction doesn't starve requests of
+ * disk bandwidth.
+ */
+public class Compactor {
+    /** What the last check and compaction of one database found; shown on the databases page. */
+    static class Status {
+        volatile long fileBytes;
+        volatile long liveBytes;
+        volatile boolean running;
+        volatile long runs;
+        volatile long lastRun;         // when the last compaction finished, 0 if never
+        volatile long lastReclaimed;   // bytes it freed
+        volatile long lastMillis;
+        volatile String lastError;
+
+        long deadBytes() {
+            return Math.max(0, fileBytes - liveBytes);
+        }
+
+        double deadRatio() {
+            return fileBytes == 0 ? 0 : (double) deadBytes() / fileBytes;
+        }
+    }
+
+    /** Limits copying to a number of bytes per second by sleeping between blocks. */
+    static class Throttle {
+        private final long bytesPerSecond;
+        private final long start = System.nanoTime();
+        private long bytes;
+
+        Throttle(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        void pace(long copied) throws InterruptedIOException {
+            bytes += copied;
+            if (bytesPerSecond <= 0) return;
+            long due = start + bytes * 1_000_000_000L / bytesPerSecond;
+            long wait = due - System.nanoTime();
+            if (wait <= 0) return;
+            try {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Compaction interrupted");
+            }
+        }
+    }
+
+    private final double deadRatio;
+    private final long minDeadBytes;
+    private final long bytesPerSecond;
+    private final long intervalMillis;
+    private final Supplier<Collection<SimpleWebServer.UserDatabase>> databases;
+
+    Compactor(double deadRatio, long minDeadBytes, long bytesPerSecond, long intervalMillis,
+              Supplier<Collection<SimpleWebServer.UserDatabase>> databases) {
+        this.deadRatio = deadRatio;
+        this.minDeadBytes = minDeadBytes;
+        this.bytesPerSecond = bytesPerSecond;
+        this.intervalMillis = Math.max(1000, intervalMillis);
+        this.databases = databases;
+        Thread thread = new Thread(this::run, "db-compactor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Reads the file's directory and block headers to find its live and dead bytes. */
+    static void measure(File file, Status status) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            List<SecdbFormat.TableEntry> directory = SecdbFormat.readDirectory(ch);
+            status.liveBytes = SecdbFormat.liveBytes(ch, directory);
+            status.fileBytes = ch.size();
+        }
+    }
+
+    /**
+     * Copies the blocks of {@code entry} that aren't in {@code moved} yet to
+     * the end of {@code dst}, and points the entry at the copies.
+     * {@code moved} maps old block offsets to new ones across calls, so a
+     * block copied earlier is not copied again.
+     */
+    static void copyBlocks(FileChannel src, SecdbFormat.TableEntry entry, FileChannel dst,
+                           Map<Long, Long> moved, Throttle throttle) throws IOException {
+        for (int b = 0; b < entry.blockOffsets.length; b++) {
+            Long to = moved.get(entry.blockOffsets[b]);
+            if (to == null) {
+                to = dst.position();
+                long copied = SecdbFormat.copyBlock(src, entry, b, dst);
+                if (throttle != null) throttle.pace(copied);
+                moved.put(entry.blockOffsets[b], to);
+            }
+            entry.blockOffsets[b] = to;
+        }
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (SimpleWebServer.UserDatabase db : databases.get()) {
+                Status status = db.getCompaction();
+                try {
+                    if (!db.getFile().exists()) continue;
+                    measure(db.getFile(), status);
+                    if (status.deadBytes() < minDeadBytes || status.deadRatio() < deadRatio) continue;
+                    long before = status.fileBytes;
+                    long start = System.currentTimeMillis();
+                    status.running = true;
+                    if (!db.compact(new Throttle(bytesPerSecond))) continue;
+                    measure(db.getFile(), status);
+                    status.lastReclaimed = before - status.fileBytes;
+                    status.lastMillis = System.currentTimeMillis() - start;
+                    status.lastRun = System.currentTimeMillis();
+                    status.lastError = null;
+                    status.runs++;
+                } catch (IOException | RuntimeException e) {
+                    status.lastError = e.getMessage();
+                    System.err.println("Error compacting database " + db.getFile().getName() + ": " + e.getMessage());
+                } finally {
+                    status.running = false;
+                }
+            }
+        }
+    }
+}
@@ -1,19 +1,122 @@
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
 import java.util.Base64;
 
+/**
+ * AES-GCM encryption for strings and for the blocks of database files.
+ * Every message gets a fresh random 96-bit nonce, stored in front of the
+ * ciphertext, and ends in a 128-bit tag, so changed data fails to decrypt
+ * instead of decrypting to garbage.
+ *
+ * Keys are built once and every thread keeps its own Cipher, so a call only
+ * pays for init and the work itself, which the JDK runs on the CPU's AES
+ * and carry-less multiply instructions.
+ */
 public class CryptoUtils {
-    private static final String KEY = "MySecretKey12345"; // 16 chars = 128-bit
+    static final int NONCE_SIZE = 12;
+    static final int TAG_SIZE = 16;
+    /** Bytes encryption adds to a message: nonce and tag. */
+    static final int OVERHEAD = NONCE_SIZE + TAG_SIZE;
+
+    private static final SecretKeySpec KEY = new SecretKeySpec(
+            "MySecretKey12345".getBytes(StandardCharsets.UTF_8), "AES"); // 16 chars = 128-bit
+    private static final SecureRandom random = new SecureRandom();
+    private static final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-GCM not available", e);
+        }
+    });
+    private static volatile SecretKeySpec databaseKey;
 
     public static String encrypt(String text) throws Exception {
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(KEY.getBytes(), "AES"));
-        return Base64.getEncoder().encodeToString(cipher.doFinal(text.getBytes()));
+        return Base64.getEncoder().encodeToString(seal(KEY, text.getBytes(StandardCharsets.UTF_8), null));
     }
 
     public static String decrypt(String encrypted) throws Exception {
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(KEY.getBytes(), "AES"));
-        return new String(cipher.doFinal(Base64.getDecoder().decode(encrypted)));
+        ByteBuffer data = ByteBuffer.wrap(Base64.getDecoder().decode(encrypted));
+        return StandardCharsets.UTF_8.decode(open(KEY, data, null)).toString();
+    }
+
+    /**
+     * Sets the key database files are encrypted with: base64 of 16, 24 or
+     * 32 bytes. Null or empty turns encryption of new files off; files
+     * already encrypted still need the key to be read.
+     */
+    static void setDatabaseKey(String base64) {
+        if (base64 == null || base64.isBlank()) {
+            databaseKey = null;
+            return;
+        }
+        byte[] key = Base64.getDecoder().decode(base64.trim());
+        if (key.length != 16 && key.length != 24 && key.length != 32) {
+            throw new IllegalArgumentException("db.encryption.key must be base64 of 16, 24 or 32 bytes");
+        }
+        databaseKey = new SecretKeySpec(key, "AES");
+    }
+
+    static boolean hasDatabaseKey() {
+        return databaseKey != null;
+    }
+
+    /** Encrypts part of a database file; {@code aad} is authenticated along with it but not stored. */
+    static byte[] sealBlock(byte[] data, int offset, int length, byte[] aad) throws IOException {
+        try {
+            return seal(requireDatabaseKey(), ByteBuffer.wrap(data, offset, length), aad);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Error encrypting database block", e);
+        }
+    }
+
+    /** Decrypts what {@link #sealBlock} produced, from the buffer's position to its limit. */
+    static ByteBuffer openBlock(ByteBuffer stored, byte[] aad) throws IOException {
+        try {
+            return open(requireDatabaseKey(), stored, aad);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Database block failed to decrypt; wrong key or damaged file", e);
+        }
+    }
+
+    private static SecretKeySpec requireDatabaseKey() throws IOException {
+        SecretKeySpec key = databaseKey;
+        if (key == null) throw new IOException("Database file is encrypted but db.encryption.key is not set");
+        return key;
+    }
+
+    private static byte[] seal(SecretKeySpec key, byte[] data, byte[] aad) throws GeneralSecurityException {
+        return seal(key, ByteBuffer.wrap(data), aad);
+    }
+
+    private static byte[] seal(SecretKeySpec key, ByteBuffer data, byte[] aad) throws GeneralSecurityException {
+        byte[] out = new byte[OVERHEAD + data.remaining()];
+        byte[] nonce = new byte[NONCE_SIZE];
+        random.nextBytes(nonce);
+        System.arraycopy(nonce, 0, out, 0, NONCE_SIZE);
+        Cipher cipher = ciphers.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+        if (aad != null) cipher.updateAAD(aad);
+        cipher.doFinal(data, ByteBuffer.wrap(out, NONCE_SIZE, out.length - NONCE_SIZE));
+        return out;
+    }
+
+    private static ByteBuffer open(SecretKeySpec key, ByteBuffer stored, byte[] aad) throws GeneralSecurityException {
+        ByteBuffer in = stored.duplicate();
+        if (in.remaining() < OVERHEAD) throw new AEADBadTagException("Message too short");
+        byte[] nonce = new byte[NONCE_SIZE];
+        in.get(nonce);
+        ByteBuffer out = ByteBuffer.allocate(in.remaining() - TAG_SIZE);
+        Cipher cipher = ciphers.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+        if (aad != null) cipher.updateAAD(aad);
+        cipher.doFinal(in, out);
+        return out.flip();
     }
 }
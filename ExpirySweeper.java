@@ -0,0 +1,47 @@
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Removes rows whose expiry time has passed. One background thread visits
+ * every open database at a fixed interval and has it drop the due rows of
+ * each table with an expiry column; see
+ * {@link SimpleWebServer.UserDatabase#sweepExpired}. Those rows are found
+ * through the ordered index on the expiry column, earliest first, so a
+ * sweep reads only rows that are due and never scans a table.
+ *
+ * A sweep removes at most a batch of rows per table and leaves the rest to
+ * the next one. Reads already leave out due rows the sweeper hasn't
+ * reached yet.
+ */
+public class ExpirySweeper {
+    private final long intervalMillis;
+    private final int batch;
+    private final Supplier<Collection<SimpleWebServer.UserDatabase>> databases;
+
+    ExpirySweeper(long intervalMillis, int batch, Supplier<Collection<SimpleWebServer.UserDatabase>> databases) {
+        this.intervalMillis = Math.max(100, intervalMillis);
+        this.batch = Math.max(1, batch);
+        this.databases = databases;
+        Thread thread = new Thread(this::run, "db-expiry");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (SimpleWebServer.UserDatabase db : databases.get()) {
+                try {
+                    if (db.getFile().exists()) db.sweepExpired(batch);
+                } catch (RuntimeException e) {
+                    System.err.println("Error removing expired rows from " + db.getFile().getName() + ": " + e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
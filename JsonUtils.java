@@ -0,0 +1,232 @@
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Minimal JSON support for the API handlers. Parses into plain collections:
+ * objects become LinkedHashMap, arrays ArrayList, numbers BigDecimal (so the
+ * literal text survives, e.g. "1.50"), plus String, Boolean and null.
+ */
+public class JsonUtils {
+
+    public static Object parse(String text) {
+        Parser p = new Parser(text);
+        p.skipWhitespace();
+        Object value = p.readValue();
+        p.skipWhitespace();
+        if (p.pos < text.length()) {
+            throw new IllegalArgumentException("Unexpected trailing data at position " + p.pos);
+        }
+        return value;
+    }
+
+    /** Renders a parsed JSON scalar as a cell value; null stays null. */
+    public static String asString(Object value) {
+        if (value == null) return null;
+        if (value instanceof BigDecimal) return ((BigDecimal) value).toPlainString();
+        return value.toString();
+    }
+
+    /** Returns the value as a quoted, escaped JSON string literal. */
+    public static String quote(String value) {
+        if (value == null) return "\"\"";
+        StringBuilder sb = new StringBuilder(value.length() + 2);
+        appendQuoted(sb, value);
+        return sb.toString();
+    }
+
+    public static void appendQuoted(StringBuilder sb, String value) {
+        sb.append('"');
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"': sb.append("\\\""); break;
+                    case '\\': sb.append("\\\\"); break;
+                    case '\n': sb.append("\\n"); break;
+                    case '\r': sb.append("\\r"); break;
+                    case '\t': sb.append("\\t"); break;
+                    default:
+                        if (c < 0x20) {
+                            sb.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            sb.append(c);
+                        }
+                }
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Writes {@code length} bytes of UTF-8 text starting at {@code start} in
+     * {@code utf8} as a quoted JSON string, escaped like {@link #appendQuoted}.
+     * Bytes of multi-byte characters are all 0x80 or above, so they are
+     * copied through without decoding.
+     */
+    public static void writeQuoted(ByteArrayOutputStream out, ByteBuffer utf8, int start, int length) {
+        out.write('"');
+        int end = start + length;
+        int run = start;   // first byte not yet written
+        for (int i = start; i < end; i++) {
+            int b = utf8.get(i) & 0xFF;
+            if (b >= 0x20 && b != '"' && b != '\\') continue;
+            writeBytes(out, utf8, run, i - run);
+            run = i + 1;
+            switch (b) {
+                case '"': out.write('\\'); out.write('"'); break;
+                case '\\': out.write('\\'); out.write('\\'); break;
+                case '\n': out.write('\\'); out.write('n'); break;
+                case '\r': out.write('\\'); out.write('r'); break;
+                case '\t': out.write('\\'); out.write('t'); break;
+                default: out.writeBytes(String.format("\\u%04x", b).getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+        writeBytes(out, utf8, run, end - run);
+        out.write('"');
+    }
+
+    // Runs without anything to escape are copied in one go
+    private static void writeBytes(ByteArrayOutputStream out, ByteBuffer buf, int start, int length) {
+        if (length == 0) return;
+        if (buf.hasArray()) {
+            out.write(buf.array(), buf.arrayOffset() + start, length);
+        } else {
+            byte[] bytes = new byte[length];
+            buf.get(start, bytes);
+            out.write(bytes, 0, length);
+        }
+    }
+
+    private static class Parser {
+        private final String s;
+        private int pos;
+
+        Parser(String s) {
+            this.s = s;
+        }
+
+        Object readValue() {
+            if (pos >= s.length()) throw error("Unexpected end of input");
+            char c = s.charAt(pos);
+            switch (c) {
+                case '{': return readObject();
+                case '[': return readArray();
+                case '"': return readString();
+                case 't': expect("true"); return Boolean.TRUE;
+                case 'f': expect("false"); return Boolean.FALSE;
+                case 'n': expect("null"); return null;
+                default:
+                    if (c == '-' || (c >= '0' && c <= '9')) return readNumber();
+                    throw error("Unexpected character '" + c + "'");
+            }
+        }
+
+        private Map<String, Object> readObject() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            pos++; // {
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+                return map;
+            }
+            while (true) {
+                skipWhitespace();
+                if (peek() != '"') throw error("Expected object key");
+                String key = readString();
+                skipWhitespace();
+                if (peek() != ':') throw error("Expected ':'");
+                pos++;
+                skipWhitespace();
+                map.put(key, readValue());
+                skipWhitespace();
+                char c = peek();
+                pos++;
+                if (c == '}') return map;
+                if (c != ',') throw error("Expected ',' or '}'");
+            }
+        }
+
+        private List<Object> readArray() {
+            List<Object> list = new ArrayList<>();
+            pos++; // [
+            skipWhitespace();
+            if (peek() == ']') {
+                pos++;
+                return list;
+            }
+            while (true) {
+                skipWhitespace();
+                list.add(readValue());
+                skipWhitespace();
+                char c = peek();
+                pos++;
+                if (c == ']') return list;
+                if (c != ',') throw error("Expected ',' or ']'");
+            }
+        }
+
+        private String readString() {
+            pos++; // opening quote
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                if (pos >= s.length()) throw error("Unterminated string");
+                char c = s.charAt(pos++);
+                if (c == '"') return sb.toString();
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (pos >= s.length()) throw error("Unterminated escape");
+                char e = s.charAt(pos++);
+                switch (e) {
+                    case '"': sb.append('"'); break;
+                    case '\\': sb.append('\\'); break;
+                    case '/': sb.append('/'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        if (pos + 4 > s.length()) throw error("Bad unicode escape");
+                        sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                        pos += 4;
+                        break;
+                    default: throw error("Bad escape '\\" + e + "'");
+                }
+            }
+        }
+
+        private BigDecimal readNumber() {
+            int start = pos;
+            if (peek() == '-') pos++;
+            while (pos < s.length() && "0123456789.eE+-".indexOf(s.charAt(pos)) >= 0) pos++;
+            try {
+                return new BigDecimal(s.substring(start, pos));
+            } catch (NumberFormatException e) {
+                throw error("Bad number");
+            }
+        }
+
+        private void expect(String word) {
+            if (!s.startsWith(word, pos)) throw error("Expected " + word);
+            pos += word.length();
+        }
+
+        private char peek() {
+            if (pos >= s.length()) throw error("Unexpected end of input");
+            return s.charAt(pos);
+        }
+
+        void skipWhitespace() {
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + pos);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Rows of one table that are read from the database file the first time
+ * they are needed. Until then only the directory entry is held, so the row
+ * count and a save of an untouched table never read its rows.
+ *
+ * The list stays pinned to the entry it was made with: its size doesn't
+ * change until the rows are loaded, and once loaded they are read no more.
+ * If the file was rewritten in the meantime, the table's rows are looked up
+ * in the new file for that one read, and must still be the same rows.
+ */
+public class LazyRowList extends AbstractList<String[]> implements RandomAccess {
+    private final File file;
+    private final SecdbFormat.TableEntry entry;
+    private volatile VersionedRowList rows;
+
+    LazyRowList(File file, SecdbFormat.TableEntry entry) {
+        this.file = file;
+        this.entry = entry;
+    }
+
+    boolean isLoaded() {
+        return rows != null;
+    }
+
+    @Override
+    public int size() {
+        return rows == null ? (int) entry.rowCount : rows.size();
+    }
+
+    @Override
+    public String[] get(int index) {
+        return loaded().get(index);
+    }
+
+    @Override
+    public String[] set(int index, String[] row) {
+        return loaded().set(index, row);
+    }
+
+    @Override
+    public boolean add(String[] row) {
+        modCount++;
+        return loaded().add(row);
+    }
+
+    @Override
+    public void add(int index, String[] row) {
+        loaded().add(index, row);
+        modCount++;
+    }
+
+    @Override
+    public String[] remove(int index) {
+        modCount++;
+        return loaded().remove(index);
+    }
+
+    @Override
+    public void clear() {
+        rows = new VersionedRowList();
+        modCount++;
+    }
+
+    @Override
+    public Iterator<String[]> iterator() {
+        return loaded().iterator();
+    }
+
+    @Override
+    public boolean removeIf(Predicate<? super String[]> filter) {
+        return loaded().removeIf(filter);
+    }
+
+    /** The rows as they are now, loading them first; see {@link VersionedRowList#snapshot}. */
+    VersionedRowList snapshot() {
+        return loaded().snapshot();
+    }
+
+    /**
+     * Writes the rows if they were loaded, otherwise keeps or copies the
+     * table's blocks from the file as they are.
+     */
+    void writeBlocks(SecdbFormat.BlockWriter out) throws IOException {
+        if (rows != null) {
+            rows.writeBlocks(out);
+            return;
+        }
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            SecdbFormat.TableEntry source = resolve(ch);
+            if (out.keeps(source.stamp)) {
+                for (int b = 0; b < source.blockOffsets.length; b++) {
+                    out.keepBlock(source.blockOffsets[b], source.blockRows[b]);
+                }
+            } else if (out.copies(source)) {
+                out.transferBlocks(ch, source);
+            } else {
+                // Encryption was switched on or off since the file was written
+                for (String[] row : SecdbFormat.readRows(ch, source)) out.addRow(row);
+            }
+        }
+    }
+
+    /** Records that the table was saved to {@code saved}'s blocks; see {@link VersionedRowList#markSaved}. */
+    void markSaved(SecdbFormat.TableEntry saved) {
+        VersionedRowList loaded = rows;
+        if (loaded != null) loaded.markSaved(saved);
+    }
+
+    // Parallel scans may get here from several threads at once; only one of them reads the file
+    private VersionedRowList loaded() {
+        VersionedRowList loaded = rows;
+        if (loaded != null) return loaded;
+        synchronized (this) {
+            if (rows == null) {
+                try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    SecdbFormat.TableEntry source = resolve(ch);
+                    VersionedRowList read = new VersionedRowList(SecdbFormat.readRows(ch, source));
+                    read.markSaved(source);
+                    rows = read;
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Error loading table '" + entry.name + "'", e);
+                }
+            }
+            return rows;
+        }
+    }
+
+    /**
+     * The entry to read the rows from in the file as it is now: this list's
+     * own, or if the file was rewritten since, the table's entry in the new
+     * file. A save writes unloaded rows out unchanged, so a table that is
+     * gone or has a different row count there means the file no longer
+     * holds these rows.
+     */
+    private SecdbFormat.TableEntry resolve(FileChannel ch) throws IOException {
+        if (SecdbFormat.readStamp(ch) == entry.stamp) return entry;
+        for (SecdbFormat.TableEntry e : SecdbFormat.readDirectory(ch)) {
+            if (e.name.equals(entry.name) && e.rowCount == entry.rowCount) return e;
+        }
+        throw new IOException("Table '" + entry.name + "' was changed in the file since it was listed");
+    }
+}
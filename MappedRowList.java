@@ -0,0 +1,466 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Rows of one table read straight from a memory-mapped .secdb file. Nothing
+ * is decoded until a row is asked for, so the heap only holds the block
+ * index; the OS page cache keeps the hot parts of the file in memory.
+ *
+ * Changes since the file was mapped live in a small overlay (appended rows,
+ * replaced rows and a bitmap of removed rows) until the next save writes
+ * them out.
+ */
+public class MappedRowList extends AbstractList<String[]> implements RandomAccess {
+    private final MappedFile file;
+    private final SecdbFormat.TableEntry entry;
+    private final int[] blockStart;   // index of the first row of each block
+    private final int baseCount;
+    private final BitSet verified = new BitSet();
+    private final BitSet removed = new BitSet();
+    private int removedCount;
+    private final int[] liveTree;     // Fenwick tree of each block's rows not removed, to find a row's block in log time
+    private final List<String[]> appended = new ArrayList<>();
+    private final TreeMap<Integer, String[]> replaced = new TreeMap<>();   // by physical position
+
+    MappedRowList(MappedFile file, SecdbFormat.TableEntry entry) {
+        this.file = file;
+        this.entry = entry;
+        this.blockStart = new int[entry.blockRows.length];
+        int start = 0;
+        for (int b = 0; b < blockStart.length; b++) {
+            blockStart[b] = start;
+            start += entry.blockRows[b];
+        }
+        this.baseCount = start;
+        this.liveTree = new int[blockStart.length + 1];
+        for (int b = 1; b <= blockStart.length; b++) {
+            liveTree[b] += entry.blockRows[b - 1];
+            int parent = b + (b & -b);
+            if (parent <= blockStart.length) liveTree[parent] += liveTree[b];
+        }
+    }
+
+    /** A copy of the overlay over the same mapping; later changes to this list don't show in it. */
+    MappedRowList snapshot() {
+        MappedRowList copy = new MappedRowList(file, entry);
+        synchronized (verified) {
+            copy.verified.or(verified);
+        }
+        copy.removed.or(removed);
+        copy.removedCount = removedCount;
+        System.arraycopy(liveTree, 0, copy.liveTree, 0, liveTree.length);
+        copy.appended.addAll(appended);
+        copy.replaced.putAll(replaced);
+        return copy;
+    }
+
+    @Override
+    public int size() {
+        return baseCount - removedCount + appended.size();
+    }
+
+    @Override
+    public String[] get(int index) {
+        int live = baseCount - removedCount;
+        if (index < 0 || index >= size()) throw new IndexOutOfBoundsException("Index: " + index);
+        if (index >= live) return appended.get(index - live);
+
+        int physical = toPhysical(index);
+        String[] row = replaced.get(physical);
+        if (row != null) return row;
+        int block = blockOf(physical);
+        return decoded(block).readerAt(physical - blockStart[block]).next();
+    }
+
+    @Override
+    public String[] set(int index, String[] row) {
+        int live = baseCount - removedCount;
+        if (index >= live) return appended.set(index - live, row);
+        String[] old = get(index);
+        replaced.put(toPhysical(index), row);
+        return old;
+    }
+
+    @Override
+    public boolean add(String[] row) {
+        appended.add(row);
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Inserts among the mapped rows only where a removed row was, bringing
+     * that slot back with the new row; used to undo a removal.
+     */
+    @Override
+    public void add(int index, String[] row) {
+        int live = baseCount - removedCount;
+        if (index < 0 || index > size()) throw new IndexOutOfBoundsException("Index: " + index);
+        if (index >= live) {
+            appended.add(index - live, row);
+        } else {
+            int physical = toPhysical(index) - 1;
+            if (physical < 0 || !removed.get(physical)) {
+                throw new UnsupportedOperationException("Mapped rows can only be inserted where one was removed");
+            }
+            removed.clear(physical);
+            removedCount--;
+            countLive(physical, 1);
+            replaced.put(physical, row);
+        }
+        modCount++;
+    }
+
+    @Override
+    public String[] remove(int index) {
+        int live = baseCount - removedCount;
+        if (index >= live) {
+            modCount++;
+            return appended.remove(index - live);
+        }
+        String[] row = get(index);
+        int physical = toPhysical(index);
+        removed.set(physical);
+        replaced.remove(physical);
+        removedCount++;
+        countLive(physical, -1);
+        modCount++;
+        return row;
+    }
+
+    @Override
+    public void clear() {
+        removed.set(0, baseCount);
+        removedCount = baseCount;
+        Arrays.fill(liveTree, 0);
+        appended.clear();
+        replaced.clear();
+        modCount++;
+    }
+
+    /** Decodes block by block instead of seeking to every row from the start of its block. */
+    @Override
+    public Iterator<String[]> iterator() {
+        return new Iterator<String[]>() {
+            private int physical = 0;          // next base row to look at
+            private int block = -1;
+            private SecdbFormat.RowReader rows;
+            private int appendedIndex = 0;
+            private int lastLogical = -1;
+            private boolean lastAppended;
+            private int nextLogical = 0;
+
+            @Override
+            public boolean hasNext() {
+                return nextLogical < size();
+            }
+
+            @Override
+            public String[] next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                lastLogical = nextLogical++;
+                while (physical < baseCount) {
+                    int b = blockOf(physical);
+                    if (b != block) {
+                        block = b;
+                        rows = rows(b);
+                    }
+                    boolean skip = removed.get(physical);
+                    physical++;
+                    if (skip) {
+                        rows.skip();
+                    } else {
+                        lastAppended = false;
+                        return current(rows, physical - 1);
+                    }
+                }
+                lastAppended = true;
+                return appended.get(appendedIndex++);
+            }
+
+            @Override
+            public void remove() {
+                if (lastLogical < 0) throw new IllegalStateException();
+                if (lastAppended) {
+                    appended.remove(--appendedIndex);
+                } else {
+                    removed.set(physical - 1);
+                    replaced.remove(physical - 1);
+                    removedCount++;
+                    countLive(physical - 1, -1);
+                }
+                modCount++;
+                nextLogical = lastLogical;
+                lastLogical = -1;
+            }
+        };
+    }
+
+    /**
+     * Decodes rows {@code from} to {@code to} (exclusive) block by block.
+     * Several threads may do this at once on different ranges, as long as
+     * nobody changes the list meanwhile.
+     */
+    void forEach(int from, int to, Consumer<? super String[]> action) {
+        int live = baseCount - removedCount;
+        int index = from;
+        int end = Math.min(to, live);
+        if (index < end) {
+            int physical = toPhysical(index);
+            int block = blockOf(physical);
+            SecdbFormat.RowReader rows = physical == blockStart[block]
+                    ? rows(block) : decoded(block).readerAt(physical - blockStart[block]);
+            while (index < end) {
+                if (block + 1 < blockStart.length && physical == blockStart[block + 1]) {
+                    rows = rows(++block);
+                }
+                if (removed.get(physical)) {
+                    rows.skip();
+                } else {
+                    action.accept(current(rows, physical));
+                    index++;
+                }
+                physical++;
+            }
+        }
+        for (; index < to; index++) action.accept(appended.get(index - live));
+    }
+
+    /**
+     * Feeds this table to a block writer. Blocks without removed or
+     * replaced rows are kept in place when appending to the mapped file and
+     * otherwise copied byte for byte; only changed blocks and new rows are
+     * re-encoded. With new rows the last block is re-encoded too, so they
+     * fill it up rather than start a small block of their own.
+     */
+    void writeBlocks(SecdbFormat.BlockWriter out) throws IOException {
+        for (int b = 0; b < blockStart.length; b++) {
+            int start = blockStart[b];
+            int end = start + entry.blockRows[b];
+            int firstRemoved = removed.nextSetBit(start);
+            boolean growing = b == blockStart.length - 1 && !appended.isEmpty();
+            Integer firstReplaced = replaced.ceilingKey(start);
+            boolean changed = firstReplaced != null && firstReplaced < end;
+            if ((firstRemoved < 0 || firstRemoved >= end) && !growing && !changed) {
+                if (out.keeps(entry.stamp)) {
+                    out.keepBlock(entry.blockOffsets[b], entry.blockRows[b]);
+                    continue;
+                }
+                if (out.copies(entry)) {
+                    stored(b); // checksum before copying
+                    out.copyBlock(entry, entry.blockOffsets[b],
+                            file.slice(entry.blockOffsets[b], SecdbFormat.BLOCK_HEADER_SIZE + blockLength(b)), entry.blockRows[b]);
+                    continue;
+                }
+            }
+            SecdbFormat.RowReader rows = rows(b);
+            for (int r = start; r < end; r++) {
+                if (removed.get(r)) {
+                    rows.skip();
+                } else {
+                    out.addRow(current(rows, r));
+                }
+            }
+        }
+        for (String[] row : appended) out.addRow(row);
+    }
+
+    // The row at this physical position, moving the reader past its stored form
+    private String[] current(SecdbFormat.RowReader rows, int physical) {
+        String[] row = replaced.get(physical);
+        if (row == null) return rows.next();
+        rows.skip();
+        return row;
+    }
+
+    /**
+     * Logical index -> position in the mapped blocks. The tree of live rows
+     * per block leads to the block holding the row, and only the removed
+     * rows of that block are stepped over.
+     */
+    private int toPhysical(int index) {
+        int block = 0;
+        int rest = index;
+        for (int step = Integer.highestOneBit(Math.max(1, blockStart.length)); step > 0; step >>= 1) {
+            if (block + step <= blockStart.length && liveTree[block + step] <= rest) {
+                block += step;
+                rest -= liveTree[block];
+            }
+        }
+        if (block == blockStart.length) return baseCount;   // past the last mapped row
+        int physical = blockStart[block] + rest;
+        for (int r = removed.nextSetBit(blockStart[block]); r >= 0 && r <= physical; r = removed.nextSetBit(r + 1)) {
+            physical++;
+        }
+        return physical;
+    }
+
+    // Adds delta to the live rows of the block holding this physical position
+    private void countLive(int physical, int delta) {
+        for (int b = blockOf(physical) + 1; b <= blockStart.length; b += b & -b) liveTree[b] += delta;
+    }
+
+    private int blockOf(int physical) {
+        int b = Arrays.binarySearch(blockStart, physical);
+        return b >= 0 ? b : -b - 2;
+    }
+
+    private int blockLength(int block) {
+        return file.slice(entry.blockOffsets[block], SecdbFormat.BLOCK_HEADER_SIZE).getInt(0);
+    }
+
+    private SecdbFormat.RowReader rows(int block) {
+        return decoded(block).reader();
+    }
+
+    private DecodedBlock decoded(int block) {
+        return file.decoded(entry.blockOffsets[block], () -> new DecodedBlock(entry, payload(block), entry.blockRows[block]));
+    }
+
+    /** A block's rows as decoded, with an index into them built the first time a read starts mid-block. */
+    static class DecodedBlock {
+        private final SecdbFormat.TableEntry entry;
+        private final ByteBuffer rows;
+        private final int rowCount;
+        private SecdbFormat.BlockIndex index;
+
+        DecodedBlock(SecdbFormat.TableEntry entry, ByteBuffer rows, int rowCount) {
+            this.entry = entry;
+            this.rows = rows;
+            this.rowCount = rowCount;
+        }
+
+        SecdbFormat.RowReader reader() {
+            return new SecdbFormat.RowReader(entry, rows);
+        }
+
+        synchronized SecdbFormat.RowReader readerAt(int row) {
+            if (index == null) index = new SecdbFormat.BlockIndex(entry, rows, rowCount);
+            return index.reader(row);
+        }
+    }
+
+    // The block's rows, checksummed on first use and decrypted and unpacked each time it's decoded
+    private ByteBuffer payload(int block) {
+        try {
+            return SecdbFormat.rowData(entry, entry.blockOffsets[block], stored(block), entry.blockRows[block]);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The block's payload as stored, checksummed on first use
+    private ByteBuffer stored(int block) {
+        ByteBuffer header = file.slice(entry.blockOffsets[block], SecdbFormat.BLOCK_HEADER_SIZE);
+        int length = header.getInt(0);
+        ByteBuffer payload = file.slice(entry.blockOffsets[block] + SecdbFormat.BLOCK_HEADER_SIZE, length);
+        boolean checked;
+        synchronized (verified) {
+            checked = verified.get(block);
+        }
+        if (!checked) {
+            if (SecdbFormat.crc(payload) != header.getInt(8)) {
+                throw new UncheckedIOException(new IOException("Checksum mismatch in table '" + entry.name
+                        + "' at offset " + entry.blockOffsets[block]));
+            }
+            synchronized (verified) {
+                verified.set(block);
+            }
+        }
+        return payload;
+    }
+
+    /**
+     * A read-only mapping of a whole database file in fixed-size segments.
+     * Mapping only reserves address space, so opening costs the same for any
+     * file size. A segment boundary may cut through a block, in which case
+     * that block is copied out instead of sliced.
+     *
+     * The last {@link #DECODED_BLOCKS} blocks decoded are kept, so reading
+     * rows of a block again doesn't decrypt and unpack it again.
+     *
+     * Appends only add to a file, so a new mapping of the same file takes
+     * over the full segments of the previous one and maps only what is
+     * past them. Address space then grows with the file rather than with
+     * every save. Mappings no list uses any more are released when they
+     * are garbage collected, never sooner, as readers may still be on them.
+     */
+    static class MappedFile {
+        static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+        static final int DECODED_BLOCKS = 64;
+
+        final List<SecdbFormat.TableEntry> directory;
+        private final Object fileKey;
+        private final MappedByteBuffer[] segments;
+        private final Map<Long, DecodedBlock> decoded = new LinkedHashMap<Long, DecodedBlock>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, DecodedBlock> eldest) {
+                return size() > DECODED_BLOCKS;
+            }
+        };
+
+        /**
+         * Maps {@code file}, reusing the full segments of {@code previous}
+         * (may be null) if it is a mapping of the same file, not one that
+         * has since been replaced. Needs the database's save lock, so the
+         * file isn't replaced meanwhile.
+         */
+        MappedFile(File file, MappedFile previous) throws IOException {
+            // The mappings outlive the channel, so lists handed out before a remap keep working
+            try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                this.fileKey = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+                this.directory = SecdbFormat.readDirectory(ch);
+                long size = ch.size();
+                boolean sameFile = previous != null && fileKey != null && fileKey.equals(previous.fileKey);
+                this.segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+                for (int i = 0; i < segments.length; i++) {
+                    if (sameFile && i < previous.segments.length && previous.segments[i].limit() == SEGMENT_SIZE) {
+                        segments[i] = previous.segments[i];
+                        continue;
+                    }
+                    long start = i * SEGMENT_SIZE;
+                    segments[i] = ch.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+                }
+            }
+        }
+
+        /** The block at {@code offset} as decoded by {@code decode}, from the cache if it's there. */
+        DecodedBlock decoded(long offset, Supplier<DecodedBlock> decode) {
+            synchronized (decoded) {
+                DecodedBlock block = decoded.get(offset);
+                if (block != null) return block;
+            }
+            // Decoded outside the lock; two threads after the same block both decode it, and either copy will do
+            DecodedBlock block = decode.get();
+            synchronized (decoded) {
+                decoded.put(offset, block);
+            }
+            return block;
+        }
+
+        ByteBuffer slice(long position, int length) {
+            int seg = (int) (position / SEGMENT_SIZE);
+            int offset = (int) (position % SEGMENT_SIZE);
+            if (offset + length <= segments[seg].limit()) {
+                return segments[seg].slice(offset, length);
+            }
+            ByteBuffer copy = ByteBuffer.allocate(length);
+            while (copy.hasRemaining()) {
+                int n = Math.min(copy.remaining(), segments[seg].limit() - offset);
+                copy.put(segments[seg++].slice(offset, n));
+                offset = 0;
+            }
+            return copy.flip();
+        }
+    }
+}
@@ -0,0 +1,624 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Rows of one table packed into large shared pages (arenas), either byte[]
+ * on the heap or direct buffers outside it. Each row is one record: its
+ * cell count, then per cell the UTF-8 length plus one (0 for null) and the
+ * bytes, lengths as varints. Besides the pages the list holds only an
+ * address per row, in fixed-size chunks shared with snapshots the same way
+ * {@link VersionedRowList} shares its rows, instead of an array and a
+ * String per cell. A row read through {@link #get} is decoded into a new
+ * String[] every time, so callers never get one the list keeps; a
+ * {@link RowView} reads cells in place without materializing the row.
+ *
+ * Records are never changed in place: replacing or removing a row leaves
+ * its old record behind as dead space, and once more than half the space
+ * is dead the live records are copied into new arenas. A removed row's
+ * address is only marked in its chunk's {@link Tombstones} bitmap until
+ * enough of the chunk is dead or the arenas are rebuilt. Snapshots keep the
+ * arenas they were taken on until they are dropped themselves.
+ *
+ * Direct pages are capped by {@code -XX:MaxDirectMemorySize} (the heap size
+ * by default), not by {@code -Xmx}.
+ *
+ * Changes need the table's write lock. Snapshots can be taken under its
+ * read lock, by several readers at once; a snapshot is read-only and can be
+ * read from any thread without a lock.
+ */
+public class PackedRowList extends AbstractList<String[]> implements RandomAccess {
+    static final int CHUNK_SIZE = VersionedRowList.CHUNK_SIZE;
+    static final int FIRST_ARENA_SIZE = 64 * 1024;
+    static final int MAX_ARENA_SIZE = 8 * 1024 * 1024;
+    private static final int MIN_COMPACT_BYTES = 1024 * 1024;
+
+    private long[][] chunks;   // record addresses: arena index << 32 | offset
+    private int[] lengths;     // live rows in each chunk
+    private int[] used;        // slots used in each chunk, live or dead
+    private long[][] dead;     // deleted slots of each chunk, null while it has none
+    private int[] starts;      // list index of each chunk's first row
+    private long[] owners;     // version each chunk (and its bitmap) was copied in; older ones may be shared
+    private int chunkCount;
+    private int size;
+    private final AtomicLong version = new AtomicLong();   // raised by every snapshot, which readers may take at once
+    private final boolean frozen;
+    private final boolean direct;   // arenas are direct buffers rather than byte[]
+    private ByteBuffer[] arenas;
+    private int arenaCount;
+    private long allocatedBytes;   // capacity of all arenas
+    private long usedBytes;        // bytes written to them, live or dead
+    private long liveBytes;        // bytes of records some row still refers to
+    private VersionedRowList.SavedBlocks saved;
+
+    PackedRowList(boolean direct) {
+        this.direct = direct;
+        this.chunks = new long[4][];
+        this.lengths = new int[4];
+        this.used = new int[4];
+        this.dead = new long[4][];
+        this.starts = new int[4];
+        this.owners = new long[4];
+        this.arenas = new ByteBuffer[4];
+        this.frozen = false;
+    }
+
+    private PackedRowList(PackedRowList source) {
+        this.direct = source.direct;
+        this.chunks = Arrays.copyOf(source.chunks, source.chunkCount);
+        this.lengths = Arrays.copyOf(source.lengths, source.chunkCount);
+        this.used = Arrays.copyOf(source.used, source.chunkCount);
+        this.dead = Arrays.copyOf(source.dead, source.chunkCount);
+        this.starts = Arrays.copyOf(source.starts, source.chunkCount);
+        this.owners = new long[source.chunkCount];
+        this.chunkCount = source.chunkCount;
+        this.size = source.size;
+        this.arenas = Arrays.copyOf(source.arenas, source.arenaCount);
+        this.arenaCount = source.arenaCount;
+        this.allocatedBytes = source.allocatedBytes;
+        this.usedBytes = source.usedBytes;
+        this.liveBytes = source.liveBytes;
+        this.frozen = true;
+    }
+
+    /** The rows as they are now; later changes to this list don't show in it. */
+    PackedRowList snapshot() {
+        if (frozen) return this;
+        PackedRowList copy = new PackedRowList(this);
+        version.incrementAndGet();
+        return copy;
+    }
+
+    /** True if the pages are direct buffers outside the Java heap. */
+    boolean isDirect() {
+        return direct;
+    }
+
+    /** Memory held by the pages. */
+    long pageBytes() {
+        return allocatedBytes;
+    }
+
+    /** Bytes of the records the rows refer to; the rest of {@link #pageBytes} is dead or unused. */
+    long liveBytes() {
+        return liveBytes;
+    }
+
+    /** Heap taken by the row addresses. */
+    long addressBytes() {
+        return (long) chunkCount * CHUNK_SIZE * Long.BYTES;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String[] get(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index);
+        int c = chunkOf(index);
+        return decode(chunks[c][Tombstones.slotOf(dead[c], index - starts[c])]);
+    }
+
+    @Override
+    public String[] set(int index, String[] row) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index);
+        int c = writable(chunkOf(index));
+        if (saved != null) saved.changed(index, 0);
+        int slot = Tombstones.slotOf(dead[c], index - starts[c]);
+        long old = chunks[c][slot];
+        String[] previous = decode(old);
+        chunks[c][slot] = append(row);
+        release(old);
+        reclaim();
+        return previous;
+    }
+
+    @Override
+    public boolean add(String[] row) {
+        checkWritable();
+        long address = append(row);
+        if (chunkCount == 0 || used[chunkCount - 1] == CHUNK_SIZE) insertChunk(chunkCount, new long[CHUNK_SIZE]);
+        // Slots past a chunk's used ones are invisible to snapshots, so appending needs no copy
+        int c = chunkCount - 1;
+        chunks[c][used[c]++] = address;
+        lengths[c]++;
+        size++;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public void add(int index, String[] row) {
+        if (index == size) {
+            add(row);
+            return;
+        }
+        if (index < 0 || index > size) throw new IndexOutOfBoundsException("Index: " + index);
+        long address = append(row);
+        int c = chunkOf(index);
+        if (dead[c] != null) compact(c);
+        if (lengths[c] == CHUNK_SIZE) split(c);
+        if (index - starts[c] > lengths[c]) c++;
+        c = writable(c);
+        if (saved != null) saved.changed(index, 1);
+        int at = index - starts[c];
+        System.arraycopy(chunks[c], at, chunks[c], at + 1, lengths[c] - at);
+        chunks[c][at] = address;
+        lengths[c]++;
+        used[c]++;
+        shiftStarts(c + 1, 1);
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public String[] remove(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index);
+        int c = writable(chunkOf(index));
+        if (saved != null) saved.changed(index, -1);
+        long address = bury(c, Tombstones.slotOf(dead[c], index - starts[c]));
+        String[] row = decode(address);
+        if (lengths[c] == 0) {
+            removeChunk(c);
+        } else {
+            shiftStarts(c + 1, -1);
+            if (used[c] - lengths[c] >= Tombstones.RECLAIM_AT) compact(c);
+        }
+        size--;
+        modCount++;
+        release(address);
+        reclaim();
+        return row;
+    }
+
+    @Override
+    public void clear() {
+        checkWritable();
+        chunks = new long[4][];
+        lengths = new int[4];
+        used = new int[4];
+        dead = new long[4][];
+        starts = new int[4];
+        owners = new long[4];
+        chunkCount = 0;
+        size = 0;
+        dropArenas();
+        saved = null;
+        modCount++;
+    }
+
+    /** Marks the matching rows deleted in one pass, chunk by chunk, without moving the others. */
+    @Override
+    public boolean removeIf(Predicate<? super String[]> filter) {
+        checkWritable();
+        int removed = 0;
+        int index = 0;   // list index of the next live row, counting the ones removed so far as gone
+        for (int c = 0; c < chunkCount; c++) {
+            int before = lengths[c];
+            for (int slot = 0; slot < used[c]; slot++) {
+                if (Tombstones.isDead(dead[c], slot)) continue;
+                if (!filter.test(decode(chunks[c][slot]))) {
+                    index++;
+                    continue;
+                }
+                if (owners[c] != version.get()) writable(c);
+                if (saved != null) saved.changed(index, -1);
+                release(bury(c, slot));
+            }
+            removed += before - lengths[c];
+        }
+        if (removed == 0) return false;
+        int start = 0;
+        for (int c = 0; c < chunkCount; c++) {
+            if (lengths[c] == 0) {
+                removeChunk(c--);
+                continue;
+            }
+            starts[c] = start;
+            start += lengths[c];
+            if (used[c] - lengths[c] >= Tombstones.RECLAIM_AT) compact(c);
+        }
+        size -= removed;
+        modCount++;
+        reclaim();
+        return true;
+    }
+
+    /**
+     * Records that the rows as they are now were saved to {@code entry}'s
+     * blocks. Needs the table's write lock or all of the database's read
+     * locks.
+     */
+    void markSaved(SecdbFormat.TableEntry entry) {
+        saved = new VersionedRowList.SavedBlocks(entry);
+    }
+
+    /** Feeds the rows to a block writer; see {@link VersionedRowList.SavedBlocks#write}. */
+    void writeBlocks(SecdbFormat.BlockWriter out) throws IOException {
+        VersionedRowList.SavedBlocks.write(saved, out, size, this::writeRows);
+    }
+
+    private void writeRows(SecdbFormat.BlockWriter out, int from, int to) throws IOException {
+        if (from >= to) return;
+        int c = chunkOf(from);
+        int slot = Tombstones.slotOf(dead[c], from - starts[c]);
+        for (int index = from; index < to; index++) {
+            while (slot == used[c] || Tombstones.isDead(dead[c], slot)) {
+                if (slot == used[c]) {
+                    c++;
+                    slot = 0;
+                } else {
+                    slot++;
+                }
+            }
+            out.addRow(decode(chunks[c][slot++]));
+        }
+    }
+
+    /** Walks the chunks directly instead of looking up every index. */
+    @Override
+    public Iterator<String[]> iterator() {
+        return new Iterator<String[]>() {
+            private final int expectedModCount = modCount;
+            private int chunk = 0;
+            private int slot = 0;
+            private int returned = 0;
+
+            @Override
+            public boolean hasNext() {
+                return returned < size;
+            }
+
+            @Override
+            public String[] next() {
+                if (modCount != expectedModCount) throw new ConcurrentModificationException();
+                if (!hasNext()) throw new NoSuchElementException();
+                while (slot == used[chunk] || Tombstones.isDead(dead[chunk], slot)) {
+                    if (slot == used[chunk]) {
+                        chunk++;
+                        slot = 0;
+                    } else {
+                        slot++;
+                    }
+                }
+                returned++;
+                return decode(chunks[chunk][slot++]);
+            }
+        };
+    }
+
+    // Writes the row as a new record and returns its address
+    private long append(String[] row) {
+        byte[][] cells = new byte[row.length][];
+        int length = varintSize(row.length);
+        for (int i = 0; i < row.length; i++) {
+            if (row[i] == null) {
+                length++;
+                continue;
+            }
+            cells[i] = row[i].getBytes(StandardCharsets.UTF_8);
+            length += varintSize(cells[i].length + 1) + cells[i].length;
+        }
+        ByteBuffer arena = arenaCount == 0 ? null : arenas[arenaCount - 1];
+        if (arena == null || arena.remaining() < length) arena = newArena(length);
+        long address = (long) (arenaCount - 1) << 32 | arena.position();
+        SecdbFormat.putVarint(arena, row.length);
+        for (byte[] cell : cells) {
+            if (cell == null) {
+                arena.put((byte) 0);
+            } else {
+                SecdbFormat.putVarint(arena, cell.length + 1);
+                arena.put(cell);
+            }
+        }
+        usedBytes += length;
+        liveBytes += length;
+        return address;
+    }
+
+    private String[] decode(long address) {
+        ByteBuffer buf = arenas[(int) (address >>> 32)].duplicate();
+        buf.position((int) address);
+        String[] row = new String[SecdbFormat.getVarint(buf)];
+        for (int i = 0; i < row.length; i++) {
+            int v = SecdbFormat.getVarint(buf);
+            if (v == 0) continue;
+            row[i] = text(buf, buf.position(), v - 1);
+            buf.position(buf.position() + v - 1);
+        }
+        return row;
+    }
+
+    private static String text(ByteBuffer buf, int start, int length) {
+        if (buf.hasArray()) return new String(buf.array(), buf.arrayOffset() + start, length, StandardCharsets.UTF_8);
+        byte[] utf8 = new byte[length];
+        buf.get(start, utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /** A view for reading rows of this list in place; each thread needs its own. */
+    RowView view() {
+        return new RowView();
+    }
+
+    /**
+     * One row of the list at a time, read straight from its record: moving
+     * to a row only notes where its cells are, and a cell is decoded when it
+     * is asked for, or not at all when it is copied out as JSON.
+     */
+    class RowView {
+        private ByteBuffer buf;
+        private int cellCount;
+        private int[] starts = new int[8];    // first UTF-8 byte of each cell
+        private int[] lengths = new int[8];   // its length, -1 for null
+
+        /** Points the view at the row at {@code index}. */
+        RowView moveTo(int index) {
+            if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index);
+            int c = chunkOf(index);
+            long address = chunks[c][Tombstones.slotOf(dead[c], index - PackedRowList.this.starts[c])];
+            buf = arenas[(int) (address >>> 32)].duplicate();
+            buf.position((int) address);
+            cellCount = SecdbFormat.getVarint(buf);
+            if (cellCount > starts.length) {
+                starts = new int[cellCount];
+                lengths = new int[cellCount];
+            }
+            for (int i = 0; i < cellCount; i++) {
+                int v = SecdbFormat.getVarint(buf);
+                starts[i] = buf.position();
+                lengths[i] = v - 1;
+                if (v > 0) buf.position(buf.position() + v - 1);
+            }
+            return this;
+        }
+
+        int cellCount() {
+            return cellCount;
+        }
+
+        String cell(int i) {
+            return lengths[i] < 0 ? null : text(buf, starts[i], lengths[i]);
+        }
+
+        /** Writes the row as a JSON array of strings, null cells as "". */
+        void writeJson(ByteArrayOutputStream out) {
+            out.write('[');
+            for (int i = 0; i < cellCount; i++) {
+                if (i > 0) out.write(',');
+                JsonUtils.writeQuoted(out, buf, starts[i], Math.max(lengths[i], 0));
+            }
+            out.write(']');
+        }
+    }
+
+    // A record is no longer referred to
+    private void release(long address) {
+        liveBytes -= recordLength(arenas[(int) (address >>> 32)].duplicate(), (int) address);
+    }
+
+    // Copies the live records into new arenas once most of the space is dead
+    private void reclaim() {
+        long deadBytes = usedBytes - liveBytes;
+        if (deadBytes <= liveBytes || deadBytes < MIN_COMPACT_BYTES) return;
+        long[] live = new long[size];
+        int n = 0;
+        for (int c = 0; c < chunkCount; c++) {
+            for (int slot = 0; slot < used[c]; slot++) {
+                if (!Tombstones.isDead(dead[c], slot)) live[n++] = chunks[c][slot];
+            }
+        }
+        rebuild(live, n);
+    }
+
+    // Replaces the chunks and arenas with fresh ones holding copies of the given records
+    private void rebuild(long[] addresses, int count) {
+        ByteBuffer[] oldArenas = arenas;
+        long[][] newChunks = new long[Math.max(4, (count + CHUNK_SIZE - 1) / CHUNK_SIZE)][];
+        int[] newLengths = new int[newChunks.length];
+        int[] newStarts = new int[newChunks.length];
+        dropArenas();
+        for (int r = 0; r < count; r++) {
+            long address = addresses[r];
+            ByteBuffer source = oldArenas[(int) (address >>> 32)].duplicate();
+            int length = recordLength(source, (int) address);
+            source.position((int) address).limit((int) address + length);
+            ByteBuffer arena = arenaCount == 0 ? null : arenas[arenaCount - 1];
+            if (arena == null || arena.remaining() < length) arena = newArena(length);
+            int c = r / CHUNK_SIZE;
+            if (newChunks[c] == null) {
+                newChunks[c] = new long[CHUNK_SIZE];
+                newStarts[c] = r;
+            }
+            newChunks[c][newLengths[c]++] = (long) (arenaCount - 1) << 32 | arena.position();
+            arena.put(source);
+            usedBytes += length;
+            liveBytes += length;
+        }
+        chunks = newChunks;
+        lengths = newLengths;
+        used = Arrays.copyOf(newLengths, newLengths.length);
+        dead = new long[newChunks.length][];
+        starts = newStarts;
+        chunkCount = (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        owners = new long[newChunks.length];
+        Arrays.fill(owners, version.get());
+        size = count;
+        modCount++;
+    }
+
+    // Walks one record from start, leaving the buffer's position after it
+    private static int recordLength(ByteBuffer buf, int start) {
+        buf.position(start);
+        int cells = SecdbFormat.getVarint(buf);
+        for (int i = 0; i < cells; i++) {
+            int v = SecdbFormat.getVarint(buf);
+            if (v > 0) buf.position(buf.position() + v - 1);
+        }
+        return buf.position() - start;
+    }
+
+    // Arenas start small so small tables stay small, and double up to MAX_ARENA_SIZE
+    private ByteBuffer newArena(int minimum) {
+        int capacity = arenaCount == 0 ? FIRST_ARENA_SIZE
+                : (int) Math.min(MAX_ARENA_SIZE, arenas[arenaCount - 1].capacity() * 2L);
+        int length = Math.max(capacity, minimum);
+        ByteBuffer arena = direct ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+        if (arenaCount == arenas.length) arenas = Arrays.copyOf(arenas, arenaCount * 2);
+        arenas[arenaCount++] = arena;
+        allocatedBytes += arena.capacity();
+        return arena;
+    }
+
+    // Snapshots still holding the old arenas keep them alive; the rest are freed with their buffers
+    private void dropArenas() {
+        arenas = new ByteBuffer[4];
+        arenaCount = 0;
+        allocatedBytes = 0;
+        usedBytes = 0;
+        liveBytes = 0;
+    }
+
+    private static int varintSize(int value) {
+        int bytes = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            bytes++;
+        }
+        return bytes;
+    }
+
+    private void checkWritable() {
+        if (frozen) throw new UnsupportedOperationException("Snapshots are read-only");
+    }
+
+    // The chunk, copied first if a snapshot may still be reading it
+    private int writable(int c) {
+        checkWritable();
+        if (owners[c] != version.get()) {
+            chunks[c] = Arrays.copyOf(chunks[c], CHUNK_SIZE);
+            if (dead[c] != null) dead[c] = dead[c].clone();
+            owners[c] = version.get();
+        }
+        return c;
+    }
+
+    // Marks a slot of a writable chunk deleted and returns the address it held
+    private long bury(int c, int slot) {
+        long address = chunks[c][slot];
+        if (slot == used[c] - 1 && dead[c] == null) {
+            used[c]--;
+        } else {
+            if (dead[c] == null) dead[c] = Tombstones.create(CHUNK_SIZE);
+            Tombstones.mark(dead[c], slot);
+        }
+        lengths[c]--;
+        return address;
+    }
+
+    // Moves a chunk's live addresses together into a fresh array and drops its bitmap
+    private void compact(int c) {
+        checkWritable();
+        long[] live = new long[CHUNK_SIZE];
+        int n = 0;
+        for (int slot = 0; slot < used[c]; slot++) {
+            if (!Tombstones.isDead(dead[c], slot)) live[n++] = chunks[c][slot];
+        }
+        chunks[c] = live;
+        used[c] = n;
+        dead[c] = null;
+        owners[c] = version.get();
+    }
+
+    private int chunkOf(int index) {
+        // Chunks are never empty, so starts are strictly increasing
+        int c = Arrays.binarySearch(starts, 0, chunkCount, index);
+        return c >= 0 ? c : -c - 2;
+    }
+
+    private void split(int c) {
+        int half = lengths[c] / 2;
+        long[] upper = new long[CHUNK_SIZE];
+        System.arraycopy(chunks[c], half, upper, 0, lengths[c] - half);
+        long[] lower = Arrays.copyOf(chunks[c], CHUNK_SIZE);
+        int upperLength = lengths[c] - half;
+        chunks[c] = lower;
+        owners[c] = version.get();
+        lengths[c] = half;
+        used[c] = half;
+        insertChunk(c + 1, upper);
+        lengths[c + 1] = upperLength;
+        used[c + 1] = upperLength;
+        starts[c + 1] = starts[c] + half;
+    }
+
+    private void insertChunk(int at, long[] chunk) {
+        if (chunkCount == chunks.length) {
+            int capacity = chunks.length * 2;
+            chunks = Arrays.copyOf(chunks, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            used = Arrays.copyOf(used, capacity);
+            dead = Arrays.copyOf(dead, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            owners = Arrays.copyOf(owners, capacity);
+        }
+        int moved = chunkCount - at;
+        System.arraycopy(chunks, at, chunks, at + 1, moved);
+        System.arraycopy(lengths, at, lengths, at + 1, moved);
+        System.arraycopy(used, at, used, at + 1, moved);
+        System.arraycopy(dead, at, dead, at + 1, moved);
+        System.arraycopy(starts, at, starts, at + 1, moved);
+        System.arraycopy(owners, at, owners, at + 1, moved);
+        chunks[at] = chunk;
+        lengths[at] = 0;
+        used[at] = 0;
+        dead[at] = null;
+        starts[at] = at == 0 ? 0 : starts[at - 1] + lengths[at - 1];
+        owners[at] = version.get();
+        chunkCount++;
+    }
+
+    private void removeChunk(int c) {
+        int moved = chunkCount - c - 1;
+        System.arraycopy(chunks, c + 1, chunks, c, moved);
+        System.arraycopy(lengths, c + 1, lengths, c, moved);
+        System.arraycopy(used, c + 1, used, c, moved);
+        System.arraycopy(dead, c + 1, dead, c, moved);
+        System.arraycopy(starts, c + 1, starts, c, moved);
+        System.arraycopy(owners, c + 1, owners, c, moved);
+        chunkCount--;
+        chunks[chunkCount] = null;
+        dead[chunkCount] = null;
+        shiftStarts(c, -1);
+    }
+
+    private void shiftStarts(int from, int delta) {
+        for (int i = from; i < chunkCount; i++) starts[i] += delta;
+    }
+}
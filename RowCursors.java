@@ -0,0 +1,88 @@
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Paging cursors for /api/getrows. A cursor holds the table snapshot its
+ * first page was read from, so following pages neither skip nor repeat rows
+ * however the table changes in between. A cursor is dropped once its last
+ * page was read or when it sat unused for the timeout, which lets its
+ * snapshot be reclaimed.
+ */
+public class RowCursors {
+    private final Map<String, Cursor> cursors = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final long timeoutMillis;
+    private final int maxCursors;
+
+    RowCursors(long timeoutMillis, int maxCursors) {
+        this.timeoutMillis = timeoutMillis;
+        this.maxCursors = maxCursors;
+    }
+
+    static class Cursor {
+        final String id;
+        final String database;
+        final String table;
+        final List<String[]> rows;
+        private int position;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private Cursor(String id, String database, String table, List<String[]> rows) {
+            this.id = id;
+            this.database = database;
+            this.table = table;
+            this.rows = rows;
+        }
+
+        /** Moves past the next {@code limit} rows of the snapshot; returns the index of the first. */
+        synchronized int advance(int limit) {
+            int from = position;
+            position = Math.min(rows.size(), from + limit);
+            lastUsed = System.currentTimeMillis();
+            return from;
+        }
+
+        synchronized boolean isDone() {
+            return position >= rows.size();
+        }
+    }
+
+    /** Starts a cursor over a snapshot of {@code table}. */
+    Cursor open(String database, String table, List<String[]> snapshot) {
+        expire();
+        if (cursors.size() >= maxCursors) {
+            // Make room by dropping the cursor that has waited longest
+            cursors.values().stream().min(Comparator.comparingLong(c -> c.lastUsed))
+                    .ifPresent(oldest -> cursors.remove(oldest.id));
+        }
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        String id = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        Cursor cursor = new Cursor(id, database, table, snapshot);
+        cursors.put(id, cursor);
+        return cursor;
+    }
+
+    /** The open cursor with this id for the same table, or null if unknown or expired. */
+    Cursor get(String id, String database, String table) {
+        expire();
+        Cursor cursor = cursors.get(id);
+        if (cursor == null || !cursor.database.equals(database) || !cursor.table.equals(table)) return null;
+        return cursor;
+    }
+
+    /** Forgets a cursor whose last page has been read. */
+    void close(Cursor cursor) {
+        cursors.remove(cursor.id);
+    }
+
+    int size() {
+        return cursors.size();
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        cursors.values().removeIf(c -> now - c.lastUsed > timeoutMillis);
+    }
+}
@@ -0,0 +1,182 @@
+import java.util.*;
+
+/**
+ * A filter on a table's rows plus optional ordering, offset and limit, as
+ * sent to /api/query and /api/select. Filters are conditions on one column,
+ * combined with AND/OR groups; the top-level filters are AND-ed.
+ * Conditions compare cells in value order: numbers numerically and before
+ * any text, text lexicographically, and a missing or empty cell only
+ * matches an equality test for "".
+ */
+public class RowQuery {
+
+    enum Op {
+        EQ, GT, GTE, LT, LTE, BETWEEN, PREFIX;
+
+        static Op parse(String name) {
+            switch (name.toLowerCase()) {
+                case "eq": case "=": case "==": return EQ;
+                case "gt": case ">": return GT;
+                case "gte": case ">=": return GTE;
+                case "lt": case "<": return LT;
+                case "lte": case "<=": return LTE;
+                case "between": return BETWEEN;
+                case "prefix": return PREFIX;
+                default: throw new IllegalArgumentException("Unknown operator: " + name);
+            }
+        }
+    }
+
+    abstract static class Filter {
+        abstract boolean matches(String[] row);
+    }
+
+    /** Matches when all parts match, or with {@code any} when at least one does. */
+    static class Group extends Filter {
+        final boolean any;
+        final List<Filter> parts;
+
+        Group(boolean any, List<Filter> parts) {
+            this.any = any;
+            this.parts = parts;
+        }
+
+        @Override
+        boolean matches(String[] row) {
+            for (Filter part : parts) {
+                if (part.matches(row) == any) return any;
+            }
+            return !any;
+        }
+    }
+
+    static class Condition extends Filter {
+        final int column;
+        final Op op;
+        final String value;
+        final String value2;   // upper bound for BETWEEN
+        final Value from;
+        final Value to;
+
+        Condition(int column, Op op, String value, String value2) {
+            if (value == null || (op == Op.BETWEEN && value2 == null)) {
+                throw new IllegalArgumentException("Missing value for " + op.name().toLowerCase());
+            }
+            this.column = column;
+            this.op = op;
+            this.value = value;
+            this.value2 = value2;
+            this.from = Value.of(value);
+            this.to = op == Op.BETWEEN ? Value.of(value2) : from;
+        }
+
+        @Override
+        boolean matches(String[] row) {
+            return column < row.length && matches(row[column]);
+        }
+
+        boolean matches(String cell) {
+            return cell != null && matches(Value.of(cell));
+        }
+
+        boolean matches(Value cell) {
+            // Empty cells count as missing, except when asked for explicitly
+            if (cell.text == null || (cell.text.isEmpty() && op != Op.EQ)) return false;
+            switch (op) {
+                case EQ: return cell.compareTo(from) == 0;
+                case GT: return cell.compareTo(from) > 0;
+                case GTE: return cell.compareTo(from) >= 0;
+                case LT: return cell.compareTo(from) < 0;
+                case LTE: return cell.compareTo(from) <= 0;
+                case BETWEEN: return cell.compareTo(from) >= 0 && cell.compareTo(to) <= 0;
+                default: return cell.text.startsWith(value);
+            }
+        }
+    }
+
+    final List<Filter> filters = new ArrayList<>();
+    int orderBy = -1;
+    boolean descending;
+    int offset;
+    int limit = -1;
+    String plan;   // how the last run found its rows, for the API response
+
+    boolean matches(String[] row) {
+        for (Filter f : filters) {
+            if (!f.matches(row)) return false;
+        }
+        return true;
+    }
+
+    /** Sorts rows in place by the order-by column, in value order. */
+    void sort(List<String[]> rows) {
+        Comparator<String[]> order = Comparator.comparing(row -> Value.of(orderBy < row.length ? row[orderBy] : null));
+        rows.sort(descending ? order.reversed() : order);
+    }
+
+    /**
+     * A cell as it sorts: null first, then numbers by value, then text. The
+     * number is parsed once so ordered indexes can compare keys cheaply.
+     */
+    static final class Value implements Comparable<Value> {
+        static final Value FIRST_TEXT = new Value("", Double.NaN);
+
+        final String text;
+        final double number;   // NaN when the text is not a number
+
+        private Value(String text, double number) {
+            this.text = text;
+            this.number = number;
+        }
+
+        static Value of(String text) {
+            return new Value(text, parseNumber(text));
+        }
+
+        /** The value compared as text even if it looks like a number, e.g. for prefixes. */
+        static Value text(String text) {
+            return new Value(text, Double.NaN);
+        }
+
+        boolean isNumber() {
+            return !Double.isNaN(number);
+        }
+
+        @Override
+        public int compareTo(Value other) {
+            if (text == null || other.text == null) {
+                return text == null ? (other.text == null ? 0 : -1) : 1;
+            }
+            if (isNumber() != other.isNumber()) return isNumber() ? -1 : 1;
+            if (isNumber()) {
+                int c = Double.compare(number, other.number);
+                if (c != 0) return c;
+            }
+            return text.compareTo(other.text);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Value && compareTo((Value) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(text);
+        }
+
+        // Plain decimal numbers only; leaves "NaN", "1e5f", " 1" and the like as text
+        private static double parseNumber(String s) {
+            if (s == null || s.isEmpty()) return Double.NaN;
+            char first = s.charAt(0), last = s.charAt(s.length() - 1);
+            if (!(first == '-' || first == '+' || first == '.' || Character.isDigit(first)) || !Character.isDigit(last)) {
+                return Double.NaN;
+            }
+            try {
+                return Double.parseDouble(s);
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+    }
+}
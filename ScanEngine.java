@@ -0,0 +1,132 @@
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.*;
+
+/**
+ * Runs filter and aggregate work over a table's rows. Tables smaller than
+ * the threshold are scanned on the calling thread; larger ones are split
+ * into ranges that run on a fork-join pool of at most {@code parallelism}
+ * threads, so a big scan never takes every core away from request threads.
+ * Partial results are combined left to right, so filtered rows keep table
+ * order.
+ */
+public class ScanEngine {
+    private static final int MIN_RANGE = 4096;
+    private static final int CHECK_INTERVAL = 256;   // rows between checks of whether a stoppable scan is done
+
+    private final int parallelism;
+    private final int threshold;
+    private final ForkJoinPool pool;
+
+    ScanEngine(int parallelism, int threshold) {
+        this.parallelism = Math.max(1, parallelism);
+        this.threshold = threshold;
+        this.pool = this.parallelism > 1 ? new ForkJoinPool(this.parallelism) : null;
+    }
+
+    /** Rows matching {@code filter}, in table order. */
+    List<String[]> filter(List<String[]> rows, Predicate<String[]> filter) {
+        return reduce(rows, ArrayList::new, (found, row) -> {
+            if (filter.test(row)) found.add(row);
+        }, (left, right) -> {
+            left.addAll(right);
+            return left;
+        });
+    }
+
+    boolean anyMatch(List<String[]> rows, Predicate<String[]> filter) {
+        AtomicBoolean found = new AtomicBoolean();
+        // Every range shares the flag, so once one finds a match the others stop too
+        reduce(rows, () -> found, (flag, row) -> {
+            if (filter.test(row)) flag.set(true);
+        }, (left, right) -> left, AtomicBoolean::get);
+        return found.get();
+    }
+
+    /**
+     * Folds the rows into a result: each range starts from {@code identity},
+     * {@code accumulate} adds one row, and {@code combine} merges the result
+     * of a range into the one for the range before it.
+     */
+    <A> A reduce(List<String[]> rows, Supplier<A> identity, BiConsumer<A, String[]> accumulate, BinaryOperator<A> combine) {
+        return reduce(rows, identity, accumulate, combine, null);
+    }
+
+    /**
+     * Like {@link #reduce(List, Supplier, BiConsumer, BinaryOperator)}, but a
+     * range stops adding rows once {@code done} holds for its result, checked
+     * before every row on the calling thread and every
+     * {@link #CHECK_INTERVAL} rows in parallel ranges. Null never stops.
+     */
+    <A> A reduce(List<String[]> rows, Supplier<A> identity, BiConsumer<A, String[]> accumulate, BinaryOperator<A> combine,
+                 Predicate<A> done) {
+        int size = rows.size();
+        if (pool == null || size < threshold || !(rows instanceof RandomAccess)) {
+            A result = identity.get();
+            for (String[] row : rows) {
+                if (done != null && done.test(result)) break;
+                accumulate.accept(result, row);
+            }
+            return result;
+        }
+        int rangeSize = Math.max(MIN_RANGE, size / (parallelism * 4));
+        return pool.invoke(new RangeTask<>(rows, 0, size, rangeSize, identity, accumulate, combine, done));
+    }
+
+    private static class RangeTask<A> extends RecursiveTask<A> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String[]> rows;
+        private final int from;
+        private final int to;
+        private final int rangeSize;
+        private final Supplier<A> identity;
+        private final BiConsumer<A, String[]> accumulate;
+        private final BinaryOperator<A> combine;
+        private final Predicate<A> done;
+
+        RangeTask(List<String[]> rows, int from, int to, int rangeSize, Supplier<A> identity,
+                  BiConsumer<A, String[]> accumulate, BinaryOperator<A> combine, Predicate<A> done) {
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+            this.rangeSize = rangeSize;
+            this.identity = identity;
+            this.accumulate = accumulate;
+            this.combine = combine;
+            this.done = done;
+        }
+
+        @Override
+        protected A compute() {
+            if (to - from <= rangeSize) {
+                A result = identity.get();
+                if (done == null) {
+                    accumulate(result, from, to);
+                    return result;
+                }
+                for (int start = from; start < to && !done.test(result); start += CHECK_INTERVAL) {
+                    accumulate(result, start, Math.min(to, start + CHECK_INTERVAL));
+                }
+                return result;
+            }
+            int mid = (from + to) >>> 1;
+            RangeTask<A> right = new RangeTask<>(rows, mid, to, rangeSize, identity, accumulate, combine, done);
+            right.fork();
+            A left = new RangeTask<>(rows, from, mid, rangeSize, identity, accumulate, combine, done).compute();
+            return combine.apply(left, right.join());
+        }
+
+        private void accumulate(A result, int from, int to) {
+            if (rows instanceof MappedRowList) {
+                ((MappedRowList) rows).forEach(from, to, row -> accumulate.accept(result, row));
+            } else if (rows instanceof VersionedRowList) {
+                ((VersionedRowList) rows).forEach(from, to, row -> accumulate.accept(result, row));
+            } else {
+                for (int i = from; i < to; i++) accumulate.accept(result, rows.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,841 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * On-disk layout of .secdb files (version 1), all integers big-endian:
+ *
+ * <pre>
+ * header     64 bytes  magic "NDLX", u16 version, u16 flags (bit 0: encrypted, bit 1: block codecs,
+ *                      bit 2: block dictionaries, bit 3: bound sealing), u64 directory offset,
+ *                      u32 directory length, u32 directory CRC32C, u64 file id,
+ *                      u64 generation, reserved, u32 CRC32C of the preceding 60 bytes
+ * blocks     ...       u32 payload length, u32 row count, u32 payload CRC32C, payload
+ *                      payload = rows of (varint cell count, cells of (varint length + 1, UTF-8)),
+ *                      a length of 0 meaning null
+ * directory  ...       u32 table count, then per table: name, columns, properties,
+ *                      u64 row count, u32 block count, (u64 offset, u32 rows) per block
+ * </pre>
+ *
+ * Strings in the directory are u32 length + UTF-8. Blocks hold roughly
+ * {@link #BLOCK_SIZE} bytes of rows so a table can be read block by block.
+ *
+ * With block dictionaries, text repeated within a block is stored once: a
+ * cell is 0 for null, 2 * (length + 1) followed by UTF-8 for new text, or
+ * 2 * code + 1 for text seen before, where the n-th distinct text of the
+ * block (up to {@link #BLOCK_DICTIONARY_SIZE}) has code n. Low-cardinality
+ * columns shrink to a byte or two per cell, and rows read from a block share
+ * one String per repeated value.
+ *
+ * With block codecs, a payload starts with the id of the {@link BlockCodec}
+ * that packed it, followed for packed blocks by the varint unpacked length;
+ * id 0 means the rows follow as they are. Rows are packed before they are
+ * encrypted, as encrypted data doesn't compress.
+ *
+ * In an encrypted file every block payload and the directory are stored
+ * AES-GCM sealed (see {@link CryptoUtils#sealBlock}); a block's row count is
+ * authenticated with it. Checksums cover the stored bytes, so damage is
+ * still told apart from a wrong key, and a block is decrypted only when it
+ * is read.
+ *
+ * With bound sealing, a block is also sealed together with the file id,
+ * its table's name and its offset, so it can't be moved to another table,
+ * position or file; copying it elsewhere seals it again. The directory is
+ * sealed together with the header, less the checksums, which authenticates
+ * the directory pointer, and the generation goes up with every save. Once an
+ * append has put a new header in place it wipes the directory it replaces,
+ * so the header can't be turned back to an older one either. The file id is
+ * new for every file written whole; appends and compaction keep it.
+ *
+ * A file is either written whole ({@link #write}) or extended in place
+ * ({@link #append}), in which case blocks and directories that are no
+ * longer referenced stay behind as dead space until the file is compacted.
+ */
+public class SecdbFormat {
+    static final int MAGIC = 0x4E444C58; // "NDLX"
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int BLOCK_HEADER_SIZE = 12;
+    static final int BLOCK_SIZE = 64 * 1024;
+    static final short FLAG_ENCRYPTED = 1;
+    static final short FLAG_CODECS = 2;
+    static final short FLAG_DICTIONARY = 4;
+    static final short FLAG_BOUND = 8;
+    static final int BLOCK_DICTIONARY_SIZE = 4096;
+
+    /** Directory entry for one table. */
+    static class TableEntry {
+        final String name;
+        final List<String> columns;
+        final Map<String, String> properties;
+        long rowCount;
+        long[] blockOffsets;
+        int[] blockRows;
+        int stamp;   // header checksum of the file this entry was read from or written to
+        short flags; // header flags of that file
+        long fileId; // file id in that header
+        long rawBytes, storedBytes;   // size of the blocks the last save wrote, before and after packing; not stored
+
+        boolean encrypted() {
+            return (flags & FLAG_ENCRYPTED) != 0;
+        }
+
+        TableEntry(String name, List<String> columns, Map<String, String> properties) {
+            this.name = name;
+            this.columns = columns;
+            this.properties = properties;
+        }
+    }
+
+    /** True if the file is an old ObjectOutputStream dump rather than this format. */
+    static boolean isLegacy(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readUnsignedShort() == 0xACED; // ObjectStreamConstants.STREAM_MAGIC
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes all tables to a temporary file next to {@code file} and moves it
+     * into place, so a crash mid-write never leaves a half-written database.
+     * The file is encrypted if a database key is set, and new blocks are
+     * packed with {@code codec}. Returns the directory of the file just
+     * written.
+     */
+    static List<TableEntry> write(File file, Map<String, List<String>> headers, Map<String, List<String[]>> tables,
+                                  Map<String, Map<String, String>> properties, BlockCodec codec) throws IOException {
+        Path target = file.toPath();
+        Path tmp = target.resolveSibling(file.getName() + ".tmp");
+        List<TableEntry> directory;
+
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            short flags = newFileFlags();
+            long fileId = ThreadLocalRandom.current().nextLong();
+            ch.position(HEADER_SIZE);
+            directory = writeTables(new BlockWriter(ch, 0, flags, fileId, codec), headers, tables, properties);
+            finish(ch, directory, flags, fileId, 1);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return directory;
+    }
+
+    /**
+     * Saves by extending the file instead of rewriting it. Blocks the tables
+     * still use stay where they are; only new blocks and a new directory are
+     * appended. The header is rewritten last, once the appended data is on
+     * disk, so a crash before that leaves the previous directory in effect.
+     * A file whose blocks are laid out differently from new ones, being
+     * encrypted differently or older, is rewritten instead. Returns the
+     * directory of the file as saved.
+     */
+    static List<TableEntry> append(File file, Map<String, List<String>> headers, Map<String, List<String[]>> tables,
+                                   Map<String, Map<String, String>> properties, BlockCodec codec) throws IOException {
+        short flags = newFileFlags();
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (readFlags(ch) == flags) {
+                ByteBuffer old = ByteBuffer.allocate(HEADER_SIZE);
+                readFully(ch, old, 0);
+                long fileId = old.getLong(24);
+                ch.position(ch.size());
+                List<TableEntry> directory = writeTables(new BlockWriter(ch, old.getInt(HEADER_SIZE - 4), flags, fileId, codec),
+                        headers, tables, properties);
+                finish(ch, directory, flags, fileId, old.getLong(32) + 1);
+                if ((flags & FLAG_BOUND) != 0) {
+                    // Left in place, the old directory would still open, under the old header; the next save's force flushes this
+                    writeFully(ch.position(old.getLong(8)), ByteBuffer.allocate(old.getInt(16)));
+                }
+                return directory;
+            }
+        }
+        return write(file, headers, tables, properties, codec);
+    }
+
+    private static short newFileFlags() {
+        return (short) (FLAG_CODECS | FLAG_DICTIONARY | (CryptoUtils.hasDatabaseKey() ? FLAG_ENCRYPTED | FLAG_BOUND : 0));
+    }
+
+    private static List<TableEntry> writeTables(BlockWriter blocks, Map<String, List<String>> headers,
+                                                Map<String, List<String[]>> tables,
+                                                Map<String, Map<String, String>> properties) throws IOException {
+        List<TableEntry> directory = new ArrayList<>();
+        for (Map.Entry<String, List<String>> e : headers.entrySet()) {
+            TableEntry entry = new TableEntry(e.getKey(), e.getValue(),
+                    new LinkedHashMap<>(properties.getOrDefault(e.getKey(), Collections.emptyMap())));
+            blocks.writeTable(entry, tables.getOrDefault(e.getKey(), Collections.emptyList()));
+            directory.add(entry);
+        }
+        return directory;
+    }
+
+    /**
+     * Writes the directory at the channel's position, then the header that
+     * points to it, and stamps the entries with the new header checksum.
+     * {@code flags} and {@code fileId} must match how the blocks were
+     * written; {@code generation} must be higher than the file's last one.
+     */
+    static void finish(FileChannel ch, List<TableEntry> directory, short flags, long fileId, long generation)
+            throws IOException {
+        boolean encrypted = (flags & FLAG_ENCRYPTED) != 0;
+        ByteBuffer dir = encodeDirectory(directory);
+        long dirOffset = ch.position();
+        int dirLength = dir.remaining() + (encrypted ? CryptoUtils.OVERHEAD : 0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putShort(VERSION).putShort(flags)
+              .putLong(dirOffset).putInt(dirLength).putInt(0).putLong(fileId).putLong(generation);
+        if (encrypted) dir = ByteBuffer.wrap(CryptoUtils.sealBlock(dir.array(), 0, dir.remaining(), directoryAad(header)));
+        int dirCrc = crc(dir.array(), 0, dirLength);
+        writeFully(ch, dir);
+        ch.force(false);
+
+        header.putInt(20, dirCrc);
+        int stamp = crc(header.array(), 0, HEADER_SIZE - 4);
+        header.putInt(HEADER_SIZE - 4, stamp);
+        header.rewind();
+        ch.position(0);
+        writeFully(ch, header);
+        ch.force(false);
+        for (TableEntry entry : directory) {
+            entry.stamp = stamp;
+            entry.flags = flags;
+            entry.fileId = fileId;
+        }
+    }
+
+    // What the directory is sealed together with: the header up to the generation, less the directory checksum
+    private static byte[] directoryAad(ByteBuffer header) {
+        if ((header.getShort(6) & FLAG_BOUND) == 0) return null;
+        byte[] aad = Arrays.copyOf(header.array(), 40);
+        Arrays.fill(aad, 20, 24, (byte) 0);
+        return aad;
+    }
+
+    // What a block is sealed together with: its row count, and with bound sealing its file, table and offset
+    private static byte[] blockAad(short flags, long fileId, String table, long offset, int rowCount) {
+        if ((flags & FLAG_BOUND) == 0) return ByteBuffer.allocate(4).putInt(rowCount).array();
+        byte[] name = table.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(20 + name.length).putLong(fileId).putLong(offset).putInt(rowCount).put(name).array();
+    }
+
+    /**
+     * Bytes of the file that the directory still refers to: header, blocks
+     * and the directory itself. The rest of the file is dead space left by
+     * appends.
+     */
+    static long liveBytes(FileChannel ch, List<TableEntry> directory) throws IOException {
+        long live = HEADER_SIZE + encodeDirectory(directory).remaining();
+        if (!directory.isEmpty() && directory.get(0).encrypted()) live += CryptoUtils.OVERHEAD;
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        for (TableEntry entry : directory) {
+            for (long offset : entry.blockOffsets) {
+                header.clear();
+                readFully(ch, header, offset);
+                live += BLOCK_HEADER_SIZE + header.getInt(0);
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Copies one block (header and payload) of {@code entry} from {@code src}
+     * to the end of {@code dst}, a file with the same file id, and returns
+     * its size in bytes. A block under bound sealing is sealed again for
+     * its new offset.
+     */
+    static long copyBlock(FileChannel src, TableEntry entry, int block, FileChannel dst) throws IOException {
+        long offset = entry.blockOffsets[block];
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        readFully(src, header, offset);
+        int length = header.getInt(0);
+        if ((entry.flags & FLAG_BOUND) != 0) {
+            ByteBuffer stored = ByteBuffer.allocate(length);
+            readFully(src, stored, offset + BLOCK_HEADER_SIZE);
+            int rowCount = entry.blockRows[block];
+            writeBlock(dst, reseal(entry, offset, stored.flip(), rowCount, entry.fileId, dst.position()), rowCount);
+            return BLOCK_HEADER_SIZE + length;
+        }
+        long position = offset;
+        long end = offset + BLOCK_HEADER_SIZE + length;
+        while (position < end) position += src.transferTo(position, end - position, dst);
+        return end - offset;
+    }
+
+    /**
+     * A block payload of {@code source}'s table stored at {@code offset},
+     * sealed again for a block at {@code newOffset} of the file with id
+     * {@code fileId}. The payload is authenticated, not unpacked.
+     */
+    private static ByteBuffer reseal(TableEntry source, long offset, ByteBuffer stored, int rowCount,
+                                     long fileId, long newOffset) throws IOException {
+        ByteBuffer data = CryptoUtils.openBlock(stored, blockAad(source.flags, source.fileId, source.name, offset, rowCount));
+        byte[] plain = new byte[data.remaining()];
+        data.get(plain);
+        return ByteBuffer.wrap(CryptoUtils.sealBlock(plain, 0, plain.length,
+                blockAad(source.flags, fileId, source.name, newOffset, rowCount)));
+    }
+
+    // Writes a block header for the stored payload, then the payload, at the channel's position
+    private static void writeBlock(FileChannel ch, ByteBuffer stored, int rowCount) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        header.putInt(stored.remaining()).putInt(rowCount).putInt(crc(stored)).flip();
+        writeFully(ch, header);
+        writeFully(ch, stored);
+    }
+
+    /** Reads the header and table directory without touching any row data. */
+    static List<TableEntry> readDirectory(FileChannel ch) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        ByteBuffer dir;
+        // An appending save rewrites the header in place and then wipes the directory it replaced;
+        // a read that caught the header half-written, or read it just before, is retried
+        for (int attempt = 1; ; attempt++) {
+            header.clear();
+            readFully(ch, header, 0);
+            if (header.getInt(0) != MAGIC) throw new IOException("Not a Nodalix database file");
+            if (header.getInt(HEADER_SIZE - 4) != crc(header.array(), 0, HEADER_SIZE - 4)) {
+                if (attempt == 3) throw new IOException("Corrupt database header");
+                continue;
+            }
+            short version = header.getShort(4);
+            if (version != VERSION) throw new IOException("Unsupported database format version " + version);
+            try {
+                dir = readDirectoryData(ch, header);
+                break;
+            } catch (IOException e) {
+                if (attempt == 3 || readStamp(ch) == header.getInt(HEADER_SIZE - 4)) throw e;
+            }
+        }
+        int stamp = header.getInt(HEADER_SIZE - 4);
+        short flags = header.getShort(6);
+        long fileId = header.getLong(24);
+
+        int tableCount = dir.getInt();
+        List<TableEntry> directory = new ArrayList<>(tableCount);
+        for (int t = 0; t < tableCount; t++) {
+            String name = getString(dir);
+            int columnCount = dir.getInt();
+            List<String> columns = new ArrayList<>(columnCount);
+            for (int c = 0; c < columnCount; c++) columns.add(getString(dir));
+            int propertyCount = dir.getInt();
+            Map<String, String> properties = new LinkedHashMap<>();
+            for (int p = 0; p < propertyCount; p++) properties.put(getString(dir), getString(dir));
+
+            TableEntry entry = new TableEntry(name, columns, properties);
+            entry.stamp = stamp;
+            entry.flags = flags;
+            entry.fileId = fileId;
+            entry.rowCount = dir.getLong();
+            int blockCount = dir.getInt();
+            entry.blockOffsets = new long[blockCount];
+            entry.blockRows = new int[blockCount];
+            for (int b = 0; b < blockCount; b++) {
+                entry.blockOffsets[b] = dir.getLong();
+                entry.blockRows[b] = dir.getInt();
+            }
+            directory.add(entry);
+        }
+        return directory;
+    }
+
+    // The directory the header points to, checksummed and, if the file is encrypted, decrypted
+    private static ByteBuffer readDirectoryData(FileChannel ch, ByteBuffer header) throws IOException {
+        long dirOffset = header.getLong(8);
+        int dirLength = header.getInt(16);
+        if (dirOffset < HEADER_SIZE || dirLength < 0 || dirOffset + dirLength > ch.size()) {
+            throw new IOException("Corrupt table directory");
+        }
+        ByteBuffer dir = ByteBuffer.allocate(dirLength);
+        readFully(ch, dir, dirOffset);
+        if (crc(dir.array(), 0, dirLength) != header.getInt(20)) throw new IOException("Corrupt table directory");
+        dir.flip();
+        if ((header.getShort(6) & FLAG_ENCRYPTED) != 0) dir = CryptoUtils.openBlock(dir, directoryAad(header));
+        return dir;
+    }
+
+    /**
+     * Returns the header checksum, which changes whenever the file is
+     * rewritten, so entries can be checked against the file before use.
+     */
+    static int readStamp(FileChannel ch) throws IOException {
+        ByteBuffer stamp = ByteBuffer.allocate(4);
+        readFully(ch, stamp, HEADER_SIZE - 4);
+        return stamp.getInt(0);
+    }
+
+    /** The file id, which blocks under bound sealing are sealed with; see {@link #copyBlock}. */
+    static long readFileId(FileChannel ch) throws IOException {
+        ByteBuffer fileId = ByteBuffer.allocate(8);
+        readFully(ch, fileId, 24);
+        return fileId.getLong(0);
+    }
+
+    /** The generation, which every save of the file raises. */
+    static long readGeneration(FileChannel ch) throws IOException {
+        ByteBuffer generation = ByteBuffer.allocate(8);
+        readFully(ch, generation, 32);
+        return generation.getLong(0);
+    }
+
+    /** The header flags: how the file's blocks and directory are stored. */
+    static short readFlags(FileChannel ch) throws IOException {
+        ByteBuffer flags = ByteBuffer.allocate(2);
+        readFully(ch, flags, 6);
+        return flags.getShort(0);
+    }
+
+    /**
+     * The rows of a block payload whose checksum was verified: decrypted and
+     * unpacked as the table's file says, or {@code stored} itself if it is
+     * neither.
+     */
+    static ByteBuffer rowData(TableEntry entry, long offset, ByteBuffer stored, int rowCount) throws IOException {
+        ByteBuffer data = entry.encrypted()
+                ? CryptoUtils.openBlock(stored, blockAad(entry.flags, entry.fileId, entry.name, offset, rowCount))
+                : stored;
+        if ((entry.flags & FLAG_CODECS) == 0) return data;
+        data = data.duplicate();
+        int codec = data.get() & 0xFF;
+        if (codec == 0) return data.slice();
+        int rawLength = getVarint(data);
+        return BlockCodec.forId(codec).decode(data.slice(), rawLength);
+    }
+
+    /** Reads and checksums every block of one table. */
+    static List<String[]> readRows(FileChannel ch, TableEntry entry) throws IOException {
+        List<String[]> rows = new ArrayList<>((int) Math.min(entry.rowCount, Integer.MAX_VALUE));
+        forEachRow(ch, entry, rows::add);
+        return rows;
+    }
+
+    /** Reads and checksums every block of one table, passing its rows on one at a time. */
+    static void forEachRow(FileChannel ch, TableEntry entry, Consumer<String[]> action) throws IOException {
+        ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        ByteBuffer payload = ByteBuffer.allocate(BLOCK_SIZE * 2);
+        for (long offset : entry.blockOffsets) {
+            blockHeader.clear();
+            readFully(ch, blockHeader, offset);
+            int length = blockHeader.getInt(0);
+            int rowCount = blockHeader.getInt(4);
+            int expectedCrc = blockHeader.getInt(8);
+
+            if (payload.capacity() < length) payload = ByteBuffer.allocate(length);
+            payload.clear().limit(length);
+            readFully(ch, payload, offset + BLOCK_HEADER_SIZE);
+            if (crc(payload.array(), 0, length) != expectedCrc) {
+                throw new IOException("Checksum mismatch in table '" + entry.name + "' at offset " + offset);
+            }
+            payload.flip();
+            RowReader reader = new RowReader(entry, rowData(entry, offset, payload, rowCount));
+            for (int r = 0; r < rowCount; r++) action.accept(reader.next());
+        }
+    }
+
+    /**
+     * Reads the rows of one block in order. With a block dictionary it keeps
+     * track of the texts seen so far, so skipped rows only note where their
+     * new texts are and a text is decoded once however often it repeats.
+     */
+    static class RowReader {
+        private final ByteBuffer buf;
+        private final boolean dictionary;
+        private final boolean known;   // all texts of the block are known up front, from a BlockIndex
+        private String[] texts = new String[16];
+        private int[] starts = new int[16];
+        private int[] lengths = new int[16];
+        private int textCount;
+
+        /** {@code rows} is a block payload as returned by {@link #rowData}. */
+        RowReader(TableEntry entry, ByteBuffer rows) {
+            this.buf = rows.duplicate();
+            this.dictionary = (entry.flags & FLAG_DICTIONARY) != 0;
+            this.known = false;
+        }
+
+        // Starts at row {@code row} of an indexed block, sharing its texts with other readers of it
+        private RowReader(BlockIndex index, int row) {
+            this.buf = index.rows.duplicate();
+            this.buf.position(index.rowStarts[row]);
+            this.dictionary = index.dictionary;
+            this.known = true;
+            this.texts = index.texts;
+            this.starts = index.textStarts;
+            this.lengths = index.textLengths;
+            this.textCount = index.textLengths.length;
+        }
+
+        String[] next() {
+            String[] row = new String[getVarint(buf)];
+            for (int i = 0; i < row.length; i++) row[i] = cell(true);
+            return row;
+        }
+
+        /** Advances past one row without decoding it. */
+        void skip() {
+            int cells = getVarint(buf);
+            for (int i = 0; i < cells; i++) cell(false);
+        }
+
+        private String cell(boolean decode) {
+            int v = getVarint(buf);
+            if (v == 0) return null;
+            if (!dictionary) {
+                int start = buf.position();
+                buf.position(start + v - 1);
+                return decode ? text(start, v - 1) : null;
+            }
+            if ((v & 1) != 0) {
+                int code = v >>> 1;
+                if (code >= textCount) throw new UncheckedIOException(new IOException("Bad dictionary code in block"));
+                if (decode && texts[code] == null) texts[code] = text(starts[code], lengths[code]);
+                return texts[code];
+            }
+            int start = buf.position();
+            int length = (v >>> 1) - 1;
+            buf.position(start + length);
+            String text = decode ? text(start, length) : null;
+            if (!known && textCount < BLOCK_DICTIONARY_SIZE) {
+                if (textCount == texts.length) {
+                    texts = Arrays.copyOf(texts, textCount * 2);
+                    starts = Arrays.copyOf(starts, textCount * 2);
+                    lengths = Arrays.copyOf(lengths, textCount * 2);
+                }
+                texts[textCount] = text;
+                starts[textCount] = start;
+                lengths[textCount++] = length;
+            }
+            return text;
+        }
+
+        private String text(int start, int length) {
+            if (buf.hasArray()) return new String(buf.array(), buf.arrayOffset() + start, length, StandardCharsets.UTF_8);
+            byte[] utf8 = new byte[length];
+            buf.get(start, utf8);
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Where each row of a decoded block starts, and with a block dictionary
+     * where each of its texts is, so a reader can start at any row instead
+     * of skipping the rows before it. Texts are decoded once, by whichever
+     * reader needs them first, and shared by all readers of the block.
+     */
+    static class BlockIndex {
+        private final ByteBuffer rows;
+        private final boolean dictionary;
+        private final int[] rowStarts;
+        private final String[] texts;   // racy but safe: a slot only ever goes from null to an equal String
+        private final int[] textStarts;
+        private final int[] textLengths;
+
+        /** {@code rows} is a block payload as returned by {@link #rowData}, holding {@code rowCount} rows. */
+        BlockIndex(TableEntry entry, ByteBuffer rows, int rowCount) {
+            this.rows = rows;
+            RowReader reader = new RowReader(entry, rows);
+            this.dictionary = reader.dictionary;
+            this.rowStarts = new int[rowCount];
+            for (int r = 0; r < rowCount; r++) {
+                rowStarts[r] = reader.buf.position();
+                reader.skip();
+            }
+            this.texts = new String[reader.textCount];
+            this.textStarts = Arrays.copyOf(reader.starts, reader.textCount);
+            this.textLengths = Arrays.copyOf(reader.lengths, reader.textCount);
+        }
+
+        /** A reader whose first {@link RowReader#next} returns row {@code row} of the block. */
+        RowReader reader(int row) {
+            return new RowReader(this, row);
+        }
+    }
+
+    static int crc(ByteBuffer data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data.duplicate());
+        return (int) crc.getValue();
+    }
+
+    static int getVarint(ByteBuffer buf) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buf.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    static void putVarint(ByteBuffer buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    private static ByteBuffer encodeDirectory(List<TableEntry> directory) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(directory.size());
+            for (TableEntry entry : directory) {
+                putString(out, entry.name);
+                out.writeInt(entry.columns.size());
+                for (String column : entry.columns) putString(out, column);
+                out.writeInt(entry.properties.size());
+                for (Map.Entry<String, String> p : entry.properties.entrySet()) {
+                    putString(out, p.getKey());
+                    putString(out, p.getValue());
+                }
+                out.writeLong(entry.rowCount);
+                out.writeInt(entry.blockOffsets.length);
+                for (int b = 0; b < entry.blockOffsets.length; b++) {
+                    out.writeLong(entry.blockOffsets[b]);
+                    out.writeInt(entry.blockRows[b]);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // in-memory stream
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /** Packs rows into checksummed blocks and records where each block landed. */
+    static class BlockWriter {
+        private final FileChannel ch;
+        private final int keepStamp;
+        private final short flags;
+        private final long fileId;
+        private final BlockCodec codec;
+        private ByteBuffer payload = ByteBuffer.allocate(BLOCK_SIZE * 2);
+        private final ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        private final List<Long> offsets = new ArrayList<>();
+        private final List<Integer> counts = new ArrayList<>();
+        private int blockRows;
+        private long tableRows;
+        private long rawBytes, storedBytes;
+        private String table;
+        private final Map<String, Integer> blockDictionary = new HashMap<>();
+
+        /**
+         * {@code keepStamp} is the stamp of the file being appended to, whose
+         * blocks can be kept in place, or 0 when writing a new file.
+         */
+        BlockWriter(FileChannel ch, int keepStamp, short flags, long fileId, BlockCodec codec) {
+            this.ch = ch;
+            this.keepStamp = keepStamp;
+            this.flags = flags;
+            this.fileId = fileId;
+            this.codec = codec;
+        }
+
+        /** True if blocks of {@code source}'s file can be copied byte for byte, being stored the same way. */
+        boolean copies(TableEntry source) {
+            return source.flags == flags;
+        }
+
+        /** True if blocks of the file with this stamp can stay where they are. */
+        boolean keeps(int stamp) {
+            return keepStamp != 0 && stamp == keepStamp;
+        }
+
+        /** Adds a block that is already in the file being appended to. */
+        void keepBlock(long offset, int rowCount) throws IOException {
+            if (blockRows > 0) flush();
+            offsets.add(offset);
+            counts.add(rowCount);
+            tableRows += rowCount;
+        }
+
+        void writeTable(TableEntry entry, List<String[]> rows) throws IOException {
+            table = entry.name;
+            if (rows instanceof MappedRowList) {
+                ((MappedRowList) rows).writeBlocks(this);
+            } else if (rows instanceof LazyRowList) {
+                ((LazyRowList) rows).writeBlocks(this);
+            } else if (rows instanceof VersionedRowList) {
+                ((VersionedRowList) rows).writeBlocks(this);
+            } else if (rows instanceof PackedRowList) {
+                ((PackedRowList) rows).writeBlocks(this);
+            } else {
+                for (String[] row : rows) addRow(row);
+            }
+            finishTable(entry);
+        }
+
+        void addRow(String[] row) throws IOException {
+            putRow(row);
+            blockRows++;
+            tableRows++;
+            if (payload.position() >= BLOCK_SIZE) flush();
+        }
+
+        /**
+         * Copies an already encoded block (header and payload) of
+         * {@code source}'s table, stored at {@code offset}: as is, or sealed
+         * again for its new place under bound sealing.
+         */
+        void copyBlock(TableEntry source, long offset, ByteBuffer block, int rowCount) throws IOException {
+            if (blockRows > 0) flush();
+            offsets.add(ch.position());
+            counts.add(rowCount);
+            tableRows += rowCount;
+            if ((flags & FLAG_BOUND) == 0) {
+                writeFully(ch, block);
+                return;
+            }
+            ByteBuffer stored = block.duplicate();
+            stored.position(stored.position() + BLOCK_HEADER_SIZE);
+            writeBlock(ch, reseal(source, offset, stored, rowCount, fileId, ch.position()), rowCount);
+        }
+
+        /** Copies encoded blocks of another file, without reading them into memory unless they are to be sealed again. */
+        void transferBlocks(FileChannel src, TableEntry source) throws IOException {
+            if (blockRows > 0) flush();
+            ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+            for (int b = 0; b < source.blockOffsets.length; b++) {
+                header.clear();
+                readFully(src, header, source.blockOffsets[b]);
+                long position = source.blockOffsets[b];
+                long end = position + BLOCK_HEADER_SIZE + header.getInt(0);
+                if ((flags & FLAG_BOUND) != 0) {
+                    ByteBuffer block = ByteBuffer.allocate((int) (end - position));
+                    readFully(src, block, position);
+                    copyBlock(source, position, block.flip(), source.blockRows[b]);
+                    continue;
+                }
+                offsets.add(ch.position());
+                counts.add(source.blockRows[b]);
+                tableRows += source.blockRows[b];
+                while (position < end) position += src.transferTo(position, end - position, ch);
+            }
+        }
+
+        private void finishTable(TableEntry entry) throws IOException {
+            if (blockRows > 0) flush();
+            entry.rowCount = tableRows;
+            entry.rawBytes = rawBytes;
+            entry.storedBytes = storedBytes;
+            entry.blockOffsets = new long[offsets.size()];
+            entry.blockRows = new int[counts.size()];
+            for (int i = 0; i < offsets.size(); i++) {
+                entry.blockOffsets[i] = offsets.get(i);
+                entry.blockRows[i] = counts.get(i);
+            }
+            offsets.clear();
+            counts.clear();
+            tableRows = 0;
+            rawBytes = storedBytes = 0;
+        }
+
+        private void putRow(String[] row) {
+            ensure(5);
+            putVarint(payload, row.length);
+            for (String cell : row) {
+                if (cell == null) {
+                    ensure(1);
+                    putVarint(payload, 0);
+                    continue;
+                }
+                if ((flags & FLAG_DICTIONARY) == 0) {
+                    byte[] utf8 = cell.getBytes(StandardCharsets.UTF_8);
+                    ensure(5 + utf8.length);
+                    putVarint(payload, utf8.length + 1);
+                    payload.put(utf8);
+                    continue;
+                }
+                Integer code = blockDictionary.get(cell);
+                if (code != null) {
+                    ensure(5);
+                    putVarint(payload, code * 2 + 1);
+                    continue;
+                }
+                byte[] utf8 = cell.getBytes(StandardCharsets.UTF_8);
+                ensure(5 + utf8.length);
+                putVarint(payload, (utf8.length + 1) * 2);
+                payload.put(utf8);
+                if (blockDictionary.size() < BLOCK_DICTIONARY_SIZE) blockDictionary.put(cell, blockDictionary.size());
+            }
+        }
+
+        private void ensure(int bytes) {
+            if (payload.remaining() >= bytes) return;
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(payload.capacity() * 2, payload.position() + bytes));
+            payload.flip();
+            bigger.put(payload);
+            payload = bigger;
+        }
+
+        private void flush() throws IOException {
+            int rawLength = payload.position();
+            ByteBuffer stored = pack(rawLength);
+            if ((flags & FLAG_ENCRYPTED) != 0) {
+                byte[] aad = blockAad(flags, fileId, table, ch.position(), blockRows);
+                stored = ByteBuffer.wrap(CryptoUtils.sealBlock(stored.array(), 0, stored.limit(), aad));
+            }
+            int length = stored.remaining();
+            rawBytes += rawLength;
+            storedBytes += length;
+            offsets.add(ch.position());
+            counts.add(blockRows);
+            blockHeader.clear();
+            blockHeader.putInt(length).putInt(blockRows).putInt(crc(stored.array(), 0, length)).flip();
+            writeFully(ch, blockHeader);
+            writeFully(ch, stored);
+            payload.clear();
+            blockDictionary.clear();
+            blockRows = 0;
+        }
+
+        // The payload as stored before any encryption: codec id, then the rows packed or as they are
+        private ByteBuffer pack(int rawLength) {
+            if ((flags & FLAG_CODECS) == 0) return ByteBuffer.wrap(payload.array(), 0, rawLength);
+            byte[] packed = codec.encode(payload.array(), rawLength);
+            if (packed == null) {
+                ByteBuffer plain = ByteBuffer.allocate(1 + rawLength);
+                plain.put((byte) 0).put(payload.array(), 0, rawLength);
+                return plain.flip();
+            }
+            ByteBuffer out = ByteBuffer.allocate(1 + 5 + packed.length);
+            out.put((byte) codec.id());
+            putVarint(out, rawLength);
+            out.put(packed);
+            return out.flip();
+        }
+    }
+
+    static int crc(byte[] data, int off, int len) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, off, len);
+        return (int) crc.getValue();
+    }
+
+    private static void putString(DataOutputStream out, String s) throws IOException {
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String getString(ByteBuffer buf) {
+        int len = buf.getInt();
+        String s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+        buf.position(buf.position() + len);
+        return s;
+    }
+
+    static void writeFully(FileChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) ch.write(buf);
+    }
+
+    static void readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, position + buf.position());
+            if (n < 0) throw new EOFException("Unexpected end of database file");
+        }
+    }
+}
@@ -2,8 +2,17 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 public class SimpleWebServer {
     private static final File DATABASE_DIR = new File("databases");
@@ -19,6 +28,7 @@ public class SimpleWebServer {
     private static String SECRET_KEY;
     private static int PORT;
     private static final int SESSION_TIMEOUT_MS = 5 * 60 * 1000;
+    private static RowCursors rowCursors;
 
     public static void start(int port) throws IOException {
         loadConfig();
@@ -54,6 +64,8 @@ public class SimpleWebServer {
         "/viewdb",      // View database
         "/createtable", // Table creation
         "/deleterow",   // Row deletion
+        "/createindex", // Index creation
+        "/dropindex",   // Index removal
         "/logs",        // Server logs
         "/clear-logs",  // Clear logs
         "/config",      // Configuration
@@ -109,9 +121,7 @@ public class SimpleWebServer {
             }
 
             if ("POST".equals(method)) {
-                char[] buf = new char[contentLength];
-                in.read(buf);
-                body = new String(buf);
+                body = readBody(in, contentLength);
             }
 
             log(method + " " + path);
@@ -150,6 +160,7 @@ public class SimpleWebServer {
                 File dbFile = new File(DATABASE_DIR, name);
                 if (dbFile.exists()) {
                     dbFile.delete();
+                    UserDatabase.close(dbFile);
                     log("Deleted database: " + name);
                 }
                 sendRedirect(out, "/databases");
@@ -161,6 +172,13 @@ public class SimpleWebServer {
                     sendHtml(out, getErrorPage("Database not found!", "/databases", "Back to Databases"));
                     return;
                 }
+                String loadError = UserDatabase.open(dbFile).getLoadError();
+                if (loadError != null) {
+                    sendHtml(out, getErrorPage("This database could not be read: " + loadError
+                            + ". It is left as it is and takes no changes until the cause is fixed and the server restarted.",
+                            "/databases", "Back to Databases"));
+                    return;
+                }
                 sendHtml(out, getViewDbPage(name, dbFile));
             }
             else if (path.equals("/createtable") && method.equals("POST")) {
@@ -170,19 +188,40 @@ public class SimpleWebServer {
                 String columns = form.get("columns");
                 if (dbName != null && tableName != null && columns != null) {
                     File dbFile = new File(DATABASE_DIR, dbName);
-                    UserDatabase db = new UserDatabase(dbFile);
-                    db.createTable(tableName, columns.split(","));
+                    UserDatabase db = UserDatabase.open(dbFile);
+                    Map<String, String> properties = new LinkedHashMap<>();
+                    if ("on".equals(form.get("unique"))) properties.put(UserDatabase.UNIQUE_ID, "true");
+                    try {
+                        db.createTable(tableName, columns.split(","), properties);
+                    } catch (IllegalArgumentException | IllegalStateException e) {
+                        sendHtml(out, getErrorPage(e.getMessage(), "/viewdb?name=" + URLEncoder.encode(dbName, "UTF-8"), "Back to Database"));
+                        return;
+                    }
                     log("Created table '" + tableName + "' in DB " + dbName);
                 }
                 sendRedirect(out, "/viewdb?name=" + URLEncoder.encode(dbName, "UTF-8"));
             }
+            else if ((path.equals("/createindex") || path.equals("/dropindex")) && method.equals("POST")) {
+                Map<String, String> form = parseFormData(body);
+                String dbName = form.get("dbname");
+                String table = form.get("table");
+                String column = form.get("column");
+                if (dbName != null && table != null && column != null) {
+                    UserDatabase db = UserDatabase.open(new File(DATABASE_DIR, dbName));
+                    String type = form.getOrDefault("type", "hash");
+                    if (path.equals("/createindex") ? db.createIndex(table, column, type) : db.dropIndex(table, column)) {
+                        log((path.equals("/createindex") ? "Created" : "Dropped") + " index on '" + table + "." + column + "' in DB " + dbName);
+                    }
+                }
+                sendRedirect(out, "/viewdb?name=" + URLEncoder.encode(dbName, "UTF-8"));
+            }
             else if (path.equals("/deleterow") && method.equals("POST")) {
                 Map<String, String> form = parseFormData(body);
                 String dbName = form.get("dbname");
                 String table = form.get("table");
                 String id = form.get("id");
                 File dbFile = new File(DATABASE_DIR, dbName);
-                UserDatabase db = new UserDatabase(dbFile);
+                UserDatabase db = UserDatabase.open(dbFile);
                 db.deleteRow(table, id);
                 log("Deleted row " + id + " in table '" + table + "'");
                 sendRedirect(out, "/viewdb?name=" + URLEncoder.encode(dbName, "UTF-8"));
@@ -223,12 +262,6 @@ public class SimpleWebServer {
                 }
                 sendRedirect(out, "/config");
             }
-            else if (path.startsWith("/api/")) {
-                handleApiRequest(out, method, path, body, authHeader);
-            }
-            else if (path.equals("/api/insert") && method.equals("POST")) {
-                handleApiInsert(out, body);
-            }
             // API Endpoint: Query data from database
             else if (path.equals("/api/query") && method.equals("POST")) {
                 handleApiQuery(out, body);
@@ -241,6 +274,12 @@ public class SimpleWebServer {
             else if (path.equals("/api/getrows") && method.equals("POST")) {
                 handleApiGetRows(out, body);
             }
+            else if (path.startsWith("/api/")) {
+                handleApiRequest(out, method, path, body, authHeader);
+            }
+            else if (path.equals("/api/insert") && method.equals("POST")) {
+                handleApiInsert(out, body);
+            }
             else if (path.equals("/pages")) {
                 sendHtml(out, getPagesPage());
             }
@@ -337,6 +376,24 @@ public class SimpleWebServer {
         }
     }
 
+    // Content-Length counts bytes, and a single read() may return only part of a
+    // large body, so keep reading until that many UTF-8 bytes have arrived
+    private static String readBody(BufferedReader in, int contentLength) throws IOException {
+        StringBuilder body = new StringBuilder(contentLength);
+        char[] buf = new char[8192];
+        int bytes = 0;
+        while (bytes < contentLength) {
+            int n = in.read(buf, 0, Math.min(buf.length, contentLength - bytes));
+            if (n == -1) break;
+            body.append(buf, 0, n);
+            for (int i = 0; i < n; i++) {
+                char c = buf[i];
+                bytes += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+            }
+        }
+        return body.toString();
+    }
+
     private static void handleStaticFile(OutputStream out, String path) throws IOException {
         // Remove /pages/ prefix and get actual file path
         String filePath = path.substring("/pages/".length());
@@ -401,14 +458,49 @@ public class SimpleWebServer {
                 case "get":
                     handleGetApi(out, body);
                     break;
+                case "getbyid":
+                    handleGetByIdApi(out, body);
+                    break;
+                case "createtable":
+                    handleCreateTableApi(out, body);
+                    break;
+                case "createindex":
+                case "dropindex":
+                case "indexes":
+                    handleIndexApi(out, action, body);
+                    break;
                 case "delete":
                     handleDeleteApi(out, body);
                     break;
+                case "batch":
+                    handleBatchApi(out, body);
+                    break;
+                case "update":
+                    handleUpdateApi(out, body);
+                    break;
+                case "upsert":
+                    handleUpsertApi(out, body);
+                    break;
+                case "transaction":
+                    handleTransactionApi(out, body);
+                    break;
+                case "ttl":
+                    handleTtlApi(out, body);
+                    break;
+                case "select":
+                    handleSelectApi(out, body);
+                    break;
+                case "aggregate":
+                    handleAggregateApi(out, body);
+                    break;
                 default:
                     sendJsonResponse(out, "{\"error\":\"Unknown API action\"}", 400);
             }
+        } catch (WriteQueue.FullException e) {
+            // Backpressure from the database's writer queue; the client should retry later
+            sendJsonResponse(out, "{\"error\":" + JsonUtils.quote(e.getMessage()) + "}", 503);
         } catch (Exception e) {
-            sendJsonResponse(out, "{\"error\":\"" + e.getMessage() + "\"}", 500);
+            sendJsonResponse(out, "{\"error\":" + JsonUtils.quote(String.valueOf(e.getMessage())) + "}", 500);
             log("API Error: " + e.getMessage());
         }
     }
@@ -595,6 +687,65 @@ public class SimpleWebServer {
         return getBaseTemplate("Create Database", content);
     }
 
+    // Dead space left by appending saves and how the last compaction went
+    private static String getCompactionStats(UserDatabase db) {
+        Compactor.Status status = db.getCompaction();
+        if (status.fileBytes == 0 && db.getFile().length() > 0) {
+            try {
+                Compactor.measure(db.getFile(), status);
+            } catch (IOException e) {
+                return "";
+            }
+        }
+        String last;
+        if (status.running) {
+            last = "compacting&hellip;";
+        } else if (status.lastError != null) {
+            last = "last compaction failed, see the server log";
+        } else if (status.lastRun > 0) {
+            long minutes = (System.currentTimeMillis() - status.lastRun) / 60000;
+            last = "compacted %d&times;, last %d min ago, freed %s in %d ms".formatted(status.runs, minutes,
+                    formatBytes(status.lastReclaimed), status.lastMillis);
+        } else {
+            last = "never compacted";
+        }
+        return """
+                        <p class="text-xs text-gray-400 mb-4" title="File space no longer referenced, reclaimed by background compaction">
+                            <i class="fas fa-compress-alt mr-1"></i>Dead space: %s of %s (%.0f%%) &middot; %s
+                        </p>
+            """.formatted(formatBytes(status.deadBytes()), formatBytes(status.fileBytes), status.deadRatio() * 100, last);
+    }
+
+    // Row counts by table from a database file's directory, or null if it is in the old format or can't be read
+    private static Map<String, Long> readCatalog(File db) {
+        try (FileChannel ch = FileChannel.open(db.toPath(), StandardOpenOption.READ)) {
+            Map<String, Long> counts = new LinkedHashMap<>();
+            if (ch.size() == 0) return counts;
+            if (SecdbFormat.isLegacy(db)) return null;
+            for (SecdbFormat.TableEntry entry : SecdbFormat.readDirectory(ch)) counts.put(entry.name, entry.rowCount);
+            return counts;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Memory a packed table takes, next to its row count on /viewdb
+    private static String getMemoryStats(UserDatabase db, String table) {
+        long[] usage = db.getPackedUsage(table);
+        if (usage == null) return "";
+        return """
+                <span class="text-xs font-normal text-gray-400 ml-2" title="%s; live rows use %s of it. Row addresses take %s of heap.">
+                    <i class="fas fa-memory mr-1"></i>%s %s</span>"""
+                .formatted(db.isOffHeap() ? "Direct buffers outside the Java heap" : "Row pages on the Java heap",
+                        formatBytes(usage[1]), formatBytes(usage[2]), formatBytes(usage[0]),
+                        db.isOffHeap() ? "off-heap" : "packed");
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes >= 1024 * 1024) return "%.1f MB".formatted(bytes / (1024.0 * 1024));
+        return bytes >= 1024 ? (bytes / 1024) + " KB" : bytes + " B";
+    }
+
     private static String getDatabasesPage() {
         StringBuilder content = new StringBuilder();
         content.append("""
@@ -631,6 +782,47 @@ public class SimpleWebServer {
                 String dbName = db.getName();
                 long size = db.length();
                 String sizeStr = size > 1024 ? (size / 1024) + " KB" : size + " B";
+
+                // Listing doesn't open a database: one nobody has opened is described from its file's directory
+                UserDatabase catalog = UserDatabase.getIfOpen(db);
+                Map<String, Long> counts = catalog == null ? readCatalog(db) : null;
+                int tableCount;
+                long rowCount = 0;
+                if (catalog != null) {
+                    List<String> dbTables = catalog.getTables();
+                    tableCount = dbTables.size();
+                    for (String table : dbTables) rowCount += catalog.getRowCount(table);
+                } else {
+                    tableCount = counts == null ? 0 : counts.size();
+                    if (counts != null) for (long count : counts.values()) rowCount += count;
+                }
+                String summary = counts == null && catalog == null
+                        ? "Size: %s &middot; not opened yet".formatted(sizeStr)
+                        : catalog != null && catalog.getLoadError() != null
+                        ? "Size: %s &middot; could not be read".formatted(sizeStr)
+                        : "Size: %s &middot; Tables: %d &middot; Rows: %d".formatted(sizeStr, tableCount, rowCount);
+                TableLocks locks = catalog == null ? null : catalog.getLocks();
+                String lockStats = locks == null ? "" : """
+                        <p class="text-xs text-gray-400 mb-4" title="Requests that waited for a table lock">
+                            <i class="fas fa-lock mr-1"></i>Lock waits: %d &middot; %.1f ms total &middot; %.1f ms max
+                        </p>
+                    """.formatted(locks.waits(), locks.waitMillis(), locks.maxWaitMillis());
+                WriteQueue writes = catalog == null ? null : catalog.getWriteQueue();
+                String writeStats = writes == null ? "" : """
+                        <p class="text-xs text-gray-400 mb-4" title="Changes waiting for the writer thread">
+                            <i class="fas fa-stream mr-1"></i>Write queue: %d/%d (max %d) &middot; %d batches, %d changes &middot; %d rejected
+                        </p>
+                    """.formatted(writes.depth(), writes.capacity(), writes.maxDepth(), writes.batches(),
+                        writes.applied(), writes.rejected());
+                String spaceStats = catalog == null ? "" : getCompactionStats(catalog);
+                long raw = catalog == null ? 0 : catalog.getRawBytesWritten();
+                long stored = catalog == null ? 0 : catalog.getStoredBytesWritten();
+                String codecStats = catalog == null || catalog.getCodec().id() == 0 ? "" : """
+                        <p class="text-xs text-gray-400 mb-4" title="Blocks written since the database was opened, before and after compression">
+                            <i class="fas fa-file-archive mr-1"></i>Compression: %s &middot; %s
+                        </p>
+                    """.formatted(catalog.getCodec().name(), stored == 0 ? "nothing written yet"
+                        : "%.1f&times; (%s to %s)".formatted((double) raw / stored, formatBytes(raw), formatBytes(stored)));
                 
                 content.append("""
                     <div class="bg-white rounded-xl p-6 card-shadow hover-lift">
@@ -648,14 +840,19 @@ public class SimpleWebServer {
                         </div>
                         
                         <h3 class="text-lg font-semibold text-gray-900 mb-2">%s</h3>
-                        <p class="text-sm text-gray-500 mb-4">Size: %s</p>
+                        <p class="text-sm text-gray-500 mb-1">%s</p>
+                        %s
+                        %s
+                        %s
+                        %s
                         
                         <a href="/viewdb?name=%s" 
                            class="block w-full bg-blue-600 text-white text-center py-2 rounded-lg hover:bg-blue-700 transition-colors">
                             <i class="fas fa-eye mr-2"></i>View Database
                         </a>
                     </div>
-                    """.formatted(dbName, dbName.replace(".secdb", ""), sizeStr, dbName));
+                    """.formatted(dbName, dbName.replace(".secdb", ""), summary, lockStats, writeStats, spaceStats,
+                        codecStats, dbName));
             }
             
             content.append("</div>");
@@ -665,7 +862,7 @@ public class SimpleWebServer {
     }
 
     private static String getViewDbPage(String dbName, File dbFile) {
-        UserDatabase db = new UserDatabase(dbFile);
+        UserDatabase db = UserDatabase.open(dbFile);
         StringBuilder content = new StringBuilder();
         
         content.append("""
@@ -696,7 +893,11 @@ public class SimpleWebServer {
                         <label class="block text-sm font-medium text-gray-700 mb-2">Columns</label>
                         <input type="text" name="columns" 
                                class="w-full px-3 py-2 border border-gray-300 rounded-lg focus:ring-2 focus:ring-blue-500 focus:border-blue-500"
-                               placeholder="id,name,email" required>
+                               placeholder="id:long,name,created:timestamp" required>
+                        <p class="text-xs text-gray-500 mt-1">Optional types after a colon: int, long, double, boolean, timestamp, string</p>
+                        <label class="inline-flex items-center mt-2 text-sm text-gray-600">
+                            <input type="checkbox" name="unique" class="mr-2">Unique IDs (first column)
+                        </label>
                     </div>
                     <div class="flex items-end">
                         <button type="submit" 
@@ -726,18 +927,22 @@ public class SimpleWebServer {
                     <div class="bg-white rounded-xl p-6 card-shadow mb-6">
                         <h2 class="text-xl font-semibold text-gray-900 mb-4">
                             <i class="fas fa-table mr-2"></i>Table: %s
+                            <span class="text-sm font-normal text-gray-500 ml-2">%d rows</span>%s
                         </h2>
                         <div class="overflow-x-auto">
                             <table class="min-w-full divide-y divide-gray-200">
                                 <thead class="bg-gray-50">
                                     <tr>
-                    """.formatted(table));
+                    """.formatted(table, db.getRowCount(table), getMemoryStats(db, table)));
 
                 List<String> columns = db.getColumns(table);
-                for (String col : columns) {
+                List<ColumnType> types = db.getColumnTypes(table);
+                for (int i = 0; i < columns.size(); i++) {
+                    String type = types.get(i) == ColumnType.STRING ? ""
+                        : " <span class=\"normal-case font-normal text-gray-400\">" + types.get(i) + "</span>";
                     content.append("""
-                        <th class="px-6 py-3 text-left text-xs font-medium text-gray-500 uppercase tracking-wider">%s</th>
-                        """.formatted(col));
+                        <th class="px-6 py-3 text-left text-xs font-medium text-gray-500 uppercase tracking-wider">%s%s</th>
+                        """.formatted(columns.get(i), type));
                 }
                 content.append("""
                     <th class="px-6 py-3 text-left text-xs font-medium text-gray-500 uppercase tracking-wider">Actions</th>
@@ -782,14 +987,79 @@ public class SimpleWebServer {
                     </tbody>
                     </table>
                     </div>
-                    </div>
                     """);
+                Map<String, Double> bloom = new LinkedHashMap<>();
+                for (String column : db.getBloomColumns(table)) {
+                    bloom.put(column, db.getBloomStats(table, column).falsePositiveRate());
+                }
+                content.append(getIndexBar(dbName, table, columns, db.getIndexedColumns(table), db.getOrderedColumns(table), bloom));
+                content.append("</div>");
             }
         }
 
         return getBaseTemplate("Database: " + dbName.replace(".secdb", ""), content.toString());
     }
 
+    // Index list of one table on /viewdb, with a drop button per index and a form to add one
+    private static String getIndexBar(String dbName, String table, List<String> columns, List<String> indexed,
+                                      List<String> ordered, Map<String, Double> bloom) {
+        StringBuilder bar = new StringBuilder();
+        bar.append("""
+            <div class="flex flex-wrap items-center gap-2 mt-4 text-sm">
+                <span class="text-gray-600"><i class="fas fa-bolt mr-1"></i>Indexes:</span>
+                <span class="px-2 py-1 bg-gray-100 text-gray-700 rounded">%s (id)</span>
+            """.formatted(columns.isEmpty() ? "" : columns.get(0)));
+        List<String> all = new ArrayList<>(indexed);
+        all.addAll(ordered);
+        all.addAll(bloom.keySet());
+        for (String column : all) {
+            String icon = "";
+            if (ordered.contains(column)) {
+                icon = " <i class=\"fas fa-sort-amount-down\" title=\"Ordered\"></i>";
+            } else if (bloom.containsKey(column)) {
+                icon = " <i class=\"fas fa-filter\" title=\"Bloom filter, %.1f%% false positives\"></i>"
+                    .formatted(bloom.get(column) * 100);
+            }
+            bar.append("""
+                <form method="POST" action="/dropindex" class="inline">
+                    <input type="hidden" name="dbname" value="%s">
+                    <input type="hidden" name="table" value="%s">
+                    <input type="hidden" name="column" value="%s">
+                    <span class="px-2 py-1 bg-blue-100 text-blue-800 rounded">%s%s
+                        <button type="submit" class="ml-1 text-blue-600 hover:text-red-600" title="Drop index">
+                            <i class="fas fa-times"></i>
+                        </button>
+                    </span>
+                </form>
+                """.formatted(dbName, table, column, column, icon));
+        }
+        StringBuilder options = new StringBuilder();
+        for (int i = 0; i < columns.size(); i++) {
+            if (!all.contains(columns.get(i))) {
+                options.append("<option value=\"").append(columns.get(i)).append("\">").append(columns.get(i)).append("</option>");
+            }
+        }
+        if (options.length() > 0) {
+            bar.append("""
+                <form method="POST" action="/createindex" class="inline-flex items-center gap-2 ml-2">
+                    <input type="hidden" name="dbname" value="%s">
+                    <input type="hidden" name="table" value="%s">
+                    <select name="column" class="px-2 py-1 border border-gray-300 rounded">%s</select>
+                    <select name="type" class="px-2 py-1 border border-gray-300 rounded">
+                        <option value="hash">Hash (equality)</option>
+                        <option value="ordered">Ordered (ranges, sorting)</option>
+                        <option value="bloom">Bloom filter (exists)</option>
+                    </select>
+                    <button type="submit" class="px-2 py-1 bg-blue-600 text-white rounded hover:bg-blue-700 transition-colors">
+                        <i class="fas fa-plus mr-1"></i>Add Index
+                    </button>
+                </form>
+                """.formatted(dbName, table, options));
+        }
+        bar.append("</div>");
+        return bar.toString();
+    }
+
     private static boolean isApiAuthenticated(String authHeader) {
         if (authHeader == null) return false;
         try {
@@ -822,9 +1092,14 @@ public class SimpleWebServer {
             return;
         }
         
-        UserDatabase db = new UserDatabase(dbFile);
+        UserDatabase db = UserDatabase.open(dbFile);
         String[] rowValues = rowData.split(",");
-        db.insert(tablename, rowValues);
+        try {
+            db.insert(tablename, rowValues);
+        } catch (IllegalArgumentException e) {
+            sendJsonResponse(out, "{\"error\":" + JsonUtils.quote(e.getMessage()) + "}", 400);
+            return;
+        }
         
         sendJsonResponse(out, "{\"success\":true,\"message\":\"Row inserted\"}", 200);
     }
@@ -850,30 +1125,292 @@ public class SimpleWebServer {
             return;
         }
         
-        UserDatabase db = new UserDatabase(dbFile);
+        UserDatabase db = UserDatabase.open(dbFile);
         List<String[]> rows = db.getRows(tablename);
         List<String> columns = db.getColumns(tablename);
         
         StringBuilder json = new StringBuilder();
         json.append("{\"columns\":[");
         for (int i = 0; i < columns.size(); i++) {
-            json.append("\"").append(columns.get(i)).append("\"");
+            JsonUtils.appendQuoted(json, columns.get(i));
             if (i < columns.size() - 1) json.append(",");
         }
         json.append("],\"rows\":[");
         
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.writeBytes(json.toString().getBytes(StandardCharsets.UTF_8));
+        writeJsonRows(body, rows, 0, rows.size());
+        body.writeBytes("]}".getBytes(StandardCharsets.UTF_8));
+        
+        sendJsonResponse(out, body, 200);
+    }
+
+    /**
+     * Writes rows {@code from} to {@code to} (exclusive) as comma-separated
+     * JSON arrays of strings. Packed rows are copied byte for byte from their
+     * pages without being decoded; other rows are escaped from their cells.
+     */
+    private static void writeJsonRows(ByteArrayOutputStream out, List<String[]> rows, int from, int to) {
+        PackedRowList.RowView view = rows instanceof PackedRowList ? ((PackedRowList) rows).view() : null;
+        StringBuilder json = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            if (i > from) out.write(',');
+            if (view != null) {
+                view.moveTo(i).writeJson(out);
+                continue;
+            }
+            String[] row = rows.get(i);
+            json.setLength(0);
+            json.append("[");
+            for (int j = 0; j < row.length; j++) {
+                JsonUtils.appendQuoted(json, row[j]);
+                if (j < row.length - 1) json.append(",");
+            }
+            json.append("]");
+            out.writeBytes(json.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void handleGetByIdApi(OutputStream out, String requestBody) throws IOException {
+        // Parse: file:filename.secdb table:tablename id:rowid
+        String[] parts = requestBody.trim().split("\\s+");
+        String filename = null, tablename = null, rowId = null;
+
+        for (String part : parts) {
+            if (part.startsWith("file:")) filename = part.substring(5);
+            else if (part.startsWith("table:")) tablename = part.substring(6);
+            else if (part.startsWith("id:")) rowId = part.substring(3);
+        }
+
+        if (filename == null || tablename == null || rowId == null) {
+            sendJsonResponse(out, "{\"error\":\"Missing file, table, or id\"}", 400);
+            return;
+        }
+
+        File dbFile = new File(DATABASE_DIR, filename);
+        if (!dbFile.exists()) {
+            sendJsonResponse(out, "{\"error\":\"Database file not found\"}", 404);
+            return;
+        }
+
+        UserDatabase db = UserDatabase.open(dbFile);
+        if (!db.getTables().contains(tablename)) {
+            sendJsonResponse(out, "{\"error\":\"Table not found\"}", 404);
+            return;
+        }
+        // Looked up through the primary index instead of scanning the table
+        List<String[]> rows = db.getById(tablename, rowId);
+        if (rows.isEmpty()) {
+            sendJsonResponse(out, "{\"error\":\"Row not found\"}", 404);
+            return;
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"columns\":[");
+        List<String> columns = db.getColumns(tablename);
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) json.append(",");
+            JsonUtils.appendQuoted(json, columns.get(i));
+        }
+        json.append("],\"rows\":[");
         for (int i = 0; i < rows.size(); i++) {
+            if (i > 0) json.append(",");
             json.append("[");
             String[] row = rows.get(i);
             for (int j = 0; j < row.length; j++) {
-                json.append("\"").append(row[j] != null ? row[j] : "").append("\"");
-                if (j < row.length - 1) json.append(",");
+                if (j > 0) json.append(",");
+                JsonUtils.appendQuoted(json, row[j] != null ? row[j] : "");
             }
             json.append("]");
-            if (i < rows.size() - 1) json.append(",");
         }
         json.append("]}");
-        
+
+        sendJsonResponse(out, json.toString(), 200);
+    }
+
+    private static void handleCreateTableApi(OutputStream out, String requestBody) throws IOException {
+        // Parse: file:filename.secdb table:tablename columns:id:long,name,created:timestamp [unique:true]
+        //        [expires:column [ttl:seconds]]
+        String[] parts = requestBody.trim().split("\\s+");
+        String filename = null, tablename = null, columns = null, expires = null, ttl = null;
+        boolean unique = false;
+
+        for (String part : parts) {
+            if (part.startsWith("file:")) filename = part.substring(5);
+            else if (part.startsWith("table:")) tablename = part.substring(6);
+            else if (part.startsWith("columns:")) columns = part.substring(8);
+            else if (part.startsWith("unique:")) unique = part.substring(7).equals("true");
+            else if (part.startsWith("expires:")) expires = part.substring(8);
+            else if (part.startsWith("ttl:")) ttl = part.substring(4);
+        }
+
+        if (filename == null || tablename == null || columns == null) {
+            sendJsonResponse(out, "{\"error\":\"Missing file, table, or columns\"}", 400);
+            return;
+        }
+        if (ttl != null && (expires == null || !ttl.matches("[0-9]+"))) {
+            sendJsonResponse(out, "{\"error\":\"ttl needs an expires column and a whole number of seconds\"}", 400);
+            return;
+        }
+
+        File dbFile = new File(DATABASE_DIR, filename);
+        if (!dbFile.exists()) {
+            sendJsonResponse(out, "{\"error\":\"Database file not found\"}", 404);
+            return;
+        }
+
+        UserDatabase db = UserDatabase.open(dbFile);
+        if (db.getTables().contains(tablename)) {
+            sendJsonResponse(out, "{\"error\":\"Table already exists\"}", 409);
+            return;
+        }
+        Map<String, String> properties = new LinkedHashMap<>();
+        if (unique) properties.put(UserDatabase.UNIQUE_ID, "true");
+        if (expires != null) properties.put(UserDatabase.EXPIRY_COLUMN, expires);
+        if (ttl != null && !ttl.equals("0")) properties.put(UserDatabase.EXPIRY_TTL, ttl);
+        try {
+            db.createTable(tablename, columns.split(","), properties);
+        } catch (IllegalArgumentException e) {
+            sendJsonResponse(out, "{\"error\":" + JsonUtils.quote(e.getMessage()) + "}", 400);
+            return;
+        }
+        log("API: Created table " + filename + "." + tablename);
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"success\":true,\"table\":");
+        JsonUtils.appendQuoted(json, tablename);
+        json.append(",\"columns\":[");
+        List<String> names = db.getColumns(tablename);
+        List<ColumnType> types = db.getColumnTypes(tablename);
+        for (int i = 0; i < names.size(); i++) {
+            if (i > 0) json.append(",");
+            json.append("{\"name\":");
+            JsonUtils.appendQuoted(json, names.get(i));
+            json.append(",\"type\":\"").append(types.get(i)).append("\"}");
+        }
+        json.append("]}");
+        sendJsonResponse(out, json.toString(), 200);
+    }
+
+    private static void handleTtlApi(OutputStream out, String requestBody) throws IOException {
+        // Parse: file:filename.secdb table:tablename column:expires_at [ttl:seconds]
+        // column:none turns expiry off
+        String[] parts = requestBody.trim().split("\\s+");
+        String filename = null, tablename = null, column = null, ttl = "0";
+
+        for (String part : parts) {
+            if (part.startsWith("file:")) filename = part.substring(5);
+            else if (part.startsWith("table:")) tablename = part.substring(6);
+            else if (part.startsWith("column:")) column = part.substring(7);
+            else if (part.startsWith("ttl:")) ttl = part.substring(4);
+        }
+
+        if (filename == null || tablename == null || column == null) {
+            sendJsonResponse(out, "{\"error\":\"Missing file, table, or column\"}", 400);
+            return;
+        }
+        if (!ttl.matches("[0-9]+")) {
+            sendJsonResponse(out, "{\"error\":\"ttl must be a whole number of seconds\"}", 400);
+            return;
+        }
+
+        File dbFile = new File(DATABASE_DIR, filename);
+        if (!dbFile.exists()) {
+            sendJsonResponse(out, "{\"error\":\"Database file not found\"}", 404);
+            return;
+        }
+        UserDatabase db = UserDatabase.open(dbFile);
+        if (!db.getTables().contains(tablename)) {
+            sendJsonResponse(out, "{\"error\":\"Table not found\"}", 404);
+            return;
+        }
+        boolean off = column.equals("none");
+        try {
+            db.setExpiry(tablename, off ? null : column, Long.parseLong(ttl));
+        } catch (IllegalArgumentException e) {
+            sendJsonResponse(out, "{\"error\":" + JsonUtils.quote(e.getMessage()) + "}", 400);
+            return;
+        }
+        log("API: " + (off ? "Turned off expiry for " : "Set expiry column " + column + " for ") + filename + "." + tablename);
+        sendJsonResponse(out, "{\"success\":true,\"message\":\"Expiry " + (off ? "turned off" : "set") + "\"}", 200);
+    }
+
+    private static void handleIndexApi(OutputStream out, String action, String requestBody) throws IOException {
+        // Parse: file:filename.secdb table:tablename column:colname [type:hash|ordered] (no column for "indexes")
+        String[] parts = requestBody.trim().split("\\s+");
+        String filename = null, tablename = null, column = null, type = "hash";
+
+        for (String part : parts) {
+            if (part.startsWith("file:")) filename = part.substring(5);
+            else if (part.startsWith("table:")) tablename = part.substring(6);
+            else if (part.startsWith("column:")) column = part.substring(7);
+            else if (part.startsWith("type:")) type = part.substring(5);
+        }
+
+        if (filename == null || tablename == null || (column == null && !action.equals("indexes"))) {
+            sendJsonResponse(out, "{\"error\":\"Missing file, table, or column\"}", 400);
+            return;
+        }
+
+        File dbFile = new File(DATABASE_DIR, filename);
+        if (!dbFile.exists()) {
+            sendJsonResponse(out, "{\"error\":\"Database file not found\"}", 404);
+            return;
+        }
+
+        UserDatabase db = UserDatabase.open(dbFile);
+        if (!db.getTables().contains(tablename)) {
+            sendJsonResponse(out, "{\"error\":\"Table not found\"}", 404);
+            return;
+        }
+
+        if (action.equals("createindex")) {
+            if (!db.getColumns(tablename).contains(column)) {
+                sendJsonResponse(out, "{\"error\":\"Column not found\"}", 404);
+                return;
+            }
+            if (!type.equals("hash") && !type.equals("ordered") && !type.equals("bloom")) {
+                sendJsonResponse(out, "{\"error\":\"Index type must be hash, ordered or bloom\"}", 400);
+                return;
+            }
+            boolean created = db.createIndex(tablename, column, type);
+            log("API: " + type + " index on " + filename + "." + tablename + "." + column + (created ? " created" : " already exists"));
+        } else if (action.equals("dropindex")) {
+            if (!db.dropIndex(tablename, column)) {
+                sendJsonResponse(out, "{\"error\":\"Index not found\"}", 404);
+                return;
+            }
+            log("API: Dropped index on " + filename + "." + tablename + "." + column);
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"success\":true,\"primary\":");
+        JsonUtils.appendQuoted(json, db.getColumns(tablename).isEmpty() ? "" : db.getColumns(tablename).get(0));
+        json.append(",\"indexes\":[");
+        List<String> indexed = db.getIndexedColumns(tablename);
+        for (int i = 0; i < indexed.size(); i++) {
+            if (i > 0) json.append(",");
+            JsonUtils.appendQuoted(json, indexed.get(i));
+        }
+        json.append("],\"ordered\":[");
+        List<String> ordered = db.getOrderedColumns(tablename);
+        for (int i = 0; i < ordered.size(); i++) {
+            if (i > 0) json.append(",");
+            JsonUtils.appendQuoted(json, ordered.get(i));
+        }
+        json.append("],\"bloom\":[");
+        List<String> bloom = db.getBloomColumns(tablename);
+        for (int i = 0; i < bloom.size(); i++) {
+            if (i > 0) json.append(",");
+            BloomFilter.Stats stats = db.getBloomStats(tablename, bloom.get(i));
+            json.append("{\"column\":");
+            JsonUtils.appendQuoted(json, bloom.get(i));
+            json.append(",\"negatives\":").append(stats.negatives.get())
+                .append(",\"truePositives\":").append(stats.truePositives.get())
+                .append(",\"falsePositives\":").append(stats.falsePositives.get())
+                .append(",\"falsePositiveRate\":").append(stats.falsePositiveRate()).append("}");
+        }
+        json.append("]}");
         sendJsonResponse(out, json.toString(), 200);
     }
 
@@ -899,38 +1436,640 @@ public class SimpleWebServer {
             return;
         }
         
-        UserDatabase db = new UserDatabase(dbFile);
+        UserDatabase db = UserDatabase.open(dbFile);
         db.deleteRow(tablename, rowId);
         
         sendJsonResponse(out, "{\"success\":true,\"message\":\"Row deleted\"}", 200);
     }
 
-    private static void sendJsonResponse(OutputStream out, String json, int statusCode) throws IOException {
-        String status = statusCode == 200 ? "OK" : 
-                    statusCode == 400 ? "Bad Request" :
-                    statusCode == 401 ? "Unauthorized" :
-                    statusCode == 404 ? "Not Found" : "Internal Server Error";
-        
-        String response = "HTTP/1.1 " + statusCode + " " + status + "\r\n" +
-                        "Content-Type: application/json\r\n" +
-                        "Access-Control-Allow-Origin: *\r\n" +
-                        "Access-Control-Allow-Methods: GET, POST, PUT, DELETE\r\n" +
-                        "Access-Control-Allow-Headers: Content-Type, Authorization\r\n\r\n" + 
-                        json;
-        out.write(response.getBytes());
-        out.flush();
+    private static void handleUpdateApi(OutputStream out, String requestBody) throws IOException {
+        // {"file":"mydb.secdb","table":"users","key":"1","set":{"email":"new@email.com"}}
+        // or with "where" (as in /api/select) instead of "key" to update every matching row
+        Map<?, ?> request;
+        try {
+            request = (Map<?, ?>) JsonUtils.parse(requestBody.trim());
+        } catch (IllegalArgumentException | ClassCastException e) {
+            sendJsonResponse(out, "{\"error\":" + JsonUtils.quote("Invalid update body: " + e.getMessage()) + "}", 400);
+            return;
+        }
+        String filename = JsonUtils.asString(request.get("file"));
+        String table = JsonUtils.asString(request.get("table"));
+        if (filename == null || table == null) {
+            sendJsonResponse(out, "{\"error\":\"Missing file or table\"}", 400);
+            return;
+        }
+
+        File dbFile = new File(DATABASE_DIR, filename);
+        if (!dbFile.exists()) {
+            sendJsonResponse(out, "{\"error\":\"Database file not found\"}", 404);
+            return;
+        }
+        UserDatabase db = UserDatabase.open(dbFile);
+        if (!db.getTables().contains(table)) {
+            sendJsonResponse(out, "{\"error\":\"Table not found\"}", 404);
+            return;
+        }
+
+        RowQuery query;
+        int[] counts;
+        try {
+            UserDatabase.Mutation update = toUpdate(db, table, request);
+            query = update.query;
+            counts = db.update(table, query, update.values);
+        } catch (IllegalArgumentException | ClassCastException e) {
+            sendJsonResponse(out, "{\"error\":" + JsonUtils.quote(e.getMessage()) + "}", 400);
+            return;
+        }
+
+        log("API: Updated " + counts[1] + " of " + counts[0] + " matching rows in " + filename + "." + table + " (" + query.plan + ")");
+        StringBuilder json = new StringBuilder();
+        json.append("{\"success\":true,\"matched\":").append(counts[0]).append(",\"updated\":").append(counts[1]).append(",\"plan\":");
+        JsonUtils.appendQuoted(json, query.plan);
+        json.append("}");
+        sendJsonResponse(out, json.toString(), 200);
     }
 
-    private static String getLogsPage() {
-        String logs = "";
+    // "key" (the row id) or "where" picks the rows, "set" maps column names to their new values
+    private static UserDatabase.Mutation toUpdate(UserDatabase db, String table, Map<?, ?> spec) {
+        List<String> columns = db.getColumns(table);
+        RowQuery query = new RowQuery();
+        if (spec.get("key") != null) {
+            query.filters.add(new RowQuery.Condition(0, RowQuery.Op.EQ, JsonUtils.asString(spec.get("key")), null));
+        } else if (spec.get("where") != null) {
+            addWhere(query, spec.get("where"), columns);
+        } else {
+            throw new IllegalArgumentException("Missing key or where");
+        }
+        if (!(spec.get("set") instanceof Map) || ((Map<?, ?>) spec.get("set")).isEmpty()) {
+            throw new IllegalArgumentException("Missing set");
+        }
+        Map<Integer, String> values = new LinkedHashMap<>();
+        for (Map.Entry<?, ?> e : ((Map<?, ?>) spec.get("set")).entrySet()) {
+            String value = JsonUtils.asString(e.getValue());
+            values.put(columnOf(columns, String.valueOf(e.getKey())), value != null ? value : "");
+        }
+        return UserDatabase.Mutation.update(table, query, values);
+    }
+
+    private static void handleUpsertApi(OutputStream out, String requestBody) throws IOException {
+        // {"file":"mydb.secdb","table":"users","row":["1","john","john@email.com"]}
+        // "row" may also be a JSON object keyed by column, as in /api/batch
+        Map<?, ?> request;
         try {
-            logs = Files.readString(Path.of("server.log"));
-        } catch (IOException e) {
-            logs = "No logs available";
+            request = (Map<?, ?>) JsonUtils.parse(requestBody.trim());
+        } catch (IllegalArgumentException | ClassCastException e) {
+            sendJsonResponse(out, "{\"error\":" + JsonUtils.quote("Invalid upsert body: " + e.getMessage()) + "}", 400);
+            return;
+        }
+        String filename = JsonUtils.asString(request.get("file"));
+        String table = JsonUtils.asString(request.get("table"));
+        if (filename == null || table == null || request.get("row") == null) {
+            sendJsonResponse(out, "{\"error\":\"Missing file, table, or row\"}", 400);
+            return;
         }
 
-        String content = """
-            <div class="flex justify-between items-center mb-8">
+        File dbFile = new File(DATABASE_DIR, filename);
+        if (!dbFile.exists()) {
+            sendJsonResponse(out, "{\"error\":\"Database file not found\"}", 404);
+            return;
+        }
+        UserDatabase db = UserDatabase.open(dbFile);
+        if (!db.getTables().contains(table)) {
+            sendJsonResponse(out, "{\"error\":\"Table not found\"}", 404);
+            return;
+        }
+
+        boolean inserted;
+        try {
+            String[] row = toRow(db, table, request.get("row"));
+            if (row.length == 0) throw new IllegalArgumentException("Row has no id");
+            inserted = db.upsert(table, row);
+        } catch (IllegalArgumentException | ClassCastException e) {
+            sendJsonResponse(out, "{\"error\":" + JsonUtils.quote(e.getMessage()) + "}", 400);
+            return;
+        }
+
+        sendJsonResponse(out, "{\"success\":true,\"inserted\":" + inserted + ",\"message\":\"Row " + (inserted ? "inserted" : "updated") + "\"}", 200);
+    }
+
+    private static void handleTransactionApi(OutputStream out, String requestBody) throws IOException {
+        // {"file":"mydb.secdb","operations":[
+        //   {"op":"insert","table":"orders","row":["17","1","42.50"]},
+        //   {"op":"update","table":"stock","key":"42","set":{"count":"9"}},
+        //   {"op":"delete","table":"carts","key":"1"}]}
+        // Rows are JSON arrays or objects as in /api/batch; updates take "key" or "where" as in /api/update.
+        Map<?, ?> request;
+        try {
+            request = (Map<?, ?>) JsonUtils.parse(requestBody.trim());
+        } catch (IllegalArgumentException | ClassCastException e) {
+            sendJsonResponse(out, "{\"error\":" + JsonUtils.quote("Invalid transaction body: " + e.getMessage()) + "}", 400);
+            return;
+        }
+        String filename = JsonUtils.asString(request.get("file"));
+        if (filename == null || !(request.get("operations") instanceof List)) {
+            sendJsonResponse(out, "{\"error\":\"Missing file or operations\"}", 400);
+            return;
+        }
+
+        File dbFile = new File(DATABASE_DIR, filename);
+        if (!dbFile.exists()) {
+            sendJsonResponse(out, "{\"error\":\"Database file not found\"}", 404);
+            return;
+        }
+        UserDatabase db = UserDatabase.open(dbFile);
+
+        List<?> operations = (List<?>) request.get("operations");
+        List<UserDatabase.Mutation> mutations = new ArrayList<>();
+        List<int[]> results;
+        try {
+            for (int i = 0; i < operations.size(); i++) {
+                try {
+                    Map<?, ?> operation = (Map<?, ?>) operations.get(i);
+                    String table = requireTable(JsonUtils.asString(operation.get("table")));
+                    if (!db.getTables().contains(table)) throw new IllegalArgumentException("No such table: " + table);
+                    String op = String.valueOf(operation.get("op"));
+                    switch (op) {
+                        case "insert":
+                            mutations.add(UserDatabase.Mutation.insert(table, toRow(db, table, operation.get("row"))));
+                            break;
+                        case "update":
+                            mutations.add(toUpdate(db, table, operation));
+                            break;
+                        case "delete":
+                            String key = JsonUtils.asString(operation.get("key"));
+                            if (key == null) throw new IllegalArgumentException("Missing key");
+                            mutations.add(UserDatabase.Mutation.delete(table, key));
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown op: " + op);
+                    }
+                } catch (IllegalArgumentException | ClassCastException e) {
+                    throw new IllegalArgumentException("Operation " + i + ": " + e.getMessage(), e);
+                }
+            }
+            results = db.transaction(mutations);
+        } catch (IllegalArgumentException e) {
+            sendJsonResponse(out, "{\"error\":" + JsonUtils.quote(e.getMessage()) + "}", 400);
+            return;
+        } catch (UncheckedIOException e) {
+            // The transaction was undone, so the client can safely send it again
+            log("API Transaction Error: " + e.getMessage());
+            sendJsonResponse(out, "{\"error\":" + JsonUtils.quote(e.getMessage() + "; nothing was applied") + "}", 500);
+            return;
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"success\":true,\"results\":[");
+        for (int i = 0; i < results.size(); i++) {
+            if (i > 0) json.append(",");
+            UserDatabase.Mutation m = mutations.get(i);
+            json.append("{\"op\":\"").append(m.kind.name().toLowerCase()).append("\",\"table\":");
+            JsonUtils.appendQuoted(json, m.table);
+            if (m.kind == UserDatabase.Mutation.Kind.UPDATE) {
+                json.append(",\"matched\":").append(results.get(i)[0]).append(",\"updated\":").append(results.get(i)[1]);
+            }
+            json.append("}");
+        }
+        json.append("]}");
+
+        log("API: Committed a transaction of " + mutations.size() + " operations on " + filename);
+        sendJsonResponse(out, json.toString(), 200);
+    }
+
+    private static void handleBatchApi(OutputStream out, String requestBody) throws IOException {
+        // Either a JSON object:
+        //   {"file":"mydb.secdb","table":"users","rows":[...],"delete":["1","2"]}
+        // or newline-delimited:
+        //   file:mydb.secdb
+        //   table:users
+        //   1,john,john@email.com
+        //   ["2","jane","jane@email.com"]
+        //   delete:1,2
+        //   table:orders          (switches the target table)
+        // Rows may be CSV lines, JSON arrays, JSON objects keyed by column, or
+        // {"table":..,"row":..} / {"table":..,"delete":..} entries.
+        String body = requestBody.trim();
+        String filename = null;
+        String table = null;
+        List<Object> entries = new ArrayList<>();
+
+        try {
+            if (body.startsWith("{")) {
+                Map<?, ?> request = (Map<?, ?>) JsonUtils.parse(body);
+                filename = JsonUtils.asString(request.get("file"));
+                table = JsonUtils.asString(request.get("table"));
+                if (request.get("rows") instanceof List) {
+                    entries.addAll((List<?>) request.get("rows"));
+                }
+                if (request.get("delete") != null) {
+                    Map<String, Object> delete = new LinkedHashMap<>();
+                    delete.put("delete", request.get("delete"));
+                    entries.add(delete);
+                }
+            } else {
+                for (String line : body.split("\r?\n")) {
+                    line = line.trim();
+                    if (line.isEmpty()) continue;
+                    if (line.startsWith("file:")) filename = line.substring(5).trim();
+                    else entries.add(line);
+                }
+            }
+        } catch (IllegalArgumentException | ClassCastException e) {
+            sendJsonResponse(out, "{\"error\":" + JsonUtils.quote("Invalid batch body: " + e.getMessage()) + "}", 400);
+            return;
+        }
+
+        if (filename == null) {
+            sendJsonResponse(out, "{\"error\":\"Missing file\"}", 400);
+            return;
+        }
+
+        File dbFile = new File(DATABASE_DIR, filename);
+        if (!dbFile.exists()) {
+            sendJsonResponse(out, "{\"error\":\"Database file not found\"}", 404);
+            return;
+        }
+
+        UserDatabase db = UserDatabase.open(dbFile);
+        List<UserDatabase.Mutation> batch = new ArrayList<>();
+        List<Integer> entryOf = new ArrayList<>();
+        Map<Integer, String> parseErrors = new TreeMap<>();
+
+        for (int i = 0; i < entries.size(); i++) {
+            Object entry = entries.get(i);
+            try {
+                if (entry instanceof String) {
+                    String line = (String) entry;
+                    if (line.startsWith("table:")) {
+                        table = line.substring(6).trim();
+                        continue;
+                    }
+                    if (line.startsWith("delete:")) {
+                        for (String id : line.substring(7).split(",")) {
+                            batch.add(UserDatabase.Mutation.delete(requireTable(table), id.trim()));
+                            entryOf.add(i);
+                        }
+                        continue;
+                    }
+                    entry = line.startsWith("[") || line.startsWith("{") ? JsonUtils.parse(line) : line.split(",");
+                }
+                for (UserDatabase.Mutation m : toMutations(db, table, entry)) {
+                    batch.add(m);
+                    entryOf.add(i);
+                }
+            } catch (IllegalArgumentException | ClassCastException e) {
+                parseErrors.put(i, e.getMessage());
+            }
+        }
+
+        List<String> errors = db.applyBatch(batch);
+
+        int applied = 0;
+        StringBuilder results = new StringBuilder();
+        for (int k = 0; k < batch.size(); k++) {
+            UserDatabase.Mutation m = batch.get(k);
+            String error = errors.get(k);
+            if (k > 0) results.append(",");
+            results.append("{\"entry\":").append(entryOf.get(k))
+                   .append(",\"op\":\"").append(m.kind == UserDatabase.Mutation.Kind.INSERT ? "insert" : "delete").append("\"")
+                   .append(",\"table\":").append(JsonUtils.quote(m.table));
+            if (m.id != null) results.append(",\"id\":").append(JsonUtils.quote(m.id));
+            if (error == null) {
+                results.append(",\"ok\":true}");
+                applied++;
+            } else {
+                results.append(",\"ok\":false,\"error\":").append(JsonUtils.quote(error)).append("}");
+            }
+        }
+
+        // Entries that could not be turned into mutations at all
+        StringBuilder rejected = new StringBuilder();
+        for (Map.Entry<Integer, String> e : parseErrors.entrySet()) {
+            if (rejected.length() > 0) rejected.append(",");
+            rejected.append("{\"entry\":").append(e.getKey())
+                    .append(",\"error\":").append(JsonUtils.quote(e.getValue())).append("}");
+        }
+
+        int failed = batch.size() - applied + parseErrors.size();
+        log("API: Batch on " + filename + " applied " + applied + ", failed " + failed);
+        sendJsonResponse(out, "{\"success\":true,\"applied\":" + applied + ",\"failed\":" + failed
+                + ",\"results\":[" + results + "],\"rejected\":[" + rejected + "]}", 200);
+    }
+
+    // Turns one parsed batch entry (CSV cells, JSON array or JSON object) into mutations
+    private static List<UserDatabase.Mutation> toMutations(UserDatabase db, String table, Object entry) {
+        List<UserDatabase.Mutation> mutations = new ArrayList<>();
+        if (entry instanceof String[]) {
+            mutations.add(UserDatabase.Mutation.insert(requireTable(table), (String[]) entry));
+        } else if (entry instanceof List) {
+            mutations.add(UserDatabase.Mutation.insert(requireTable(table), toRow(db, table, entry)));
+        } else if (entry instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) entry;
+            if (map.containsKey("row") || map.containsKey("delete")) {
+                String target = map.containsKey("table") ? JsonUtils.asString(map.get("table")) : table;
+                if (map.containsKey("row")) {
+                    mutations.add(UserDatabase.Mutation.insert(requireTable(target), toRow(db, target, map.get("row"))));
+                }
+                Object delete = map.get("delete");
+                for (Object id : delete instanceof List ? (List<?>) delete : delete == null ? List.of() : List.of(delete)) {
+                    mutations.add(UserDatabase.Mutation.delete(requireTable(target), JsonUtils.asString(id)));
+                }
+            } else {
+                mutations.add(UserDatabase.Mutation.insert(requireTable(table), toRow(db, table, map)));
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported batch entry");
+        }
+        return mutations;
+    }
+
+    // A JSON array is taken positionally; a JSON object is mapped by column name like /api/insert
+    private static String[] toRow(UserDatabase db, String table, Object value) {
+        if (value instanceof List) {
+            List<?> cells = (List<?>) value;
+            String[] row = new String[cells.size()];
+            for (int i = 0; i < row.length; i++) {
+                String cell = JsonUtils.asString(cells.get(i));
+                row[i] = cell != null ? cell : "";
+            }
+            return row;
+        }
+        if (value instanceof Map) {
+            Map<?, ?> values = (Map<?, ?>) value;
+            List<String> columns = db.getColumns(table);
+            if (columns.isEmpty()) throw new IllegalArgumentException("No such table: " + table);
+            String[] row = new String[columns.size()];
+            for (int i = 0; i < row.length; i++) {
+                String cell = JsonUtils.asString(values.get(columns.get(i)));
+                row[i] = cell != null ? cell : "";
+            }
+            return row;
+        }
+        throw new IllegalArgumentException("Row must be a JSON array or object");
+    }
+
+    private static String requireTable(String table) {
+        if (table == null || table.isEmpty()) throw new IllegalArgumentException("Missing table");
+        return table;
+    }
+
+    private static void handleSelectApi(OutputStream out, String requestBody) throws IOException {
+        // {"file":"mydb.secdb","table":"events",
+        //  "where":{"and":[{"column":"ts","op":">","value":1700000000},
+        //                  {"or":[{"column":"kind","value":"click"},{"column":"kind","value":"view"}]}]},
+        //  "columns":["id","ts"],"order_by":"ts","order":"desc","offset":0,"limit":50}
+        // "where" may also be a single condition or an array (AND). "op" defaults to "=".
+        Map<?, ?> request;
+        try {
+            request = (Map<?, ?>) JsonUtils.parse(requestBody.trim());
+        } catch (IllegalArgumentException | ClassCastException e) {
+            sendJsonResponse(out, "{\"error\":" + JsonUtils.quote("Invalid select body: " + e.getMessage()) + "}", 400);
+            return;
+        }
+        String filename = JsonUtils.asString(request.get("file"));
+        String table = JsonUtils.asString(request.get("table"));
+        if (filename == null || table == null) {
+            sendJsonResponse(out, "{\"error\":\"Missing file or table\"}", 400);
+            return;
+        }
+
+        File dbFile = new File(DATABASE_DIR, filename);
+        if (!dbFile.exists()) {
+            sendJsonResponse(out, "{\"error\":\"Database file not found\"}", 404);
+            return;
+        }
+        UserDatabase db = UserDatabase.open(dbFile);
+        if (!db.getTables().contains(table)) {
+            sendJsonResponse(out, "{\"error\":\"Table not found\"}", 404);
+            return;
+        }
+
+        List<String> columns = db.getColumns(table);
+        RowQuery query = new RowQuery();
+        int[] projection;
+        try {
+            if (request.get("where") != null) addWhere(query, request.get("where"), columns);
+            if (request.get("order_by") != null) {
+                query.orderBy = columnOf(columns, JsonUtils.asString(request.get("order_by")));
+                query.descending = "desc".equalsIgnoreCase(JsonUtils.asString(request.get("order")));
+            }
+            if (request.get("offset") != null) query.offset = Integer.parseInt(JsonUtils.asString(request.get("offset")));
+            if (request.get("limit") != null) query.limit = Integer.parseInt(JsonUtils.asString(request.get("limit")));
+            if (query.offset < 0 || (request.get("limit") != null && query.limit < 0)) {
+                throw new IllegalArgumentException("offset and limit must not be negative");
+            }
+
+            List<?> selected = request.get("columns") instanceof List ? (List<?>) request.get("columns") : null;
+            projection = new int[selected != null ? selected.size() : columns.size()];
+            for (int i = 0; i < projection.length; i++) {
+                projection[i] = selected != null ? columnOf(columns, JsonUtils.asString(selected.get(i))) : i;
+            }
+        } catch (IllegalArgumentException | ClassCastException e) {
+            sendJsonResponse(out, "{\"error\":" + JsonUtils.quote(e.getMessage()) + "}", 400);
+            return;
+        }
+
+        List<String[]> rows = db.query(table, query);
+
+        // Only the projected columns are written
+        StringBuilder json = new StringBuilder();
+        json.append("{\"success\":true,\"count\":").append(rows.size()).append(",\"plan\":");
+        JsonUtils.appendQuoted(json, query.plan);
+        json.append(",\"columns\":[");
+        for (int i = 0; i < projection.length; i++) {
+            if (i > 0) json.append(",");
+            JsonUtils.appendQuoted(json, columns.get(projection[i]));
+        }
+        json.append("],\"rows\":[");
+        for (int r = 0; r < rows.size(); r++) {
+            if (r > 0) json.append(",");
+            String[] row = rows.get(r);
+            json.append("[");
+            for (int i = 0; i < projection.length; i++) {
+                if (i > 0) json.append(",");
+                JsonUtils.appendQuoted(json, projection[i] < row.length && row[projection[i]] != null ? row[projection[i]] : "");
+            }
+            json.append("]");
+        }
+        json.append("]}");
+
+        log("API: Selected " + rows.size() + " rows from " + filename + "." + table + " (" + query.plan + ")");
+        sendJsonResponse(out, json.toString(), 200);
+    }
+
+    private static void handleAggregateApi(OutputStream out, String requestBody) throws IOException {
+        // {"file":"mydb.secdb","table":"orders","where":{...as in /api/select...},
+        //  "group_by":["user"],
+        //  "aggregates":[{"fn":"count"},{"fn":"sum","column":"total","as":"revenue"},{"fn":"max","column":"total"}]}
+        Map<?, ?> request;
+        try {
+            request = (Map<?, ?>) JsonUtils.parse(requestBody.trim());
+        } catch (IllegalArgumentException | ClassCastException e) {
+            sendJsonResponse(out, "{\"error\":" + JsonUtils.quote("Invalid aggregate body: " + e.getMessage()) + "}", 400);
+            return;
+        }
+        String filename = JsonUtils.asString(request.get("file"));
+        String table = JsonUtils.asString(request.get("table"));
+        if (filename == null || table == null) {
+            sendJsonResponse(out, "{\"error\":\"Missing file or table\"}", 400);
+            return;
+        }
+
+        File dbFile = new File(DATABASE_DIR, filename);
+        if (!dbFile.exists()) {
+            sendJsonResponse(out, "{\"error\":\"Database file not found\"}", 404);
+            return;
+        }
+        UserDatabase db = UserDatabase.open(dbFile);
+        if (!db.getTables().contains(table)) {
+            sendJsonResponse(out, "{\"error\":\"Table not found\"}", 404);
+            return;
+        }
+
+        List<String> columns = db.getColumns(table);
+        RowQuery query = new RowQuery();
+        Aggregation aggregation;
+        List<String> names = new ArrayList<>();
+        try {
+            if (request.get("where") != null) addWhere(query, request.get("where"), columns);
+
+            Object groupSpec = request.get("group_by");
+            List<?> groupNames = groupSpec == null ? List.of() : groupSpec instanceof List ? (List<?>) groupSpec : List.of(groupSpec);
+            int[] groupBy = new int[groupNames.size()];
+            for (int i = 0; i < groupBy.length; i++) {
+                String name = JsonUtils.asString(groupNames.get(i));
+                groupBy[i] = columnOf(columns, name);
+                names.add(name);
+            }
+
+            List<Aggregation.Measure> measures = new ArrayList<>();
+            Object aggregates = request.get("aggregates");
+            for (Object spec : aggregates instanceof List ? (List<?>) aggregates : List.of(Map.of("fn", "count"))) {
+                Map<?, ?> measure = (Map<?, ?>) spec;
+                Aggregation.Fn fn = Aggregation.Fn.parse(JsonUtils.asString(measure.get("fn")));
+                String column = JsonUtils.asString(measure.get("column"));
+                String name = measure.get("as") != null ? JsonUtils.asString(measure.get("as"))
+                        : fn.name().toLowerCase() + (column != null ? "_" + column : "");
+                measures.add(new Aggregation.Measure(fn, column != null ? columnOf(columns, column) : -1, name));
+                names.add(name);
+            }
+            aggregation = new Aggregation(measures, groupBy);
+        } catch (IllegalArgumentException | ClassCastException e) {
+            sendJsonResponse(out, "{\"error\":" + JsonUtils.quote(e.getMessage()) + "}", 400);
+            return;
+        }
+
+        List<Object[]> results = db.aggregate(table, query, aggregation);
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"success\":true,\"plan\":");
+        JsonUtils.appendQuoted(json, query.plan);
+        json.append(",\"columns\":[");
+        for (int i = 0; i < names.size(); i++) {
+            if (i > 0) json.append(",");
+            JsonUtils.appendQuoted(json, names.get(i));
+        }
+        json.append("],\"rows\":[");
+        for (int r = 0; r < results.size(); r++) {
+            if (r > 0) json.append(",");
+            json.append("[");
+            Object[] result = results.get(r);
+            for (int i = 0; i < result.length; i++) {
+                if (i > 0) json.append(",");
+                Object value = result[i];
+                if (value instanceof Double) {
+                    double d = (Double) value;
+                    if (Double.isNaN(d) || Double.isInfinite(d)) json.append("null");
+                    else if (d == Math.rint(d) && Math.abs(d) < 1e15) json.append((long) d);
+                    else json.append(d);
+                } else if (value instanceof Long) {
+                    json.append(value);
+                } else if (value == null) {
+                    json.append("null");
+                } else {
+                    JsonUtils.appendQuoted(json, (String) value);
+                }
+            }
+            json.append("]");
+        }
+        json.append("]}");
+
+        log("API: Aggregated " + filename + "." + table + " into " + results.size() + " rows (" + query.plan + ")");
+        sendJsonResponse(out, json.toString(), 200);
+    }
+
+    // Top-level AND parts become separate filters, so the planner can pick any of them
+    private static void addWhere(RowQuery query, Object spec, List<String> columns) {
+        RowQuery.Filter where = toFilter(spec, columns);
+        if (where instanceof RowQuery.Group && !((RowQuery.Group) where).any) {
+            query.filters.addAll(((RowQuery.Group) where).parts);
+        } else {
+            query.filters.add(where);
+        }
+    }
+
+    // {"and":[...]}, {"or":[...]}, [...] (AND) or {"column":..,"op":..,"value":..,"value2":..}
+    private static RowQuery.Filter toFilter(Object spec, List<String> columns) {
+        if (spec instanceof List) return toGroup(false, spec, columns);
+        Map<?, ?> map = (Map<?, ?>) spec;
+        if (map.containsKey("and")) return toGroup(false, map.get("and"), columns);
+        if (map.containsKey("or")) return toGroup(true, map.get("or"), columns);
+        String op = map.get("op") != null ? JsonUtils.asString(map.get("op")) : "=";
+        return new RowQuery.Condition(columnOf(columns, JsonUtils.asString(map.get("column"))), RowQuery.Op.parse(op),
+                JsonUtils.asString(map.get("value")), JsonUtils.asString(map.get("value2")));
+    }
+
+    private static RowQuery.Filter toGroup(boolean any, Object parts, List<String> columns) {
+        List<RowQuery.Filter> filters = new ArrayList<>();
+        for (Object part : (List<?>) parts) filters.add(toFilter(part, columns));
+        if (filters.isEmpty()) throw new IllegalArgumentException("Empty " + (any ? "or" : "and") + " group");
+        return filters.size() == 1 ? filters.get(0) : new RowQuery.Group(any, filters);
+    }
+
+    private static int columnOf(List<String> columns, String name) {
+        int column = columns.indexOf(name);
+        if (column < 0) throw new IllegalArgumentException("Unknown column: " + name);
+        return column;
+    }
+
+    private static void sendJsonResponse(OutputStream out, String json, int statusCode) throws IOException {
+        String response = jsonHeaders(statusCode) + json;
+        out.write(response.getBytes());
+        out.flush();
+    }
+
+    /** Sends JSON that was written as UTF-8 bytes, without turning it into a String first. */
+    private static void sendJsonResponse(OutputStream out, ByteArrayOutputStream json, int statusCode) throws IOException {
+        out.write(jsonHeaders(statusCode).getBytes(StandardCharsets.US_ASCII));
+        json.writeTo(out);
+        out.flush();
+    }
+
+    private static String jsonHeaders(int statusCode) {
+        String status = statusCode == 200 ? "OK" : 
+                    statusCode == 400 ? "Bad Request" :
+                    statusCode == 401 ? "Unauthorized" :
+                    statusCode == 404 ? "Not Found" :
+                    statusCode == 409 ? "Conflict" :
+                    statusCode == 503 ? "Service Unavailable" : "Internal Server Error";
+        
+        return "HTTP/1.1 " + statusCode + " " + status + "\r\n" +
+                        "Content-Type: application/json\r\n" +
+                        "Access-Control-Allow-Origin: *\r\n" +
+                        "Access-Control-Allow-Methods: GET, POST, PUT, DELETE\r\n" +
+                        "Access-Control-Allow-Headers: Content-Type, Authorization\r\n\r\n";
+    }
+
+    private static String getLogsPage() {
+        String logs = "";
+        try {
+            logs = Files.readString(Path.of("server.log"));
+        } catch (IOException e) {
+            logs = "No logs available";
+        }
+
+        String content = """
+            <div class="flex justify-between items-center mb-8">
                 <div>
                     <h1 class="text-3xl font-bold text-gray-900">Server Logs</h1>
                     <p class="text-gray-600">Monitor server activity and events</p>
@@ -1187,6 +2326,9 @@ public class SimpleWebServer {
             }
         }
 
+        // Base64 AES key; database files are encrypted while one is set
+        CryptoUtils.setDatabaseKey(config.getProperty("db.encryption.key"));
+
         log("Loaded config: port=" + PORT + ", user=" + USERNAME);
     }
 
@@ -1254,7 +2396,7 @@ public class SimpleWebServer {
                 return;
             }
             
-            UserDatabase database = new UserDatabase(db);
+            UserDatabase database = UserDatabase.open(db);
             
             // Check if table exists
             if (!database.getTables().contains(dbTable)) {
@@ -1278,6 +2420,10 @@ public class SimpleWebServer {
             log("API: Inserted row into " + dbFile + "." + dbTable);
             sendJsonResponse(out, "{\"success\":true,\"message\":\"Row inserted successfully\"}", 200);
             
+        } catch (IllegalArgumentException e) {
+            sendJsonResponse(out, "{\"error\":" + JsonUtils.quote(e.getMessage()) + "}", 400);
+        } catch (WriteQueue.FullException e) {
+            sendJsonResponse(out, "{\"error\":" + JsonUtils.quote(e.getMessage()) + "}", 503);
         } catch (Exception e) {
             log("API Insert Error: " + e.getMessage());
             sendJsonResponse(out, "{\"error\":\"Internal server error\"}", 500);
@@ -1290,8 +2436,6 @@ public class SimpleWebServer {
             String dbFile = params.get("dbfile");
             String dbTable = params.get("dbtable");
             String serverSecret = params.get("server_secret");
-            String queryColumn = params.get("query_column");
-            String queryValue = params.get("query_value");
             
             // Verify server secret
             if (!SECRET_KEY.equals(serverSecret)) {
@@ -1311,7 +2455,7 @@ public class SimpleWebServer {
                 return;
             }
             
-            UserDatabase database = new UserDatabase(db);
+            UserDatabase database = UserDatabase.open(db);
             
             if (!database.getTables().contains(dbTable)) {
                 sendJsonResponse(out, "{\"error\":\"Table not found\"}", 404);
@@ -1319,7 +2463,13 @@ public class SimpleWebServer {
             }
             
             List<String> columns = database.getColumns(dbTable);
-            List<String[]> rows = database.getRows(dbTable);
+            List<String[]> rows;
+            try {
+                rows = database.query(dbTable, toRowQuery(params, columns));
+            } catch (IllegalArgumentException e) {
+                sendJsonResponse(out, "{\"error\":" + JsonUtils.quote(e.getMessage()) + "}", 400);
+                return;
+            }
             
             StringBuilder jsonResult = new StringBuilder();
             jsonResult.append("{\"success\":true,\"columns\":[");
@@ -1331,30 +2481,16 @@ public class SimpleWebServer {
             }
             jsonResult.append("],\"rows\":[");
             
-            // Filter rows if query parameters provided
             boolean first = true;
             for (String[] row : rows) {
-                boolean includeRow = true;
-                
-                if (queryColumn != null && queryValue != null) {
-                    int columnIndex = columns.indexOf(queryColumn);
-                    if (columnIndex >= 0 && columnIndex < row.length) {
-                        includeRow = queryValue.equals(row[columnIndex]);
-                    } else {
-                        includeRow = false;
-                    }
-                }
-                
-                if (includeRow) {
-                    if (!first) jsonResult.append(",");
-                    jsonResult.append("[");
-                    for (int i = 0; i < row.length; i++) {
-                        jsonResult.append("\"").append(row[i] != null ? row[i] : "").append("\"");
-                        if (i < row.length - 1) jsonResult.append(",");
-                    }
-                    jsonResult.append("]");
-                    first = false;
+                if (!first) jsonResult.append(",");
+                jsonResult.append("[");
+                for (int i = 0; i < row.length; i++) {
+                    jsonResult.append("\"").append(row[i] != null ? row[i] : "").append("\"");
+                    if (i < row.length - 1) jsonResult.append(",");
                 }
+                jsonResult.append("]");
+                first = false;
             }
             
             jsonResult.append("]}");
@@ -1368,6 +2504,33 @@ public class SimpleWebServer {
         }
     }
     
+    // query_column, query_op (default eq), query_value, query_value2, order_by, order, limit
+    private static RowQuery toRowQuery(Map<String, String> params, List<String> columns) {
+        RowQuery query = new RowQuery();
+        String queryColumn = params.get("query_column");
+        if (queryColumn != null && params.get("query_value") != null) {
+            int column = columns.indexOf(queryColumn);
+            RowQuery.Op op = RowQuery.Op.parse(params.getOrDefault("query_op", "eq"));
+            if (column < 0) {
+                // As before: filtering on a column the table doesn't have matches nothing
+                query.limit = 0;
+                return query;
+            }
+            query.filters.add(new RowQuery.Condition(column, op, params.get("query_value"), params.get("query_value2")));
+        }
+        String orderBy = params.get("order_by");
+        if (orderBy != null) {
+            query.orderBy = columns.indexOf(orderBy);
+            if (query.orderBy < 0) throw new IllegalArgumentException("Unknown order_by column: " + orderBy);
+            query.descending = "desc".equalsIgnoreCase(params.get("order"));
+        }
+        if (params.get("limit") != null) {
+            query.limit = Integer.parseInt(params.get("limit"));
+            if (query.limit < 0) throw new IllegalArgumentException("limit must not be negative");
+        }
+        return query;
+    }
+    
     private static void handleApiExists(OutputStream out, String body) throws IOException {
         try {
             Map<String, String> params = parseFormData(body);
@@ -1395,7 +2558,7 @@ public class SimpleWebServer {
                 return;
             }
             
-            UserDatabase database = new UserDatabase(db);
+            UserDatabase database = UserDatabase.open(db);
             
             if (!database.getTables().contains(dbTable)) {
                 sendJsonResponse(out, "{\"error\":\"Table not found\"}", 404);
@@ -1403,7 +2566,6 @@ public class SimpleWebServer {
             }
             
             List<String> columns = database.getColumns(dbTable);
-            List<String[]> rows = database.getRows(dbTable);
             
             int columnIndex = columns.indexOf(checkColumn);
             if (columnIndex < 0) {
@@ -1411,13 +2573,8 @@ public class SimpleWebServer {
                 return;
             }
             
-            boolean exists = false;
-            for (String[] row : rows) {
-                if (columnIndex < row.length && checkValue.equals(row[columnIndex])) {
-                    exists = true;
-                    break;
-                }
-            }
+            // Goes through the column's index when it has one
+            boolean exists = database.containsValue(dbTable, columnIndex, checkValue);
             
             log("API: Checked existence in " + dbFile + "." + dbTable);
             sendJsonResponse(out, "{\"success\":true,\"exists\":" + exists + "}", 200);
@@ -1428,6 +2585,20 @@ public class SimpleWebServer {
         }
     }
     
+    /**
+     * Paging cursors of /api/getrows. cursor.timeout.seconds (default 300)
+     * is how long an unused cursor keeps its snapshot; cursor.max (default
+     * 1000) caps how many are open at once.
+     */
+    private static synchronized RowCursors rowCursors() {
+        if (rowCursors == null) {
+            long timeout = Long.parseLong(config.getProperty("cursor.timeout.seconds", "300")) * 1000;
+            int max = Integer.parseInt(config.getProperty("cursor.max", "1000"));
+            rowCursors = new RowCursors(timeout, max);
+        }
+        return rowCursors;
+    }
+
     private static void handleApiGetRows(OutputStream out, String body) throws IOException {
         try {
             Map<String, String> params = parseFormData(body);
@@ -1453,7 +2624,7 @@ public class SimpleWebServer {
                 return;
             }
             
-            UserDatabase database = new UserDatabase(db);
+            UserDatabase database = UserDatabase.open(db);
             
             if (!database.getTables().contains(dbTable)) {
                 sendJsonResponse(out, "{\"error\":\"Table not found\"}", 404);
@@ -1461,34 +2632,69 @@ public class SimpleWebServer {
             }
             
             List<String> columns = database.getColumns(dbTable);
-            List<String[]> rows = database.getRows(dbTable);
+            List<String[]> rows;
+            int from, to;
+            int count;
+            int limit;
+            try {
+                limit = Integer.parseInt(params.getOrDefault("limit", "1000"));
+            } catch (NumberFormatException e) {
+                limit = -1;
+            }
+            if (limit <= 0) {
+                sendJsonResponse(out, "{\"error\":\"limit must be a positive number\"}", 400);
+                return;
+            }
+            RowCursors.Cursor cursor = null;
+            if (params.containsKey("cursor")) {
+                cursor = rowCursors().get(params.get("cursor"), dbFile, dbTable);
+                if (cursor == null) {
+                    sendJsonResponse(out, "{\"error\":\"Cursor not found or expired\"}", 404);
+                    return;
+                }
+            } else if (params.containsKey("limit")) {
+                cursor = rowCursors().open(dbFile, dbTable, database.getRows(dbTable));
+            }
+            if (cursor != null) {
+                // Pages come from the snapshot taken for the first page
+                rows = cursor.rows;
+                from = cursor.advance(limit);
+                to = Math.min(rows.size(), from + limit);
+                count = rows.size();
+            } else {
+                rows = database.getRows(dbTable);
+                from = 0;
+                to = rows.size();
+                count = rows.size();
+            }
             
             StringBuilder jsonResult = new StringBuilder();
-            jsonResult.append("{\"success\":true,\"count\":").append(rows.size()).append(",\"columns\":[");
+            jsonResult.append("{\"success\":true,\"count\":").append(count);
+            if (cursor != null) {
+                if (cursor.isDone()) {
+                    rowCursors().close(cursor);
+                } else {
+                    jsonResult.append(",\"cursor\":");
+                    JsonUtils.appendQuoted(jsonResult, cursor.id);
+                }
+            }
+            jsonResult.append(",\"columns\":[");
             
             // Add column names
             for (int i = 0; i < columns.size(); i++) {
-                jsonResult.append("\"").append(columns.get(i)).append("\"");
+                JsonUtils.appendQuoted(jsonResult, columns.get(i));
                 if (i < columns.size() - 1) jsonResult.append(",");
             }
             jsonResult.append("],\"rows\":[");
             
-            // Add all rows
-            for (int i = 0; i < rows.size(); i++) {
-                String[] row = rows.get(i);
-                jsonResult.append("[");
-                for (int j = 0; j < row.length; j++) {
-                    jsonResult.append("\"").append(row[j] != null ? row[j] : "").append("\"");
-                    if (j < row.length - 1) jsonResult.append(",");
-                }
-                jsonResult.append("]");
-                if (i < rows.size() - 1) jsonResult.append(",");
-            }
-            
-            jsonResult.append("]}");
+            // Add the rows, straight from their pages where the table is packed
+            ByteArrayOutputStream json = new ByteArrayOutputStream();
+            json.writeBytes(jsonResult.toString().getBytes(StandardCharsets.UTF_8));
+            writeJsonRows(json, rows, from, to);
+            json.writeBytes("]}".getBytes(StandardCharsets.UTF_8));
             
             log("API: Retrieved all rows from " + dbFile + "." + dbTable);
-            sendJsonResponse(out, jsonResult.toString(), 200);
+            sendJsonResponse(out, json, 200);
             
         } catch (Exception e) {
             log("API GetRows Error: " + e.getMessage());
@@ -1497,14 +2703,57 @@ public class SimpleWebServer {
     }
     
     static class UserDatabase {
+        static final String UNIQUE_ID = "primary.unique";
+        static final String HASH_INDEXES = "index.hash";
+        static final String ORDERED_INDEXES = "index.ordered";
+        static final String BLOOM_FILTERS = "index.bloom";
+        static final String COLUMN_TYPES = "column.types";
+        static final String EXPIRY_COLUMN = "expiry.column";
+        static final String EXPIRY_TTL = "expiry.ttl";
+        private static final int LOCK_STRIPES = 16;
+        private static final Map<String, UserDatabase> openDatabases = new HashMap<>();
+        private static ScanEngine scanEngine;
+        private static Compactor compactor;
+        private static ExpirySweeper expirySweeper;
+        private static int dictionaryLimit = -1;
+
         private File dbFile;
-        private Map<String, List<String[]>> tables;
-        private Map<String, List<String>> tableHeaders;
+        // Tables are locked one at a time through the striped locks; the maps themselves are concurrent
+        private final Map<String, List<String[]>> tables = new ConcurrentHashMap<>();
+        private final Map<String, List<String>> tableHeaders = new ConcurrentHashMap<>();
+        private final Map<String, Map<String, String>> tableProperties = new ConcurrentHashMap<>();
+        private final Map<String, TableIndexes> indexes = new ConcurrentHashMap<>();
+        private final Map<String, BloomFilter.Stats> bloomStats = new ConcurrentHashMap<>();
+        private final Map<String, ColumnDictionaries> dictionaries = new ConcurrentHashMap<>();
+        private final Map<String, List<ColumnType>> columnTypes = new ConcurrentHashMap<>();   // parsed column.types, by table
+        private final TableLocks locks = new TableLocks(LOCK_STRIPES);
+        private final Object saveLock = new Object();
+        private final AtomicLong changes = new AtomicLong();   // bumped by every change, under its table's write lock
+        private long saved;                                    // changes included in the file, guarded by saveLock
+        private boolean appendable;                            // the file is in the current format, guarded by saveLock
+        private MappedRowList.MappedFile mapping;              // the latest mapping of the file, guarded by saveLock
+        private volatile String loadError;                     // why the file could not be read; nothing is written then
+        private final Compactor.Status compaction = new Compactor.Status();
+        private final BlockCodec codec;
+        private final AtomicLong rawBytesWritten = new AtomicLong();
+        private final AtomicLong storedBytesWritten = new AtomicLong();
+        private final boolean mappedStorage;
+        private final boolean packedStorage;
+        private final boolean directPages;
+        private final WriteQueue writeQueue;
         
         public UserDatabase(File dbFile) {
             this.dbFile = dbFile;
-            this.tables = new HashMap<>();
-            this.tableHeaders = new HashMap<>();
+            this.mappedStorage = useMappedStorage(dbFile);
+            this.packedStorage = usePackedStorage();
+            this.directPages = config.getProperty("db.storage", "auto").equals("offheap");
+            this.codec = BlockCodec.named(setting("db.compression", dbFile, "none"),
+                    Integer.parseInt(setting("db.compression.level", dbFile, "6")));
+            this.writeQueue = useWriteQueue() ? new WriteQueue(dbFile.getName(),
+                    Integer.parseInt(config.getProperty("db.write.queue.capacity", "1024")),
+                    Integer.parseInt(config.getProperty("db.write.batch.max", "256")),
+                    Long.parseLong(config.getProperty("db.write.queue.timeout.ms", "5000")),
+                    this::saveChanges) : null;
             
             if (dbFile.exists() && dbFile.length() > 0) {
                 try {
@@ -1512,130 +2761,1706 @@ public class SimpleWebServer {
                 } catch (IOException e) {
                     System.err.println("Error loading database: " + e.getMessage());
                     e.printStackTrace();
+                    loadError = e.getMessage();
                 }
             }
         }
         
-        public List<String> getTables() {
-            return new ArrayList<>(tables.keySet());
+        /**
+         * Returns the instance shared by all requests for this file, loading it
+         * on first use. Indexes live on the instance, so they survive between
+         * requests.
+         */
+        static UserDatabase open(File dbFile) {
+            compactor();
+            expirySweeper();
+            synchronized (openDatabases) {
+                return openDatabases.computeIfAbsent(dbFile.getAbsolutePath(), k -> new UserDatabase(dbFile));
+            }
         }
-        
-        public List<String> getColumns(String table) {
-            return tableHeaders.getOrDefault(table, new ArrayList<>());
+
+        /** The shared instance for the file if some request has opened it, without opening it otherwise. */
+        static UserDatabase getIfOpen(File dbFile) {
+            synchronized (openDatabases) {
+                return openDatabases.get(dbFile.getAbsolutePath());
+            }
+        }
+
+        /** Forgets the shared instance, e.g. after its file was deleted, and stops its writer thread. */
+        static void close(File dbFile) {
+            UserDatabase db;
+            synchronized (openDatabases) {
+                db = openDatabases.remove(dbFile.getAbsolutePath());
+            }
+            if (db != null && db.writeQueue != null) db.writeQueue.shutdown();
+        }
+
+        /**
+         * The scan engine shared by all databases. scan.parallelism caps its
+         * threads (default: half the cores) and tables with fewer than
+         * scan.parallel.threshold rows (default 50000) are scanned on the
+         * request thread.
+         */
+        static synchronized ScanEngine scanEngine() {
+            if (scanEngine == null) {
+                int cores = Runtime.getRuntime().availableProcessors();
+                int parallelism = Integer.parseInt(config.getProperty("scan.parallelism", String.valueOf(Math.max(1, cores / 2))));
+                int threshold = Integer.parseInt(config.getProperty("scan.parallel.threshold", "50000"));
+                scanEngine = new ScanEngine(parallelism, threshold);
+            }
+            return scanEngine;
+        }
+
+        /**
+         * Columns with at most db.dictionary.max.values distinct values
+         * (default 256) are dictionary-encoded in memory; 0 turns that off.
+         */
+        static synchronized int dictionaryLimit() {
+            if (dictionaryLimit < 0) {
+                dictionaryLimit = Integer.parseInt(config.getProperty("db.dictionary.max.values", "256"));
+            }
+            return dictionaryLimit;
+        }
+
+        /**
+         * The background compactor, started with the first database. A file
+         * is compacted once at least db.compact.ratio (default 0.5) of it and
+         * db.compact.min.mb (default 4) are dead; copying runs at up to
+         * db.compact.rate.mb per second (default 32) and files are checked
+         * every db.compact.interval.seconds (default 60).
+         */
+        static synchronized Compactor compactor() {
+            if (compactor == null) {
+                compactor = new Compactor(
+                        Double.parseDouble(config.getProperty("db.compact.ratio", "0.5")),
+                        Long.parseLong(config.getProperty("db.compact.min.mb", "4")) * 1024 * 1024,
+                        Long.parseLong(config.getProperty("db.compact.rate.mb", "32")) * 1024 * 1024,
+                        Long.parseLong(config.getProperty("db.compact.interval.seconds", "60")) * 1000,
+                        () -> {
+                            synchronized (openDatabases) {
+                                return new ArrayList<>(openDatabases.values());
+                            }
+                        });
+            }
+            return compactor;
+        }
+
+        /**
+         * The background sweeper of expired rows, started with the first
+         * database. It runs every db.expiry.interval.ms (default 1000) and
+         * removes up to db.expiry.batch rows (default 10000) per table each
+         * time.
+         */
+        static synchronized ExpirySweeper expirySweeper() {
+            if (expirySweeper == null) {
+                expirySweeper = new ExpirySweeper(
+                        Long.parseLong(config.getProperty("db.expiry.interval.ms", "1000")),
+                        Integer.parseInt(config.getProperty("db.expiry.batch", "10000")),
+                        () -> {
+                            synchronized (openDatabases) {
+                                return new ArrayList<>(openDatabases.values());
+                            }
+                        });
+            }
+            return expirySweeper;
+        }
+
+        public File getFile() {
+            return dbFile;
+        }
+
+        /** How new blocks of this database's file are packed. */
+        public BlockCodec getCodec() {
+            return codec;
+        }
+
+        /** Bytes of rows written to blocks since the database was opened, before packing. */
+        public long getRawBytesWritten() {
+            return rawBytesWritten.get();
+        }
+
+        /** What those blocks took up in the file. */
+        public long getStoredBytesWritten() {
+            return storedBytesWritten.get();
+        }
+
+        /** Live and dead bytes of the file and the outcome of its last compaction. */
+        public Compactor.Status getCompaction() {
+            return compaction;
+        }
+
+        /** Lock statistics of this database: waits, total and longest wait. */
+        public TableLocks getLocks() {
+            return locks;
+        }
+
+        public List<String> getTables() {
+            return new ArrayList<>(tables.keySet());
+        }
+        
+        public List<String> getColumns(String table) {
+            return tableHeaders.getOrDefault(table, new ArrayList<>());
         }
         
         public List<String[]> getRows(String table) {
-            return tables.getOrDefault(table, new ArrayList<>());
+            Lock lock = locks.read(table);
+            try {
+                List<String[]> rows = tables.get(table);
+                if (rows == null) return new ArrayList<>();
+                // A snapshot, so callers can iterate while other requests change the shared instance
+                Predicate<String[]> expired = expired(table);
+                return expired == null ? snapshotOf(rows) : scanEngine().filter(snapshotOf(rows), expired.negate());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * An unchanging view of a table's rows, taken under its lock. Heap and
+         * mapped tables share their storage with the snapshot until a writer
+         * changes it, so this costs a fraction of a copy; a snapshot is
+         * reclaimed with its last reader.
+         */
+        private static List<String[]> snapshotOf(List<String[]> rows) {
+            if (rows instanceof VersionedRowList) return ((VersionedRowList) rows).snapshot();
+            if (rows instanceof LazyRowList) return ((LazyRowList) rows).snapshot();
+            if (rows instanceof PackedRowList) return ((PackedRowList) rows).snapshot();
+            return rows instanceof MappedRowList ? ((MappedRowList) rows).snapshot() : new ArrayList<>(rows);
+        }
+
+        /**
+         * Memory held by a packed table's pages, the part of it live rows
+         * use, and the heap its row addresses take; null for other tables.
+         */
+        public long[] getPackedUsage(String table) {
+            List<String[]> rows = tables.get(table);
+            if (!(rows instanceof PackedRowList)) return null;
+            PackedRowList packed = (PackedRowList) rows;
+            return new long[] { packed.pageBytes(), packed.liveBytes(), packed.addressBytes() };
+        }
+
+        /** True if the database keeps its rows in direct buffers outside the Java heap. */
+        public boolean isOffHeap() {
+            return packedStorage && directPages;
+        }
+
+        /**
+         * Row count from the table directory; does not load the rows. On a
+         * table with an expiry column it includes expired rows the sweeper
+         * hasn't removed yet.
+         */
+        public int getRowCount(String table) {
+            Lock lock = locks.read(table);
+            try {
+                List<String[]> rows = tables.get(table);
+                return rows != null ? rows.size() : 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public boolean isUniqueId(String table) {
+            Lock lock = locks.read(table);
+            try {
+                return "true".equals(tableProperties.getOrDefault(table, Map.of()).get(UNIQUE_ID));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Rows whose first column equals {@code id}, found through the primary index. */
+        public List<String[]> getById(String table, String id) {
+            return findEqual(table, 0, id);
+        }
+
+        public boolean containsId(String table, String id) {
+            Lock lock = locks.read(table);
+            try {
+                if (!tables.containsKey(table)) return false;
+                Predicate<String[]> expired = expired(table);
+                if (expired == null) return indexesFor(table).containsKey(id);
+                return anyLive(table, indexesFor(table).positionsOf(id), expired);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Rows whose {@code column} equals {@code value}; uses an index when the column has one. */
+        public List<String[]> findEqual(String table, int column, String value) {
+            List<String[]> found = new ArrayList<>();
+            List<String[]> snapshot;
+            Predicate<String[]> match;
+            buildDictionaries(table);
+            Lock lock = locks.read(table);
+            try {
+                List<String[]> rows = tables.get(table);
+                if (rows == null || column < 0) return found;
+                Predicate<String[]> expired = expired(table);
+                if (hasIndex(table, column)) {
+                    for (int position : indexesFor(table).positionsOf(column, value)) {
+                        String[] row = rows.get(position);
+                        if (expired == null || !expired.test(row)) found.add(row);
+                    }
+                    return found;
+                }
+                if (!mightContain(table, column, value)) return found;
+                match = live(matcher(table, column, value), expired);
+                snapshot = match == null ? List.of() : snapshotOf(rows);
+            } finally {
+                lock.unlock();
+            }
+            if (match != null) found = scanEngine().filter(snapshot, match);
+            recordBloomResult(table, column, !found.isEmpty());
+            return found;
+        }
+
+        /**
+         * Tests rows for {@code value} in {@code column}. On a
+         * dictionary-encoded column that is a reference comparison with the
+         * dictionary's instance, and null when no row has the value. Needs
+         * the table's read lock; uses the dictionaries only if they are
+         * built already.
+         */
+        private Predicate<String[]> matcher(String table, int column, String value) {
+            ColumnDictionaries dictionary = dictionaries.get(table);
+            if (dictionary == null || !dictionary.isEncoded(column)) {
+                return row -> column < row.length && value.equals(row[column]);
+            }
+            String shared = dictionary.lookup(column, value);
+            if (shared == null) return null;
+            return row -> column < row.length && row[column] == shared;
+        }
+
+        // The match, also leaving out expired rows if there are any
+        private static Predicate<String[]> live(Predicate<String[]> match, Predicate<String[]> expired) {
+            return match == null || expired == null ? match : match.and(expired.negate());
+        }
+
+        // Whether any of these rows has not expired; needs the table's read lock
+        private boolean anyLive(String table, int[] positions, Predicate<String[]> expired) {
+            List<String[]> rows = tables.get(table);
+            for (int position : positions) {
+                if (!expired.test(rows.get(position))) return true;
+            }
+            return false;
+        }
+
+        public boolean containsValue(String table, int column, String value) {
+            if (column == 0) return containsId(table, value);
+            List<String[]> snapshot;
+            Predicate<String[]> match;
+            buildDictionaries(table);
+            Lock lock = locks.read(table);
+            try {
+                List<String[]> rows = tables.get(table);
+                if (rows == null || column < 0) return false;
+                Predicate<String[]> expired = expired(table);
+                if (hasIndex(table, column)) {
+                    int[] positions = indexesFor(table).positionsOf(column, value);
+                    return expired == null ? positions.length > 0 : anyLive(table, positions, expired);
+                }
+                if (!mightContain(table, column, value)) return false;
+                match = live(matcher(table, column, value), expired);
+                snapshot = match == null ? List.of() : snapshotOf(rows);
+            } finally {
+                lock.unlock();
+            }
+            boolean found = match != null && scanEngine().anyMatch(snapshot, match);
+            recordBloomResult(table, column, found);
+            return found;
+        }
+
+        /**
+         * Runs a query through the table's indexes where it can: an ordered
+         * index on the order-by column yields rows already sorted and stops
+         * once offset + limit rows matched; otherwise the most selective
+         * index among the AND-ed filters (an OR needs one on every branch)
+         * narrows the rows to check, and only the remaining matches are sorted. Sets
+         * {@code query.plan} to what was used.
+         *
+         * Only index work holds the table's read lock; a scan runs over a
+         * snapshot after it is released, so it doesn't hold up writers.
+         */
+        public List<String[]> query(String table, RowQuery query) {
+            List<String[]> found = new ArrayList<>();
+            int wanted = query.limit < 0 ? -1 : query.offset + query.limit;
+            List<String[]> candidates;
+            Predicate<String[]> matches;
+            Lock lock = locks.read(table);
+            try {
+                List<String[]> rows = tables.get(table);
+                query.plan = "none";
+                if (rows == null || query.limit == 0) return found;
+                TableIndexes index = indexesFor(table);
+                List<String> columns = getColumns(table);
+                matches = live(query::matches, expired(table));
+
+                if (query.orderBy >= 0 && index.isOrdered(query.orderBy)) {
+                    RowQuery.Condition range = null;
+                    for (RowQuery.Filter f : query.filters) {
+                        if (f instanceof RowQuery.Condition && ((RowQuery.Condition) f).column == query.orderBy) {
+                            range = (RowQuery.Condition) f;
+                        }
+                    }
+                    index.forEachOrdered(query.orderBy, range, query.descending, position -> {
+                        String[] row = rows.get(position);
+                        if (matches.test(row)) found.add(row);
+                        return found.size() != wanted;
+                    });
+                    query.plan = "ordered index on " + columns.get(query.orderBy);
+                    return page(found, query.offset, -1);
+                }
+                candidates = candidates(table, index, query);
+            } finally {
+                lock.unlock();
+            }
+
+            boolean sorted = query.orderBy >= 0;
+            if (!sorted && wanted >= 0) {
+                // Stopping at the first matches beats scanning everything in parallel
+                for (String[] row : candidates) {
+                    if (!matches.test(row)) continue;
+                    found.add(row);
+                    if (found.size() == wanted) break;
+                }
+                return page(found, query.offset, query.limit);
+            }
+            List<String[]> matched = scanEngine().filter(candidates, matches);
+            if (sorted) query.sort(matched);
+            return page(matched, query.offset, query.limit);
+        }
+
+        /**
+         * Aggregates the rows matching the query's filters in one pass. With
+         * no filters, counts per value of an indexed group-by column and
+         * count/min/max of ordered-indexed columns come straight from the
+         * indexes without reading any rows.
+         */
+        public List<Object[]> aggregate(String table, RowQuery query, Aggregation aggregation) {
+            List<String[]> candidates;
+            Predicate<String[]> matches;
+            Lock lock = locks.read(table);
+            try {
+                List<String[]> rows = tables.get(table);
+                query.plan = "none";
+                if (rows == null) return aggregation.results();
+                TableIndexes index = indexesFor(table);
+                // Expired rows the sweeper hasn't removed yet are still in the indexes, so they rule out the shortcuts
+                Predicate<String[]> expired = expired(table);
+                matches = live(query::matches, expired);
+
+                if (query.filters.isEmpty() && expired == null) {
+                    int[] groupBy = aggregation.groupBy;
+                    if (groupBy.length == 1 && aggregation.countsOnly() && index.isIndexed(groupBy[0])) {
+                        index.forEachKey(groupBy[0], (value, count) -> {
+                            for (Aggregation.Accumulator acc : aggregation.group(Collections.singletonList(value))) acc.count = count;
+                        });
+                        query.plan = "index counts on " + getColumns(table).get(groupBy[0]);
+                        return aggregation.results();
+                    }
+                    boolean fromIndex = groupBy.length == 0;
+                    for (Aggregation.Measure m : aggregation.measures) {
+                        fromIndex &= m.fn == Aggregation.Fn.COUNT ? m.column < 0
+                                : (m.fn == Aggregation.Fn.MIN || m.fn == Aggregation.Fn.MAX) && index.isOrdered(m.column);
+                    }
+                    if (fromIndex) {
+                        Aggregation.Accumulator[] acc = aggregation.group(List.of());
+                        for (int i = 0; i < acc.length; i++) {
+                            Aggregation.Measure m = aggregation.measures.get(i);
+                            if (m.fn == Aggregation.Fn.COUNT) acc[i].count = rows.size();
+                            else if (m.fn == Aggregation.Fn.MIN) acc[i].min = index.extreme(m.column, false);
+                            else acc[i].max = index.extreme(m.column, true);
+                        }
+                        query.plan = "index only";
+                        return aggregation.results();
+                    }
+                }
+
+                // Measures over typed columns read the parsed values, if typed scans can answer every filter
+                boolean typed = aggregation.groupBy.length == 0 && expired == null;
+                for (Aggregation.Measure m : aggregation.measures) {
+                    typed &= m.column < 0 || index.isTyped(m.column);
+                }
+                int[] positions = null;
+                for (int i = 0; typed && i < query.filters.size(); i++) {
+                    RowQuery.Filter f = query.filters.get(i);
+                    int[] matched = f instanceof RowQuery.Condition ? index.scan((RowQuery.Condition) f) : null;
+                    if (matched == null) typed = false;
+                    else positions = positions == null ? matched : intersect(positions, matched);
+                }
+                if (typed) {
+                    Aggregation.Accumulator[] acc = aggregation.group(List.of());
+                    for (int i = 0; i < acc.length; i++) {
+                        Aggregation.Measure m = aggregation.measures.get(i);
+                        if (m.column < 0) acc[i].count = positions == null ? rows.size() : positions.length;
+                        else index.accumulate(m.column, positions, acc[i]);
+                    }
+                    query.plan = query.filters.isEmpty() ? "typed columns" : "typed scan";
+                    return aggregation.results();
+                }
+
+                candidates = candidates(table, index, query);
+            } finally {
+                lock.unlock();
+            }
+            return scanEngine().reduce(candidates, aggregation::emptyCopy, (partial, row) -> {
+                if (matches.test(row)) partial.add(row);
+            }, Aggregation::merge).results();
+        }
+
+        /**
+         * The rows worth checking against the query's filters: a snapshot of
+         * the table, or a copy of what the most selective index leaves. Without
+         * a usable index, conditions on typed columns are checked against
+         * their parsed values instead. Either can be read after the table lock
+         * is released.
+         */
+        private List<String[]> candidates(String table, TableIndexes index, RowQuery query) {
+            List<String[]> rows = tables.get(table);
+            int[] positions = candidatePositions(table, index, query);
+            if (positions == null) return snapshotOf(rows);
+            List<String[]> candidates = new ArrayList<>(positions.length);
+            if (rows instanceof MappedRowList && positions.length > 64) {
+                // Mapped rows are decoded block by block, so one pass beats seeking to each position
+                int next = 0, position = 0;
+                for (Iterator<String[]> it = rows.iterator(); it.hasNext() && next < positions.length; position++) {
+                    String[] row = it.next();
+                    if (positions[next] == position) {
+                        candidates.add(row);
+                        next++;
+                    }
+                }
+                return candidates;
+            }
+            for (int position : positions) candidates.add(rows.get(position));
+            return candidates;
+        }
+
+        // Sorted positions of the rows the indexes or typed scans say may match, or null (plan "scan") if none helps
+        private int[] candidatePositions(String table, TableIndexes index, RowQuery query) {
+            int[] positions = null;
+            for (RowQuery.Filter f : query.filters) {
+                int[] matched = lookup(index, f);
+                if (matched != null && (positions == null || matched.length < positions.length)) {
+                    positions = matched;
+                    query.plan = describe(f, getColumns(table));
+                }
+            }
+            List<String> scanned = new ArrayList<>();
+            boolean indexed = positions != null;
+            for (int i = 0; !indexed && i < query.filters.size(); i++) {
+                if (!(query.filters.get(i) instanceof RowQuery.Condition)) continue;
+                RowQuery.Condition c = (RowQuery.Condition) query.filters.get(i);
+                int[] matched = index.scan(c);
+                if (matched == null) continue;
+                positions = positions == null ? matched : intersect(positions, matched);
+                scanned.add(getColumns(table).get(c.column));
+            }
+            if (!scanned.isEmpty()) query.plan = "typed scan on " + String.join(", ", scanned);
+            if (positions == null) query.plan = "scan";
+            return positions;
+        }
+
+        // Positions (in table order) of the rows an index says may match the filter, or null if no index helps
+        private static int[] lookup(TableIndexes index, RowQuery.Filter filter) {
+            if (filter instanceof RowQuery.Condition) {
+                RowQuery.Condition c = (RowQuery.Condition) filter;
+                if (c.op == RowQuery.Op.EQ && index.isIndexed(c.column)) return index.positionsOf(c.column, c.value);
+                if (!index.isOrdered(c.column)) return null;
+                List<Integer> inRange = new ArrayList<>();
+                index.forEachOrdered(c.column, c, false, inRange::add);
+                int[] positions = inRange.stream().mapToInt(Integer::intValue).toArray();
+                Arrays.sort(positions);
+                return positions;
+            }
+            RowQuery.Group group = (RowQuery.Group) filter;
+            if (!group.any) {
+                for (RowQuery.Filter part : group.parts) {
+                    int[] positions = lookup(index, part);
+                    if (positions != null) return positions;
+                }
+                return null;
+            }
+            // OR: the union of the branches, if every branch can use an index
+            int[][] branches = new int[group.parts.size()][];
+            for (int i = 0; i < branches.length; i++) {
+                branches[i] = lookup(index, group.parts.get(i));
+                if (branches[i] == null) return null;
+            }
+            return Arrays.stream(branches).flatMapToInt(Arrays::stream).sorted().distinct().toArray();
+        }
+
+        // Positions in both sorted arrays
+        private static int[] intersect(int[] a, int[] b) {
+            int[] both = new int[Math.min(a.length, b.length)];
+            int count = 0;
+            for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+                if (a[i] < b[j]) i++;
+                else if (a[i] > b[j]) j++;
+                else {
+                    both[count++] = a[i];
+                    i++;
+                    j++;
+                }
+            }
+            return Arrays.copyOf(both, count);
+        }
+
+        private static String describe(RowQuery.Filter filter, List<String> columns) {
+            if (filter instanceof RowQuery.Condition) {
+                RowQuery.Condition c = (RowQuery.Condition) filter;
+                return (c.op == RowQuery.Op.EQ ? "index lookup on " : "index range on ") + columns.get(c.column);
+            }
+            RowQuery.Group group = (RowQuery.Group) filter;
+            return group.any ? "index union of " + group.parts.size() + " branches" : "index lookup in AND group";
+        }
+
+        private static List<String[]> page(List<String[]> rows, int offset, int limit) {
+            if (offset == 0 && (limit < 0 || rows.size() <= limit)) return rows;
+            int from = Math.min(offset, rows.size());
+            int to = limit < 0 ? rows.size() : Math.min(rows.size(), from + limit);
+            return new ArrayList<>(rows.subList(from, to));
+        }
+
+        /** Columns with a secondary hash index; the first column is always indexed and not listed. */
+        public List<String> getIndexedColumns(String table) {
+            Lock lock = locks.read(table);
+            try {
+                return indexList(table, HASH_INDEXES);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Columns with an ordered index, which also answers range and prefix conditions. */
+        public List<String> getOrderedColumns(String table) {
+            Lock lock = locks.read(table);
+            try {
+                return indexList(table, ORDERED_INDEXES);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Columns with a Bloom filter, which answers "definitely not there" without a scan. */
+        public List<String> getBloomColumns(String table) {
+            Lock lock = locks.read(table);
+            try {
+                return indexList(table, BLOOM_FILTERS);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Lookup counts of a column's Bloom filter since the database was opened. */
+        public BloomFilter.Stats getBloomStats(String table, String column) {
+            return bloomStats.computeIfAbsent(table + "." + column, k -> new BloomFilter.Stats());
+        }
+
+        // False when the column's Bloom filter rules the value out; counts the answer either way
+        private boolean mightContain(String table, int column, String value) {
+            List<String> columns = getColumns(table);
+            if (column >= columns.size() || !getBloomColumns(table).contains(columns.get(column))) return true;
+            if (indexesFor(table).bloom(column).mightContain(value)) return true;
+            getBloomStats(table, columns.get(column)).negatives.incrementAndGet();
+            return false;
+        }
+
+        // After a scan following a "maybe", records whether the value was really there
+        private void recordBloomResult(String table, int column, boolean found) {
+            List<String> columns = getColumns(table);
+            if (column >= columns.size() || !getBloomColumns(table).contains(columns.get(column))) return;
+            BloomFilter.Stats stats = getBloomStats(table, columns.get(column));
+            (found ? stats.truePositives : stats.falsePositives).incrementAndGet();
+        }
+
+        private boolean hasIndex(String table, int column) {
+            List<String> columns = getColumns(table);
+            if (column == 0) return true;
+            if (column < 0 || column >= columns.size()) return false;
+            return getIndexedColumns(table).contains(columns.get(column)) || getOrderedColumns(table).contains(columns.get(column));
+        }
+
+        public boolean createIndex(String table, String column) {
+            return createIndex(table, column, "hash");
+        }
+
+        /**
+         * Adds a "hash", "ordered" or "bloom" index on {@code column}; it is
+         * built on the next lookup and saved with the table. A column has at
+         * most one of them.
+         */
+        public boolean createIndex(String table, String column, String type) {
+            String key = type.equals("ordered") ? ORDERED_INDEXES : type.equals("bloom") ? BLOOM_FILTERS : HASH_INDEXES;
+            return write(table, () -> {
+                int position = getColumns(table).indexOf(column);
+                // The first column always has a hash index, but may still get an ordered one
+                if (position < 0 || (position == 0 && !key.equals(ORDERED_INDEXES))) return false;
+                if (getIndexedColumns(table).contains(column) || getOrderedColumns(table).contains(column)
+                        || getBloomColumns(table).contains(column)) {
+                    return false;
+                }
+                List<String> indexed = indexList(table, key);
+                indexed.add(column);
+                setIndexList(table, key, indexed);
+                return true;
+            });
+        }
+
+        public boolean dropIndex(String table, String column) {
+            return write(table, () -> {
+                // The sweeper needs the expiry column's index
+                if (column.equals(tableProperties.getOrDefault(table, Map.of()).get(EXPIRY_COLUMN))) return false;
+                for (String key : new String[] { HASH_INDEXES, ORDERED_INDEXES, BLOOM_FILTERS }) {
+                    List<String> indexed = indexList(table, key);
+                    if (indexed.remove(column)) {
+                        setIndexList(table, key, indexed);
+                        return true;
+                    }
+                }
+                return false;
+            });
+        }
+
+        private List<String> indexList(String table, String key) {
+            String names = tableProperties.getOrDefault(table, Map.of()).get(key);
+            return names == null || names.isEmpty() ? new ArrayList<>() : new ArrayList<>(Arrays.asList(names.split(",")));
+        }
+
+        // Called with the table's write lock held
+        private void setIndexList(String table, String key, List<String> indexed) {
+            Map<String, String> properties = tableProperties.computeIfAbsent(table, k -> new LinkedHashMap<>());
+            if (indexed.isEmpty()) properties.remove(key);
+            else properties.put(key, String.join(",", indexed));
+            indexes.remove(table);
+            changes.incrementAndGet();
         }
         
         public void createTable(String tableName, String[] columns) {
-            if (tables.containsKey(tableName)) return;
-            tableHeaders.put(tableName, Arrays.asList(columns));
-            tables.put(tableName, new ArrayList<>());
-            try {
-                save();
-            } catch (IOException e) {
-                System.err.println("Error saving database: " + e.getMessage());
-                e.printStackTrace();
+            createTable(tableName, columns, new LinkedHashMap<>());
+        }
+
+        /**
+         * Creates a table with options such as {@link #UNIQUE_ID}; they are
+         * saved with the table. A column given as {@code name:type} gets a
+         * {@link ColumnType}, and inserts are checked against it.
+         */
+        public void createTable(String tableName, String[] columns, Map<String, String> properties) {
+            String[] names = new String[columns.length];
+            List<String> types = new ArrayList<>();
+            boolean typed = false;
+            for (int i = 0; i < columns.length; i++) {
+                int colon = columns[i].indexOf(':');
+                ColumnType type = colon < 0 ? ColumnType.STRING : ColumnType.parse(columns[i].substring(colon + 1));
+                names[i] = colon < 0 ? columns[i] : columns[i].substring(0, colon).trim();
+                types.add(type.toString());
+                typed |= type != ColumnType.STRING;
             }
+            Map<String, String> saved = new LinkedHashMap<>(properties);
+            if (typed) saved.put(COLUMN_TYPES, String.join(",", types));
+            String expiry = saved.get(EXPIRY_COLUMN);
+            if (expiry != null) {
+                if (!Arrays.asList(names).contains(expiry)) throw new IllegalArgumentException("Unknown column: " + expiry);
+                saved.put(ORDERED_INDEXES, expiry);
+            }
+            write(tableName, () -> {
+                if (tables.containsKey(tableName)) return null;
+                tableHeaders.put(tableName, Arrays.asList(names));
+                tableProperties.put(tableName, saved);
+                columnTypes.remove(tableName);
+                indexes.remove(tableName);
+                dictionaries.remove(tableName);
+                tables.put(tableName, newRowList());
+                changes.incrementAndGet();
+                return null;
+            });
         }
         
         public void insert(String tableName, String[] row) {
-            if (!tables.containsKey(tableName)) {
-                throw new IllegalArgumentException("No such table: " + tableName);
+            write(tableName, () -> {
+                if (!tables.containsKey(tableName)) {
+                    throw new IllegalArgumentException("No such table: " + tableName);
+                }
+                addRow(tableName, row);
+                return null;
+            });
+        }
+        
+        public void deleteRow(String tableName, String id) {
+            write(tableName, () -> {
+                if (tables.containsKey(tableName)) removeById(tableName, id, null);
+                return null;
+            });
+        }
+
+        /**
+         * Deletes the first row with this id, found through the primary
+         * index. Heap and packed lists only mark the row in their deleted-row
+         * bitmap, and the index only notes its slot as gone, so a delete
+         * moves no other rows; both reclaim the space later. With
+         * {@code undo}, pushes a step that puts the row back. Needs the
+         * table's write lock.
+         */
+        private boolean removeById(String tableName, String id, Deque<Runnable> undo) {
+            TableIndexes index = indexesFor(tableName);
+            int[] positions = livePositions(tableName, index, id);
+            if (positions.length == 0) return false;
+            int first = Arrays.stream(positions).min().getAsInt();
+            String[] row = tables.get(tableName).remove(first);
+            index.onDelete(first, row);
+            changes.incrementAndGet();
+            if (undo != null) {
+                undo.push(() -> {
+                    // The index can't take a slot back in the middle, so it is rebuilt when next needed
+                    tables.get(tableName).add(first, row);
+                    indexes.remove(tableName);
+                });
+            }
+            return true;
+        }
+
+        /**
+         * Sets {@code values} (column to new cell) on every row the query
+         * matches, found through the indexes where its filters allow. A
+         * changed row keeps its position and gets a new array sharing its
+         * unchanged cells, so snapshots taken earlier still see the old one.
+         * New cells are checked against the column types and the unique id
+         * like inserts, before any row changes; the rows that changed are
+         * saved as one change. Returns how many rows matched and how many of
+         * them changed.
+         */
+        public int[] update(String tableName, RowQuery query, Map<Integer, String> values) {
+            return write(tableName, () -> updateRows(tableName, query, values, null));
+        }
+
+        // The body of update(); with undo, pushes a step that puts the old rows back
+        private int[] updateRows(String tableName, RowQuery query, Map<Integer, String> values, Deque<Runnable> undo) {
+            List<String[]> rows = tables.get(tableName);
+            if (rows == null) throw new IllegalArgumentException("No such table: " + tableName);
+            String[] cells = new String[getColumns(tableName).size()];
+            for (Map.Entry<Integer, String> e : values.entrySet()) cells[e.getKey()] = e.getValue();
+            normalizeTypes(tableName, cells);
+
+            TableIndexes index = indexesFor(tableName);
+            int[] positions = candidatePositions(tableName, index, query);
+            Predicate<String[]> matches = live(query::matches, expired(tableName));
+            Iterator<String[]> scan = positions == null ? rows.iterator() : null;   // no index helps: one pass
+            int count = positions == null ? rows.size() : positions.length;
+            List<Integer> changed = new ArrayList<>();
+            List<String[]> updated = new ArrayList<>();
+            int matched = 0;
+            boolean renamed = false;   // some changed row gets a different id
+            for (int i = 0; i < count; i++) {
+                int position = positions == null ? i : positions[i];
+                String[] old = scan != null ? scan.next() : rows.get(position);
+                if (!matches.test(old)) continue;
+                matched++;
+                String[] row = withCells(old, cells, values.keySet());
+                if (row == old) continue;
+                changed.add(position);
+                updated.add(row);
+                if (!Objects.equals(old.length > 0 ? old[0] : null, row[0])) renamed = true;
+            }
+            if (renamed && isUniqueId(tableName)) {
+                // Every changed row ends up with this id; rows keeping theirs don't clash with themselves
+                String id = cells[0];
+                if (changed.size() > 1) throw new IllegalArgumentException("Duplicate id: " + id);
+                for (int position : livePositions(tableName, index, id)) {
+                    if (position != changed.get(0)) throw new IllegalArgumentException("Duplicate id: " + id);
+                }
+            }
+            replaceRows(tableName, index, changed, updated, undo);
+            return new int[] { matched, changed.size() };
+        }
+
+        /**
+         * Replaces the first row with the new row's id in place, changing only
+         * the cells that differ, or inserts the row if there is none. Returns
+         * true if it was inserted. Saved as one change either way.
+         */
+        public boolean upsert(String tableName, String[] row) {
+            return write(tableName, () -> {
+                List<String[]> rows = tables.get(tableName);
+                if (rows == null) throw new IllegalArgumentException("No such table: " + tableName);
+                TableIndexes index = indexesFor(tableName);
+                int[] positions = row.length > 0 ? livePositions(tableName, index, row[0]) : new int[0];
+                if (positions.length == 0) {
+                    addRow(tableName, row);
+                    return true;
+                }
+                normalizeTypes(tableName, row);
+                Set<Integer> columns = new HashSet<>();
+                for (int i = 0; i < row.length; i++) columns.add(i);
+                int position = Arrays.stream(positions).min().getAsInt();
+                String[] old = rows.get(position);
+                String[] updated = withCells(old, row, columns);
+                if (updated != old) replaceRows(tableName, index, List.of(position), List.<String[]>of(updated), null);
+                return false;
+            });
+        }
+
+        // The row with the given cells set, or the row itself if none of them differ
+        private static String[] withCells(String[] old, String[] cells, Set<Integer> columns) {
+            String[] row = null;
+            for (int column : columns) {
+                String current = column < old.length ? old[column] : null;
+                if (Objects.equals(current, cells[column])) continue;
+                if (row == null) row = Arrays.copyOf(old, Math.max(old.length, column + 1));
+                if (column >= row.length) row = Arrays.copyOf(row, column + 1);
+                row[column] = cells[column];
+            }
+            return row == null ? old : row;
+        }
+
+        // Puts updated rows at their positions, keeping indexes and dictionaries in step; needs the table's write lock
+        private void replaceRows(String tableName, TableIndexes index, List<Integer> positions, List<String[]> updated,
+                                 Deque<Runnable> undo) {
+            if (positions.isEmpty()) return;
+            List<String[]> rows = tables.get(tableName);
+            ColumnDictionaries dictionary = dictionariesFor(tableName);
+            List<String[]> replaced = new ArrayList<>(positions.size());
+            for (int i = 0; i < positions.size(); i++) {
+                String[] row = updated.get(i);
+                if (dictionary != null) dictionary.intern(row);
+                String[] old = rows.set(positions.get(i), row);
+                index.onUpdate(positions.get(i), old, row);
+                replaced.add(old);
             }
+            changes.incrementAndGet();
+            if (undo != null) {
+                undo.push(() -> {
+                    List<String[]> current = tables.get(tableName);
+                    TableIndexes built = indexes.get(tableName);
+                    for (int i = 0; i < positions.size(); i++) {
+                        current.set(positions.get(i), replaced.get(i));
+                        if (built != null) built.onUpdate(positions.get(i), updated.get(i), replaced.get(i));
+                    }
+                });
+            }
+        }
+
+        // Appends a row, keeping the primary index (and its uniqueness check) in step; needs the table's write lock
+        private void addRow(String tableName, String[] row) {
+            row = withExpiry(tableName, row);
+            normalizeTypes(tableName, row);
+            TableIndexes index = isUniqueId(tableName) ? indexesFor(tableName) : indexes.get(tableName);
+            if (index != null) {
+                // An expired row waiting for the sweeper doesn't hold on to its id
+                Predicate<String[]> expired = expired(tableName);
+                List<String[]> rows = tables.get(tableName);
+                index.checkInsert(row, expired == null ? position -> false : position -> expired.test(rows.get(position)));
+            }
+            ColumnDictionaries dictionary = dictionariesFor(tableName);
+            if (dictionary != null) dictionary.intern(row);
             tables.get(tableName).add(row);
-            try {
-                save();
-            } catch (IOException e) {
-                System.err.println("Error saving database: " + e.getMessage());
-                e.printStackTrace();
+            if (index != null) index.onInsert(row);
+            changes.incrementAndGet();
+        }
+
+        // With a table TTL, a row that leaves the expiry column empty expires that many seconds from now
+        private String[] withExpiry(String tableName, String[] row) {
+            String ttl = tableProperties.getOrDefault(tableName, Map.of()).get(EXPIRY_TTL);
+            int column = expiryColumn(tableName);
+            if (ttl == null || column < 0 || (column < row.length && row[column] != null && !row[column].isEmpty())) return row;
+            if (column >= row.length) {
+                int length = row.length;
+                row = Arrays.copyOf(row, column + 1);
+                Arrays.fill(row, length, column, "");
             }
+            row[column] = String.valueOf(System.currentTimeMillis() + Long.parseLong(ttl) * 1000);
+            return row;
         }
-        
-        public void deleteRow(String tableName, String id) {
+
+        // Positions of the rows with this id that haven't expired; needs the table's lock
+        private int[] livePositions(String tableName, TableIndexes index, String id) {
+            int[] positions = index.positionsOf(id);
+            Predicate<String[]> expired = expired(tableName);
+            if (expired == null) return positions;
             List<String[]> rows = tables.get(tableName);
-            if (rows != null) {
-                Iterator<String[]> it = rows.iterator();
-                while (it.hasNext()) {
-                    String[] row = it.next();
-                    if (row.length > 0 && row[0].equals(id)) {
-                        it.remove();
+            return Arrays.stream(positions).filter(position -> !expired.test(rows.get(position))).toArray();
+        }
+
+        // Column of the table's expiry times, or -1 if it has none
+        private int expiryColumn(String table) {
+            String column = tableProperties.getOrDefault(table, Map.of()).get(EXPIRY_COLUMN);
+            return column == null ? -1 : getColumns(table).indexOf(column);
+        }
+
+        /**
+         * Tells rows whose expiry time has passed, which reads leave out until
+         * the sweeper removes them; null if the table has no expiry column or,
+         * going by the first key of the column's ordered index, no row is due.
+         * Needs the table's lock.
+         */
+        private Predicate<String[]> expired(String table) {
+            int column = expiryColumn(table);
+            if (column < 0) return null;
+            RowQuery.Condition due = dueBy(column, System.currentTimeMillis());
+            TableIndexes index = indexesFor(table);
+            if (index.isOrdered(column)) {
+                RowQuery.Value first = index.extreme(column, false);
+                if (first == null || !due.matches(first)) return null;
+            }
+            return due::matches;
+        }
+
+        private static RowQuery.Condition dueBy(int column, long now) {
+            return new RowQuery.Condition(column, RowQuery.Op.LTE, String.valueOf(now), null);
+        }
+
+        /**
+         * Makes {@code column} the table's expiry column: once the time in it
+         * (epoch milliseconds) has passed, a row is left out of reads and
+         * removed by the {@link ExpirySweeper}. With {@code ttlSeconds} above
+         * 0, inserts that leave it empty expire that long after. Times
+         * already in the column are turned into epoch milliseconds, and a
+         * cell that isn't a time refuses the column. The column gets the
+         * ordered index the sweeper walks. A null column turns
+         * expiry off; the index stays.
+         */
+        public void setExpiry(String table, String column, long ttlSeconds) {
+            write(table, () -> {
+                if (!tables.containsKey(table)) throw new IllegalArgumentException("No such table: " + table);
+                if (column != null && !getColumns(table).contains(column)) {
+                    throw new IllegalArgumentException("Unknown column: " + column);
+                }
+                if (column != null) toExpiryTimes(table, getColumns(table).indexOf(column));
+                Map<String, String> properties = tableProperties.computeIfAbsent(table, k -> new LinkedHashMap<>());
+                properties.remove(EXPIRY_COLUMN);
+                properties.remove(EXPIRY_TTL);
+                if (column != null) {
+                    properties.put(EXPIRY_COLUMN, column);
+                    if (ttlSeconds > 0) properties.put(EXPIRY_TTL, String.valueOf(ttlSeconds));
+                    for (String key : new String[] { HASH_INDEXES, BLOOM_FILTERS }) {
+                        List<String> indexed = indexList(table, key);
+                        if (indexed.remove(column)) setIndexList(table, key, indexed);
+                    }
+                    List<String> ordered = indexList(table, ORDERED_INDEXES);
+                    if (!ordered.contains(column)) {
+                        ordered.add(column);
+                        setIndexList(table, ORDERED_INDEXES, ordered);
+                    }
+                }
+                changes.incrementAndGet();
+                return null;
+            });
+        }
+
+        // Turns the column's cells into epoch milliseconds, or throws without changing any if one isn't a time
+        private void toExpiryTimes(String table, int column) {
+            List<Integer> positions = new ArrayList<>();
+            List<String[]> fixed = new ArrayList<>();
+            int position = 0;
+            for (String[] row : tables.get(table)) {
+                if (column < row.length && row[column] != null) {
+                    String cell;
+                    try {
+                        cell = ColumnType.TIMESTAMP.normalize(row[column]);
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Column '" + getColumns(table).get(column) + "' can't hold expiry times: "
+                                + e.getMessage());
+                    }
+                    if (!cell.equals(row[column])) {
+                        String[] copy = row.clone();
+                        copy[column] = cell;
+                        positions.add(position);
+                        fixed.add(copy);
+                    }
+                }
+                position++;
+            }
+            replaceRows(table, indexesFor(table), positions, fixed, null);
+        }
+
+        /**
+         * Removes up to {@code max} expired rows per table, earliest expiry
+         * first, and saves. The rows come from the expiry column's ordered
+         * index, so only due rows are read; a table without that index is
+         * skipped rather than scanned. Returns how many rows went.
+         */
+        int sweepExpired(int max) {
+            int removed = 0;
+            for (String table : getTables()) {
+                Lock lock = locks.read(table);
+                try {
+                    if (!tables.containsKey(table) || expired(table) == null) continue;
+                } finally {
+                    lock.unlock();
+                }
+                removed += write(table, () -> {
+                    int column = expiryColumn(table);
+                    if (column < 0 || !tables.containsKey(table)) return 0;
+                    TableIndexes index = indexesFor(table);
+                    if (!index.isOrdered(column)) return 0;
+                    List<Integer> due = new ArrayList<>();
+                    index.forEachOrdered(column, dueBy(column, System.currentTimeMillis()), false, position -> {
+                        due.add(position);
+                        return due.size() < max;
+                    });
+                    if (due.isEmpty()) return 0;
+                    // From the back, so the positions still to go stay put
+                    due.sort(Collections.reverseOrder());
+                    List<String[]> rows = tables.get(table);
+                    for (int position : due) index.onDelete(position, rows.remove(position));
+                    changes.incrementAndGet();
+                    return due.size();
+                });
+            }
+            return removed;
+        }
+
+        // Brings the cells of typed columns into their type's form, or throws naming the column
+        private void normalizeTypes(String tableName, String[] row) {
+            int expiry = expiryColumn(tableName);
+            if (expiry >= 0 && expiry < row.length) {
+                // Expiry times must compare as numbers, so even an untyped expiry column keeps them as epoch milliseconds
+                try {
+                    row[expiry] = ColumnType.TIMESTAMP.normalize(row[expiry]);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Column '" + getColumns(tableName).get(expiry) + "': " + e.getMessage());
+                }
+            }
+            if (!tableProperties.getOrDefault(tableName, Map.of()).containsKey(COLUMN_TYPES)) return;
+            List<String> columns = getColumns(tableName);
+            List<ColumnType> types = getColumnTypes(tableName);
+            for (int i = 0; i < row.length && i < types.size(); i++) {
+                try {
+                    row[i] = types.get(i).normalize(row[i]);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Column '" + columns.get(i) + "': " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * The declared type of each column; strings unless the table was
+         * created with types. Parsed once per table, as types are only set
+         * when it is created.
+         */
+        public List<ColumnType> getColumnTypes(String table) {
+            return columnTypes.computeIfAbsent(table, name -> Collections.unmodifiableList(ColumnType.listOf(
+                    tableProperties.getOrDefault(name, Map.of()).get(COLUMN_TYPES), getColumns(name).size())));
+        }
+
+        /**
+         * Column dictionaries are built from the rows on first use, like
+         * indexes, and kept up to date by {@link #addRow}. Mapped and packed
+         * tables have none: their rows are decoded afresh on every read.
+         * Building them interns cells in place, in rows readers may share,
+         * so this needs the table's write lock; readers go through
+         * {@link #buildDictionaries} first.
+         */
+        private ColumnDictionaries dictionariesFor(String tableName) {
+            List<String[]> rows = tables.get(tableName);
+            if (rows == null || rows instanceof MappedRowList || rows instanceof PackedRowList
+                    || dictionaryLimit() <= 0) {
+                return null;
+            }
+            return dictionaries.computeIfAbsent(tableName, name ->
+                    new ColumnDictionaries(rows, getColumns(name).size(), dictionaryLimit()));
+        }
+
+        // Builds the table's dictionaries if it should have them and doesn't yet, taking the write lock to do so
+        private void buildDictionaries(String tableName) {
+            if (dictionaries.containsKey(tableName) || dictionaryLimit() <= 0) return;
+            Lock lock = locks.write(tableName);
+            try {
+                dictionariesFor(tableName);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Indexes are built from the rows on first use after a load, and
+         * rebuilt when stale. Readers of the same table may get here at the
+         * same time, so the build runs inside compute and happens once.
+         */
+        private TableIndexes indexesFor(String tableName) {
+            TableIndexes current = indexes.get(tableName);
+            if (current != null && !current.isStale()) return current;
+            return indexes.compute(tableName, (name, index) -> {
+                if (index != null && !index.isStale()) return index;
+                List<Integer> hashColumns = new ArrayList<>();
+                for (String column : indexList(name, HASH_INDEXES)) hashColumns.add(getColumns(name).indexOf(column));
+                List<Integer> orderedColumns = new ArrayList<>();
+                for (String column : indexList(name, ORDERED_INDEXES)) orderedColumns.add(getColumns(name).indexOf(column));
+                List<Integer> bloomColumns = new ArrayList<>();
+                for (String column : indexList(name, BLOOM_FILTERS)) bloomColumns.add(getColumns(name).indexOf(column));
+                Map<Integer, ColumnType> types = new HashMap<>();
+                List<ColumnType> declared = getColumnTypes(name);
+                for (int i = 0; i < declared.size(); i++) {
+                    if (declared.get(i) != ColumnType.STRING) types.put(i, declared.get(i));
+                }
+                boolean unique = "true".equals(tableProperties.getOrDefault(name, Map.of()).get(UNIQUE_ID));
+                return new TableIndexes(tables.get(name), unique, hashColumns, orderedColumns, bloomColumns, types);
+            });
+        }
+
+        /**
+         * Applies a batch of mutations in memory and saves once at the end.
+         * Returns one entry per mutation, in order: null if it was applied,
+         * otherwise the reason it was skipped. A failed mutation does not
+         * stop the rest of the batch.
+         */
+        public List<String> applyBatch(List<Mutation> batch) {
+            Set<String> touched = new HashSet<>();
+            for (Mutation m : batch) touched.add(m.table);
+            return write(touched, () -> {
+                String[] errors = new String[batch.size()];
+                int i = 0;
+                while (i < batch.size()) {
+                    Mutation m = batch.get(i);
+                    List<String[]> rows = tables.get(m.table);
+                    if (rows == null) {
+                        errors[i++] = "No such table: " + m.table;
+                        continue;
+                    }
+                    if (m.kind != Mutation.Kind.DELETE) {
                         try {
-                            save();
-                        } catch (IOException e) {
-                            System.err.println("Error saving database: " + e.getMessage());
-                            e.printStackTrace();
+                            if (m.kind == Mutation.Kind.INSERT) addRow(m.table, m.row);
+                            else updateRows(m.table, m.query, m.values, null);
+                        } catch (IllegalArgumentException e) {
+                            errors[i] = e.getMessage();
                         }
-                        return;
+                        i++;
+                        continue;
+                    }
+                    int end = i;
+                    while (end < batch.size() && batch.get(end).kind == Mutation.Kind.DELETE
+                            && batch.get(end).table.equals(m.table)) {
+                        end++;
+                    }
+                    TableIndexes built = indexes.get(m.table);
+                    if (end - i <= 64 || built != null && !built.isStale() && end - i <= rows.size() / 64) {
+                        // A few deletes go through the primary index one by one; each only marks its row
+                        for (; i < end; i++) {
+                            if (!removeById(m.table, batch.get(i).id, null)) errors[i] = "Row not found: " + batch.get(i).id;
+                        }
+                        continue;
+                    }
+                    // Many consecutive deletes on one table share a single pass over its rows
+                    Map<String, Integer> wanted = new HashMap<>();
+                    for (int j = i; j < end; j++) wanted.merge(batch.get(j).id, 1, Integer::sum);
+                    Map<String, Integer> removed = removeByIds(m.table, wanted);
+                    for (int j = i; j < end; j++) {
+                        String id = batch.get(j).id;
+                        int left = removed.getOrDefault(id, 0);
+                        if (left > 0) {
+                            removed.put(id, left - 1);
+                        } else {
+                            errors[j] = "Row not found: " + id;
+                        }
+                    }
+                    i = end;
+                }
+                return Arrays.asList(errors);
+            });
+        }
+
+        /**
+         * Applies the mutations in order as one unit: if one fails, the ones
+         * before it are undone and it throws IllegalArgumentException naming
+         * it. The tables involved stay write-locked throughout, so readers
+         * see them either before or after the whole transaction, and it is
+         * saved in one go; the file only switches to the new directory once
+         * all of it is written, so a crash leaves all or none of it. Returns
+         * per mutation the rows it matched and changed (1 and 1 for inserts
+         * and deletes).
+         */
+        public List<int[]> transaction(List<Mutation> mutations) {
+            Set<String> touched = new LinkedHashSet<>();
+            for (Mutation m : mutations) touched.add(m.table);
+            Deque<Runnable> undo = new ArrayDeque<>();
+            return writeOrUndo(touched, undo, () -> {
+                List<int[]> results = new ArrayList<>(mutations.size());
+                for (int i = 0; i < mutations.size(); i++) {
+                    Mutation m = mutations.get(i);
+                    try {
+                        if (!tables.containsKey(m.table)) throw new IllegalArgumentException("No such table: " + m.table);
+                        if (m.kind == Mutation.Kind.INSERT) {
+                            addRow(m.table, m.row);
+                            undo.push(() -> {
+                                List<String[]> rows = tables.get(m.table);
+                                int last = rows.size() - 1;
+                                String[] row = rows.remove(last);
+                                TableIndexes built = indexes.get(m.table);
+                                if (built != null) built.onDelete(last, row);
+                            });
+                            results.add(new int[] { 1, 1 });
+                        } else if (m.kind == Mutation.Kind.DELETE) {
+                            if (!removeById(m.table, m.id, undo)) throw new IllegalArgumentException("Row not found: " + m.id);
+                            results.add(new int[] { 1, 1 });
+                        } else {
+                            results.add(updateRows(m.table, m.query, m.values, undo));
+                        }
+                    } catch (RuntimeException e) {
+                        // Whatever went wrong, not only a rejected mutation, the ones before it are put back
+                        undoAll(undo, e);
+                        if (!(e instanceof IllegalArgumentException)) throw e;
+                        throw new IllegalArgumentException("Operation " + i + " (" + m.kind.name().toLowerCase() + " on "
+                                + m.table + "): " + e.getMessage(), e);
                     }
                 }
+                return results;
+            });
+        }
+
+        /**
+         * Removes up to wanted.get(id) rows per id in one pass over the
+         * table, first matches first. Like removeById it skips expired rows
+         * and tells the index about each row it removes, so the index stays
+         * usable; one that is or becomes stale is dropped to be rebuilt. Returns
+         * how many went per id. Needs the table's write lock.
+         */
+        private Map<String, Integer> removeByIds(String tableName, Map<String, Integer> wanted) {
+            Predicate<String[]> expired = expired(tableName);
+            TableIndexes[] index = { indexes.get(tableName) };
+            Map<String, Integer> remaining = new HashMap<>(wanted);
+            Map<String, Integer> removed = new HashMap<>();
+            int[] position = new int[1];   // where the row being tested is, with the ones removed before it gone
+            tables.get(tableName).removeIf(row -> {
+                Integer left = row.length == 0 || row[0] == null ? null : remaining.get(row[0]);
+                if (left == null || left == 0 || expired != null && expired.test(row)) {
+                    position[0]++;
+                    return false;
+                }
+                remaining.put(row[0], left - 1);
+                removed.merge(row[0], 1, Integer::sum);
+                if (index[0] != null && !index[0].isStale()) {
+                    index[0].onDelete(position[0], row);
+                } else if (index[0] != null) {
+                    indexes.remove(tableName);
+                    index[0] = null;
+                }
+                return true;
+            });
+            if (!removed.isEmpty()) changes.incrementAndGet();
+            return removed;
+        }
+
+        /** A single change for {@link #applyBatch} or {@link #transaction}. */
+        static class Mutation {
+            enum Kind { INSERT, UPDATE, DELETE }
+
+            final Kind kind;
+            final String table;
+            final String[] row;
+            final String id;
+            final RowQuery query;
+            final Map<Integer, String> values;
+
+            private Mutation(Kind kind, String table, String[] row, String id, RowQuery query, Map<Integer, String> values) {
+                this.kind = kind;
+                this.table = table;
+                this.row = row;
+                this.id = id;
+                this.query = query;
+                this.values = values;
+            }
+
+            static Mutation insert(String table, String[] row) {
+                return new Mutation(Kind.INSERT, table, row, null, null, null);
+            }
+
+            static Mutation update(String table, RowQuery query, Map<Integer, String> values) {
+                return new Mutation(Kind.UPDATE, table, null, null, query, values);
+            }
+
+            static Mutation delete(String table, String id) {
+                return new Mutation(Kind.DELETE, table, null, id, null, null);
             }
         }
         
         public void deleteRow(String tableName, int index) {
-            List<String[]> rows = tables.get(tableName);
-            if (rows != null && index >= 0 && index < rows.size()) {
-                rows.remove(index);
+            write(tableName, () -> {
+                List<String[]> rows = tables.get(tableName);
+                if (rows == null || index < 0 || index >= rows.size()) return null;
+                String[] row = rows.remove(index);
+                TableIndexes tableIndexes = indexes.get(tableName);
+                if (tableIndexes != null) tableIndexes.onDelete(index, row);
+                changes.incrementAndGet();
+                return null;
+            });
+        }
+        
+        public void resetTable(String tableName) {
+            write(tableName, () -> {
+                if (!tables.containsKey(tableName)) return null;
+                tables.put(tableName, newRowList());
+                indexes.remove(tableName);
+                dictionaries.remove(tableName);
+                changes.incrementAndGet();
+                return null;
+            });
+        }
+        
+        public void deleteTable(String tableName) {
+            write(tableName, () -> {
+                tables.remove(tableName);
+                tableHeaders.remove(tableName);
+                tableProperties.remove(tableName);
+                columnTypes.remove(tableName);
+                indexes.remove(tableName);
+                dictionaries.remove(tableName);
+                changes.incrementAndGet();
+                return null;
+            });
+        }
+
+        private <T> T write(String table, Supplier<T> change) {
+            return write(Collections.singletonList(table), change);
+        }
+
+        /**
+         * Runs a change under the write locks of the tables it touches and
+         * saves it. With db.write.mode=queue the change is handed to this
+         * database's writer thread, which saves once per batch of queued
+         * changes; otherwise it runs on the calling thread. Either way this
+         * returns after the change has been saved, and throws
+         * UncheckedIOException if saving it failed.
+         */
+        private <T> T write(Collection<String> tables, Supplier<T> change) {
+            requireLoaded();
+            Supplier<T> locked = () -> {
+                List<Lock> held = locks.writeAll(tables);
                 try {
-                    save();
-                } catch (IOException e) {
-                    System.err.println("Error saving database: " + e.getMessage());
-                    e.printStackTrace();
+                    return change.get();
+                } finally {
+                    TableLocks.unlockAll(held);
+                }
+            };
+            if (writeQueue != null) return queued(locked);
+            T result = locked.get();
+            saveChanges();
+            return result;
+        }
+
+        /**
+         * Like write, but saves before letting go of the tables, and if that
+         * fails runs {@code undo} (filled in by the change) and rethrows, so a
+         * change that was not saved is never left applied for the next save
+         * to pick up. Takes saveLock ahead of the table locks, the same order
+         * save() takes them in, and the read locks of all other tables so the
+         * save's own readAll can't wait on another writer.
+         */
+        private <T> T writeOrUndo(Collection<String> tables, Deque<Runnable> undo, Supplier<T> change) {
+            requireLoaded();
+            Supplier<T> locked = () -> {
+                synchronized (saveLock) {
+                    List<Lock> held = locks.writeAllReadRest(tables);
+                    try {
+                        T result = change.get();
+                        try {
+                            saveChanges();
+                        } catch (UncheckedIOException e) {
+                            undoAll(undo, e);
+                            throw e;
+                        }
+                        return result;
+                    } finally {
+                        TableLocks.unlockAll(held);
+                    }
                 }
+            };
+            return writeQueue != null ? queued(locked) : locked.get();
+        }
+
+        /**
+         * Why the file could not be read when the database was opened (a
+         * wrong db.encryption.key, a damaged file), or null if it was. Such a
+         * database shows no tables and refuses every change, so the file is
+         * never overwritten with the empty state; it is read again once the
+         * server restarts.
+         */
+        public String getLoadError() {
+            return loadError;
+        }
+
+        private void requireLoaded() {
+            if (loadError != null) {
+                throw new IllegalStateException("Database " + dbFile.getName() + " could not be read (" + loadError
+                        + "), so it takes no changes");
             }
         }
-        
-        public void resetTable(String tableName) {
-            if (tables.containsKey(tableName)) {
-                tables.put(tableName, new ArrayList<>());
+
+        // Hands a change to the writer thread and waits until the batch holding it was saved
+        private <T> T queued(Supplier<T> change) {
+            try {
+                return writeQueue.submit(change).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw e;
+            }
+        }
+
+        // Runs the undo steps, newest first; ones that fail are attached to cause
+        private static void undoAll(Deque<Runnable> undo, RuntimeException cause) {
+            while (!undo.isEmpty()) {
                 try {
-                    save();
-                } catch (IOException e) {
-                    System.err.println("Error saving database: " + e.getMessage());
-                    e.printStackTrace();
+                    undo.pop().run();
+                } catch (RuntimeException failed) {
+                    cause.addSuppressed(failed);
                 }
             }
         }
-        
-        public void deleteTable(String tableName) {
-            tables.remove(tableName);
-            tableHeaders.remove(tableName);
+
+        private void saveChanges() {
             try {
                 save();
             } catch (IOException e) {
                 System.err.println("Error saving database: " + e.getMessage());
                 e.printStackTrace();
+                throw new UncheckedIOException("Error saving database: " + e.getMessage(), e);
             }
         }
+
+        /** The writer queue in db.write.mode=queue, or null when writers take the table locks themselves. */
+        public WriteQueue getWriteQueue() {
+            return writeQueue;
+        }
         
+        /**
+         * Writes every change made so far to the file. Writers call this after
+         * releasing their table lock. The file holds all tables, so writing it
+         * takes every table's read lock; writers that queue up behind a save
+         * usually find their change already written by it and return at once.
+         */
         private void save() throws IOException {
-            try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(dbFile))) {
-                out.writeObject(tableHeaders);
-                out.writeObject(tables);
+            if (loadError != null) throw new IOException("Database could not be read when opened: " + loadError);
+            long wanted = changes.get();
+            synchronized (saveLock) {
+                if (saved >= wanted) return;
+                List<Lock> held = locks.readAll();
+                try {
+                    writeFile();
+                } finally {
+                    TableLocks.unlockAll(held);
+                }
             }
         }
-        
-        @SuppressWarnings("unchecked")
+
+        /**
+         * Saves by appending what changed to the file (db.save=append, the
+         * default) or by rewriting it whole (db.save=rewrite); a file in an
+         * older format is always rewritten. Needs saveLock and every read lock.
+         */
+        private void writeFile() throws IOException {
+            long now = changes.get();
+            boolean append = appendable && config.getProperty("db.save", "append").equals("append");
+            List<SecdbFormat.TableEntry> directory = append
+                    ? SecdbFormat.append(dbFile, tableHeaders, tables, tableProperties, codec)
+                    : SecdbFormat.write(dbFile, tableHeaders, tables, tableProperties, codec);
+            saved = now;
+            for (SecdbFormat.TableEntry entry : directory) {
+                rawBytesWritten.addAndGet(entry.rawBytes);
+                storedBytesWritten.addAndGet(entry.storedBytes);
+            }
+            appendable = true;
+            pointTo(directory);
+        }
+
+        // After the file changed, lets every table know which blocks now hold its rows
+        private void pointTo(List<SecdbFormat.TableEntry> directory) throws IOException {
+            if (mappedStorage) {
+                remap();
+                return;
+            }
+            for (SecdbFormat.TableEntry entry : directory) {
+                List<String[]> rows = tables.get(entry.name);
+                if (rows instanceof LazyRowList && !((LazyRowList) rows).isLoaded()) {
+                    tables.put(entry.name, new LazyRowList(dbFile, entry));
+                    dictionaries.remove(entry.name);
+                } else if (rows instanceof LazyRowList) {
+                    ((LazyRowList) rows).markSaved(entry);
+                } else if (rows instanceof VersionedRowList) {
+                    ((VersionedRowList) rows).markSaved(entry);
+                } else if (rows instanceof PackedRowList) {
+                    ((PackedRowList) rows).markSaved(entry);
+                }
+            }
+        }
+
+        /**
+         * Rewrites the file with only the blocks its directory refers to and
+         * swaps it in. The bulk of the copying runs without any lock, paced
+         * by {@code throttle}, since appends never change blocks already
+         * written. Then, holding every read lock so only writers wait, it
+         * saves pending changes, copies the blocks written since, adds the
+         * directory and moves the copy over the file. Readers of the old file
+         * carry on undisturbed. Returns false if the file was replaced or
+         * deleted meanwhile, or could not be read on load, in which case
+         * nothing is changed.
+         */
+        boolean compact(Compactor.Throttle throttle) throws IOException {
+            if (loadError != null) return false;
+            Path target = dbFile.toPath();
+            Path tmp = target.resolveSibling(dbFile.getName() + ".compact");
+            Map<Long, Long> moved = new HashMap<>();
+            Object fileKey = Files.readAttributes(target, BasicFileAttributes.class).fileKey();
+            try {
+                try (FileChannel src = FileChannel.open(target, StandardOpenOption.READ);
+                     FileChannel dst = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                             StandardOpenOption.TRUNCATE_EXISTING)) {
+                    dst.position(SecdbFormat.HEADER_SIZE);
+                    for (SecdbFormat.TableEntry entry : SecdbFormat.readDirectory(src)) {
+                        Compactor.copyBlocks(src, entry, dst, moved, throttle);
+                    }
+                }
+                synchronized (saveLock) {
+                    List<Lock> held = locks.readAll();
+                    try {
+                        if (saved < changes.get()) writeFile();
+                        if (!dbFile.exists() || !Objects.equals(fileKey,
+                                Files.readAttributes(target, BasicFileAttributes.class).fileKey())) {
+                            return false;
+                        }
+                        List<SecdbFormat.TableEntry> directory;
+                        try (FileChannel src = FileChannel.open(target, StandardOpenOption.READ);
+                             FileChannel dst = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                            dst.position(dst.size());
+                            directory = SecdbFormat.readDirectory(src);
+                            for (SecdbFormat.TableEntry entry : directory) {
+                                Compactor.copyBlocks(src, entry, dst, moved, null);
+                            }
+                            SecdbFormat.finish(dst, directory, SecdbFormat.readFlags(src), SecdbFormat.readFileId(src),
+                                    SecdbFormat.readGeneration(src) + 1);
+                        }
+                        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        pointTo(directory);
+                        return true;
+                    } finally {
+                        TableLocks.unlockAll(held);
+                    }
+                }
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+
+        // A database's own setting (key.<file name>) if it has one, otherwise the shared one
+        private static String setting(String key, File dbFile, String defaultValue) {
+            return config.getProperty(key + "." + dbFile.getName(), config.getProperty(key, defaultValue));
+        }
+
+        // db.write.mode = lock (default) | queue
+        private static boolean useWriteQueue() {
+            return config.getProperty("db.write.mode", "lock").equals("queue");
+        }
+
+        // db.storage = heap | mapped | auto; auto maps files of db.mmap.threshold.mb or more
+        private static boolean useMappedStorage(File dbFile) {
+            String storage = config.getProperty("db.storage", "auto");
+            if (storage.equals("mapped")) return true;
+            if (!storage.equals("auto")) return false;
+            long thresholdMb = Long.parseLong(config.getProperty("db.mmap.threshold.mb", "256"));
+            return dbFile.length() >= thresholdMb * 1024 * 1024;
+        }
+
+        // db.storage = packed keeps rows in byte[] pages on the heap, offheap in direct buffers outside it
+        private static boolean usePackedStorage() {
+            String storage = config.getProperty("db.storage", "auto");
+            return storage.equals("packed") || storage.equals("offheap");
+        }
+
+        // New, empty rows for a table, in the storage this database uses
+        private List<String[]> newRowList() {
+            return packedStorage ? new PackedRowList(directPages) : new VersionedRowList();
+        }
+
+        /**
+         * Rows stay in the mapped file and are decoded on access; only the
+         * directory is read. After a save the new lists hold the same rows as
+         * the ones they replace, so readers still on the old mapping see no
+         * difference.
+         */
+        private void remap() throws IOException {
+            MappedRowList.MappedFile file = new MappedRowList.MappedFile(dbFile, mapping);
+            mapping = file;
+            for (SecdbFormat.TableEntry entry : file.directory) {
+                tableHeaders.putIfAbsent(entry.name, new ArrayList<>(entry.columns));
+                tableProperties.putIfAbsent(entry.name, new LinkedHashMap<>(entry.properties));
+                tables.put(entry.name, new MappedRowList(file, entry));
+            }
+        }
+
         private void load() throws IOException {
+            if (SecdbFormat.isLegacy(dbFile)) {
+                // Migrate to the binary format on first open; keep the old file if it can't be read
+                if (!loadLegacy()) return;
+                changes.incrementAndGet();
+                save();
+                log("Migrated database " + dbFile.getName() + " to binary format v" + SecdbFormat.VERSION);
+                if (mappedStorage) return;   // the save already mapped the new file
+                // The tables are still the plain lists read from the old file; read them back in this storage
+                tables.clear();
+                tableHeaders.clear();
+                tableProperties.clear();
+                indexes.clear();
+                dictionaries.clear();
+            }
+            if (mappedStorage) {
+                try {
+                    remap();
+                    appendable = true;
+                } catch (IOException e) {
+                    System.err.println("Error mapping database file: " + e.getMessage());
+                    e.printStackTrace();
+                    loadError = e.getMessage();
+                }
+                return;
+            }
+            try (FileChannel ch = FileChannel.open(dbFile.toPath(), StandardOpenOption.READ)) {
+                // Only the directory is read here; each table's rows load on first access,
+                // except packed ones, which are streamed into their pages block by block
+                for (SecdbFormat.TableEntry entry : SecdbFormat.readDirectory(ch)) {
+                    tableHeaders.put(entry.name, new ArrayList<>(entry.columns));
+                    if (packedStorage) {
+                        PackedRowList rows = new PackedRowList(directPages);
+                        SecdbFormat.forEachRow(ch, entry, rows::add);
+                        rows.markSaved(entry);
+                        tables.put(entry.name, rows);
+                    } else {
+                        tables.put(entry.name, new LazyRowList(dbFile, entry));
+                    }
+                    tableProperties.put(entry.name, new LinkedHashMap<>(entry.properties));
+                }
+                appendable = true;
+            } catch (IOException e) {
+                System.err.println("Error loading database file: " + e.getMessage());
+                e.printStackTrace();
+                // Show nothing rather than part of it, and keep the file as it is (see loadError)
+                tables.clear();
+                tableHeaders.clear();
+                tableProperties.clear();
+                loadError = e.getMessage();
+            }
+        }
+
+        // Pre-v1 files were ObjectOutputStream dumps of the two maps
+        @SuppressWarnings("unchecked")
+        private boolean loadLegacy() {
             try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(dbFile))) {
                 // Read tableHeaders first (as saved in save() method)
                 Object headersObj = in.readObject();
                 if (headersObj instanceof Map) {
-                    this.tableHeaders = (Map<String, List<String>>) headersObj;
+                    tableHeaders.putAll((Map<String, List<String>>) headersObj);
                 }
                 
                 // Read tables second
                 Object tablesObj = in.readObject();
                 if (tablesObj instanceof Map) {
-                    this.tables = (Map<String, List<String[]>>) tablesObj;
+                    tables.putAll((Map<String, List<String[]>>) tablesObj);
                 }
+                return true;
             } catch (IOException | ClassNotFoundException e) {
                 System.err.println("Error loading database file: " + e.getMessage());
                 e.printStackTrace();
-                // Reset to empty state on error
-                this.tables = new HashMap<>();
-                this.tableHeaders = new HashMap<>();
+                // Show nothing rather than part of it, and keep the file as it is (see loadError)
+                tables.clear();
+                tableHeaders.clear();
+                loadError = e.getMessage();
+                return false;
             }
         }
     }
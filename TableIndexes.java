@@ -0,0 +1,474 @@
+import java.util.*;
+import java.util.function.IntPredicate;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * In-memory indexes of one table, rebuilt from the rows the first time they
+ * are needed after a load. The first column (the row id) is always indexed;
+ * other columns get a hash index, or an ordered one for range queries, when
+ * one is created on them. Columns may also carry a Bloom filter, which
+ * only rules values out. Columns declared with a numeric type keep their
+ * parsed values in a primitive array, which range scans and aggregates read
+ * instead of parsing every cell. The arrays come on top of the cells, which
+ * the rows still hold as text, so they cost 4 or 8 bytes per row each.
+ *
+ * Indexes store a slot per row rather than its list position. A slot is the
+ * row's position at the time it was indexed; deleting a row only records its
+ * slot, and {@link #position} subtracts the deleted slots in front of it. That
+ * keeps a delete from renumbering every later row. Once enough deletes pile
+ * up, {@link #isStale} asks the owner to rebuild.
+ */
+public class TableIndexes {
+    private final HashIndex primary;
+    private final Map<Integer, HashIndex> secondary = new HashMap<>();
+    private final Map<Integer, OrderedIndex> ordered = new HashMap<>();
+    private final Map<Integer, BloomFilter> blooms = new HashMap<>();
+    private final Map<Integer, TypedColumn> typed = new HashMap<>();
+    private final boolean uniquePrimary;
+    private int[] deleted = new int[16];   // sorted slots of removed rows
+    private int deletedCount;
+    private int nextSlot;
+
+    TableIndexes(List<String[]> rows, boolean uniquePrimary, Collection<Integer> hashColumns,
+                 Collection<Integer> orderedColumns, Collection<Integer> bloomColumns, Map<Integer, ColumnType> types) {
+        this.uniquePrimary = uniquePrimary;
+        this.primary = new HashIndex(0);
+        for (int column : hashColumns) {
+            if (column > 0) secondary.put(column, new HashIndex(column));
+        }
+        for (int column : orderedColumns) {
+            if (column >= 0) ordered.put(column, new OrderedIndex(column));
+        }
+        for (int column : bloomColumns) {
+            // Room to double before the filter counts as full
+            if (column >= 0) blooms.put(column, new BloomFilter(Math.max(1024, rows.size() * 2)));
+        }
+        for (Map.Entry<Integer, ColumnType> e : types.entrySet()) {
+            if (e.getValue().isNumeric()) typed.put(e.getKey(), new TypedColumn(e.getKey(), e.getValue(), rows.size()));
+        }
+        for (String[] row : rows) add(row, nextSlot++);
+    }
+
+    /** The column's Bloom filter, or null if it has none. */
+    BloomFilter bloom(int column) {
+        return blooms.get(column);
+    }
+
+    /** True if equality lookups on {@code column} can go through an index. */
+    boolean isIndexed(int column) {
+        return column == 0 || secondary.containsKey(column) || ordered.containsKey(column);
+    }
+
+    boolean isOrdered(int column) {
+        return ordered.containsKey(column);
+    }
+
+    /** Current positions of the rows whose first column equals {@code id}, in table order. */
+    int[] positionsOf(String id) {
+        return positionsOf(0, id);
+    }
+
+    /** Current positions of the rows whose {@code column} equals {@code value}, in table order. */
+    int[] positionsOf(int column, String value) {
+        HashIndex index = column == 0 ? primary : secondary.getOrDefault(column, ordered.get(column));
+        if (index == null) throw new IllegalArgumentException("Column " + column + " is not indexed");
+        int[] slots = index.slotsFor(value);
+        int[] positions = new int[slots.length];
+        for (int i = 0; i < slots.length; i++) positions[i] = position(slots[i]);
+        return positions;
+    }
+
+    boolean containsKey(String id) {
+        return primary.slotsFor(id).length > 0;
+    }
+
+    /** Calls {@code visitor} with each distinct value of an indexed column and its number of rows. */
+    void forEachKey(int column, ObjIntConsumer<String> visitor) {
+        HashIndex index = column == 0 ? primary : secondary.getOrDefault(column, ordered.get(column));
+        if (index == null) throw new IllegalArgumentException("Column " + column + " is not indexed");
+        for (Map.Entry<Object, Object> e : index.slots.entrySet()) {
+            Object key = e.getKey();
+            String value = key instanceof RowQuery.Value ? ((RowQuery.Value) key).text : (String) key;
+            visitor.accept(value, HashIndex.count(e.getValue()));
+        }
+    }
+
+    /** Smallest (or largest) non-empty value of a column with an ordered index, or null if there is none. */
+    RowQuery.Value extreme(int column, boolean largest) {
+        NavigableMap<Object, Object> keys = (NavigableMap<Object, Object>) ordered.get(column).slots;
+        for (Object key : largest ? keys.descendingKeySet() : keys.navigableKeySet()) {
+            RowQuery.Value value = (RowQuery.Value) key;
+            if (value.text != null && !value.text.isEmpty()) return value;
+        }
+        return null;
+    }
+
+    /**
+     * Walks the ordered index of the condition's column (or of {@code column}
+     * when there is no condition) in key order, handing each matching row's
+     * position to {@code visitor} until it returns false. Rows with the same
+     * key come in table order.
+     */
+    void forEachOrdered(int column, RowQuery.Condition condition, boolean descending, IntPredicate visitor) {
+        OrderedIndex index = ordered.get(column);
+        if (index == null) throw new IllegalArgumentException("Column " + column + " has no ordered index");
+        for (NavigableMap<Object, Object> range : index.ranges(condition, descending)) {
+            for (Map.Entry<Object, Object> e : range.entrySet()) {
+                RowQuery.Value key = (RowQuery.Value) e.getKey();
+                if (key.text == null || (condition != null && !condition.matches(key))) continue;
+                for (int slot : HashIndex.slotsOf(e.getValue())) {
+                    if (!visitor.test(position(slot))) return;
+                }
+            }
+        }
+    }
+
+    /** True if the column's values are held parsed, so {@link #scan} and {@link #accumulate} can use them. */
+    boolean isTyped(int column) {
+        TypedColumn values = typed.get(column);
+        return values != null && values.usable;
+    }
+
+    /**
+     * Positions of the rows matching a condition on a typed column, in table
+     * order, found by comparing parsed values the way {@link RowQuery.Value}
+     * compares cells. Null if the condition compares text (a prefix, or
+     * equality with "") or the column isn't typed.
+     */
+    int[] scan(RowQuery.Condition c) {
+        if (!isTyped(c.column) || c.op == RowQuery.Op.PREFIX || (c.op == RowQuery.Op.EQ && c.value.isEmpty())) {
+            return null;
+        }
+        TypedColumn values = typed.get(c.column);
+        int[] found = new int[16];
+        int count = 0;
+        int position = 0;
+        int d = 0;
+        for (int slot = 0; slot < nextSlot; slot++) {
+            if (d < deletedCount && deleted[d] == slot) {
+                d++;
+                continue;
+            }
+            if (values.matches(slot, c)) {
+                if (count == found.length) found = Arrays.copyOf(found, count * 2);
+                found[count++] = position;
+            }
+            position++;
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    /**
+     * Adds the typed column's values at {@code positions} (sorted; every row
+     * when null) to {@code acc}, with the same result as adding the cells.
+     */
+    void accumulate(int column, int[] positions, Aggregation.Accumulator acc) {
+        TypedColumn values = typed.get(column);
+        int minSlot = -1, maxSlot = -1;
+        int next = 0;
+        int position = 0;
+        int d = 0;
+        for (int slot = 0; slot < nextSlot; slot++) {
+            if (d < deletedCount && deleted[d] == slot) {
+                d++;
+                continue;
+            }
+            int at = position++;
+            if (positions != null) {
+                if (next == positions.length) break;
+                if (positions[next] != at) continue;
+                next++;
+            }
+            if (!values.present.get(slot)) continue;
+            acc.count++;
+            acc.numbers++;
+            acc.sum += values.number(slot);
+            if (minSlot < 0 || values.number(slot) < values.number(minSlot)) minSlot = slot;
+            if (maxSlot < 0 || values.number(slot) > values.number(maxSlot)) maxSlot = slot;
+        }
+        if (minSlot < 0) return;
+        RowQuery.Value low = RowQuery.Value.of(values.text(minSlot));
+        RowQuery.Value high = RowQuery.Value.of(values.text(maxSlot));
+        if (acc.min == null || low.compareTo(acc.min) < 0) acc.min = low;
+        if (acc.max == null || high.compareTo(acc.max) > 0) acc.max = high;
+    }
+
+    /**
+     * Throws if the row would break the table's unique id constraint. Rows
+     * at positions {@code gone} accepts, such as expired ones, don't hold on
+     * to their id.
+     */
+    void checkInsert(String[] row, IntPredicate gone) {
+        if (!uniquePrimary || row.length == 0) return;
+        for (int position : positionsOf(row[0])) {
+            if (!gone.test(position)) throw new IllegalArgumentException("Duplicate id: " + row[0]);
+        }
+    }
+
+    /** Records a row appended to the end of the table. */
+    void onInsert(String[] row) {
+        add(row, nextSlot++);
+    }
+
+    /** Records that the row at {@code position} was removed from the table. */
+    void onDelete(int position, String[] row) {
+        int slot = slotOf(position, row);
+        primary.remove(row, slot);
+        for (HashIndex index : secondary.values()) index.remove(row, slot);
+        for (HashIndex index : ordered.values()) index.remove(row, slot);
+        int at = Arrays.binarySearch(deleted, 0, deletedCount, slot);
+        at = -at - 1;
+        if (deletedCount == deleted.length) deleted = Arrays.copyOf(deleted, deletedCount * 2);
+        System.arraycopy(deleted, at, deleted, at + 1, deletedCount - at);
+        deleted[at] = slot;
+        deletedCount++;
+    }
+
+    /**
+     * Records that the row at {@code position} was replaced in place by
+     * {@code row}; the row keeps its slot and only moves between keys.
+     */
+    void onUpdate(int position, String[] old, String[] row) {
+        int slot = slotOf(position, old);
+        primary.remove(old, slot);
+        for (HashIndex index : secondary.values()) index.remove(old, slot);
+        for (HashIndex index : ordered.values()) index.remove(old, slot);
+        for (TypedColumn values : typed.values()) values.present.clear(slot);
+        add(row, slot);
+    }
+
+    /** True once translating slots costs more than rebuilding would, or a Bloom filter outgrew its size. */
+    boolean isStale() {
+        for (BloomFilter bloom : blooms.values()) {
+            if (bloom.isFull()) return true;
+        }
+        return deletedCount > Math.max(1024, (nextSlot - deletedCount) / 16);
+    }
+
+    int position(int slot) {
+        int before = Arrays.binarySearch(deleted, 0, deletedCount, slot);
+        return slot - (before >= 0 ? before : -before - 1);
+    }
+
+    private void add(String[] row, int slot) {
+        primary.add(row, slot);
+        for (HashIndex index : secondary.values()) index.add(row, slot);
+        for (HashIndex index : ordered.values()) index.add(row, slot);
+        for (Map.Entry<Integer, BloomFilter> e : blooms.entrySet()) {
+            if (e.getKey() < row.length) e.getValue().add(row[e.getKey()]);
+        }
+        for (TypedColumn values : typed.values()) values.add(row, slot);
+    }
+
+    // The row's key narrows the search to a handful of slots
+    private int slotOf(int position, String[] row) {
+        for (int slot : primary.slotsFor(row.length > 0 ? row[0] : null)) {
+            if (position(slot) == position) return slot;
+        }
+        throw new IllegalStateException("Row at " + position + " is not indexed");
+    }
+
+    /**
+     * Column value -> slots. A key held by one row maps to an Integer, which
+     * is the common case for ids; duplicates are promoted to an int[] whose
+     * first element is the count.
+     */
+    static class HashIndex {
+        private static final int[] NONE = new int[0];
+
+        private final int column;
+        final Map<Object, Object> slots;
+
+        HashIndex(int column) {
+            this(column, new HashMap<>());
+        }
+
+        HashIndex(int column, Map<Object, Object> slots) {
+            this.column = column;
+            this.slots = slots;
+        }
+
+        int[] slotsFor(String value) {
+            return slotsOf(slots.get(keyOf(value)));
+        }
+
+        static int[] slotsOf(Object value) {
+            if (value == null) return NONE;
+            if (value instanceof Integer) return new int[] { (Integer) value };
+            int[] list = (int[]) value;
+            return Arrays.copyOfRange(list, 1, list[0] + 1);
+        }
+
+        Object keyOf(String value) {
+            return value;
+        }
+
+        static int count(Object value) {
+            return value instanceof Integer ? 1 : ((int[]) value)[0];
+        }
+
+        // Slots stay in ascending order; only an updated row can come in below the last one
+        void add(String[] row, int slot) {
+            Object key = key(row);
+            Object value = slots.get(key);
+            if (value == null) {
+                slots.put(key, slot);
+            } else if (value instanceof Integer) {
+                int other = (Integer) value;
+                slots.put(key, new int[] { 2, Math.min(other, slot), Math.max(other, slot), 0 });
+            } else {
+                int[] list = (int[]) value;
+                if (list[0] + 1 == list.length) {
+                    list = Arrays.copyOf(list, list.length * 2);
+                    slots.put(key, list);
+                }
+                int i = ++list[0];
+                for (; i > 1 && list[i - 1] > slot; i--) list[i] = list[i - 1];
+                list[i] = slot;
+            }
+        }
+
+        void remove(String[] row, int slot) {
+            Object key = key(row);
+            Object value = slots.get(key);
+            if (value instanceof Integer) {
+                if ((Integer) value == slot) slots.remove(key);
+                return;
+            }
+            if (value == null) return;
+            int[] list = (int[]) value;
+            for (int i = 1; i <= list[0]; i++) {
+                if (list[i] != slot) continue;
+                System.arraycopy(list, i + 1, list, i, list[0] - i);
+                list[0]--;
+                break;
+            }
+            if (list[0] == 1) slots.put(key, list[1]);
+        }
+
+        private Object key(String[] row) {
+            return keyOf(column < row.length ? row[column] : null);
+        }
+    }
+
+    /**
+     * The values of a typed column by slot: ints in an int[], longs and
+     * timestamps in a long[], doubles in a double[]; empty cells are left
+     * out of {@code present}. Inserts bring cells into their type's form, so
+     * every cell parses and is the text of its value; one that doesn't makes
+     * the column unusable and callers read the cells instead.
+     */
+    static class TypedColumn {
+        private final int column;
+        private int[] ints;
+        private long[] longs;
+        private double[] doubles;
+        final BitSet present = new BitSet();
+        boolean usable = true;
+
+        TypedColumn(int column, ColumnType type, int capacity) {
+            this.column = column;
+            capacity = Math.max(16, capacity);
+            if (type == ColumnType.INT) ints = new int[capacity];
+            else if (type == ColumnType.DOUBLE) doubles = new double[capacity];
+            else longs = new long[capacity];
+        }
+
+        void add(String[] row, int slot) {
+            if (slot >= length()) grow(Math.max(slot + 1, length() * 2));
+            String cell = column < row.length ? row[column] : null;
+            if (cell == null || cell.isEmpty()) return;
+            try {
+                if (ints != null) ints[slot] = Integer.parseInt(cell);
+                else if (doubles != null) doubles[slot] = Double.parseDouble(cell);
+                else longs[slot] = Long.parseLong(cell);
+                present.set(slot);
+            } catch (NumberFormatException e) {
+                usable = false;
+            }
+        }
+
+        double number(int slot) {
+            return ints != null ? ints[slot] : doubles != null ? doubles[slot] : longs[slot];
+        }
+
+        // The cell as inserted
+        String text(int slot) {
+            if (ints != null) return Integer.toString(ints[slot]);
+            if (longs != null) return Long.toString(longs[slot]);
+            return ColumnType.format(doubles[slot]);
+        }
+
+        boolean matches(int slot, RowQuery.Condition c) {
+            if (!present.get(slot)) return false;
+            switch (c.op) {
+                case EQ: return compare(slot, c.from) == 0;
+                case GT: return compare(slot, c.from) > 0;
+                case GTE: return compare(slot, c.from) >= 0;
+                case LT: return compare(slot, c.from) < 0;
+                case LTE: return compare(slot, c.from) <= 0;
+                case BETWEEN: return compare(slot, c.from) >= 0 && compare(slot, c.to) <= 0;
+                default: return false;
+            }
+        }
+
+        // Numbers sort before text; equal numbers fall back to their text, as in RowQuery.Value
+        private int compare(int slot, RowQuery.Value value) {
+            if (!value.isNumber()) return -1;
+            int c = Double.compare(number(slot), value.number);
+            return c != 0 ? c : text(slot).compareTo(value.text);
+        }
+
+        private int length() {
+            return ints != null ? ints.length : doubles != null ? doubles.length : longs.length;
+        }
+
+        private void grow(int capacity) {
+            if (ints != null) ints = Arrays.copyOf(ints, capacity);
+            else if (doubles != null) doubles = Arrays.copyOf(doubles, capacity);
+            else longs = Arrays.copyOf(longs, capacity);
+        }
+    }
+
+    /** A column index kept in value order, so ranges and prefixes are contiguous runs of keys. */
+    static class OrderedIndex extends HashIndex {
+        OrderedIndex(int column) {
+            super(column, new TreeMap<>());
+        }
+
+        @Override
+        Object keyOf(String value) {
+            return RowQuery.Value.of(value);
+        }
+
+        // The key ranges that can hold matches, in visiting order
+        List<NavigableMap<Object, Object>> ranges(RowQuery.Condition c, boolean descending) {
+            NavigableMap<Object, Object> all = (NavigableMap<Object, Object>) slots;
+            List<NavigableMap<Object, Object>> ranges = new ArrayList<>();
+            if (c == null) {
+                ranges.add(all);
+            } else {
+                switch (c.op) {
+                    case EQ: ranges.add(all.subMap(c.from, true, c.from, true)); break;
+                    case GT: ranges.add(all.tailMap(c.from, false)); break;
+                    case GTE: ranges.add(all.tailMap(c.from, true)); break;
+                    case LT: ranges.add(all.headMap(c.from, false)); break;
+                    case LTE: ranges.add(all.headMap(c.from, true)); break;
+                    case BETWEEN:
+                        if (c.from.compareTo(c.to) <= 0) ranges.add(all.subMap(c.from, true, c.to, true));
+                        break;
+                    case PREFIX:
+                        // Text with the prefix is one run; numbers sort apart and are checked key by key
+                        ranges.add(all.headMap(RowQuery.Value.FIRST_TEXT, false));
+                        ranges.add(all.subMap(RowQuery.Value.text(c.value), true, RowQuery.Value.text(c.value + Character.MAX_VALUE), false));
+                        break;
+                }
+            }
+            if (descending) {
+                Collections.reverse(ranges);
+                ranges.replaceAll(NavigableMap::descendingMap);
+            }
+            return ranges;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read-write locks for the tables of one database, striped by table name so
+ * the number of locks stays fixed however many tables there are. Readers
+ * of a table share its lock; a writer has it to itself, and writers to
+ * tables on different stripes never wait for each other.
+ *
+ * Time spent waiting for a lock that was not free at once is counted, so
+ * contention shows up on the databases page.
+ */
+public class TableLocks {
+    private final ReentrantReadWriteLock[] stripes;
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    TableLocks(int stripes) {
+        this.stripes = new ReentrantReadWriteLock[Math.max(1, stripes)];
+        for (int i = 0; i < this.stripes.length; i++) this.stripes[i] = new ReentrantReadWriteLock();
+    }
+
+    /** Takes the table's read lock and returns it for unlocking. */
+    Lock read(String table) {
+        return acquire(stripe(table).readLock());
+    }
+
+    /** Takes the table's write lock and returns it for unlocking. */
+    Lock write(String table) {
+        return acquire(stripe(table).writeLock());
+    }
+
+    /**
+     * Takes the read lock of every stripe, in stripe order, so nothing is
+     * written anywhere until they are released. The caller must not hold a
+     * write lock of its own, unless it took all of them with writeAllReadRest.
+     */
+    List<Lock> readAll() {
+        List<Lock> held = new ArrayList<>(stripes.length);
+        for (ReentrantReadWriteLock stripe : stripes) held.add(acquire(stripe.readLock()));
+        return held;
+    }
+
+    /**
+     * Takes the write locks of the given tables in stripe order, so two
+     * callers locking overlapping sets can't deadlock.
+     */
+    List<Lock> writeAll(Collection<String> tables) {
+        SortedSet<Integer> indexes = new TreeSet<>();
+        for (String table : tables) indexes.add(index(table));
+        List<Lock> held = new ArrayList<>(indexes.size());
+        for (int i : indexes) held.add(acquire(stripes[i].writeLock()));
+        return held;
+    }
+
+    /**
+     * Takes the write locks of the given tables and the read locks of every
+     * other stripe, all in stripe order. The holder can then change those
+     * tables and save the whole database (readAll is then reentrant) before
+     * anyone else sees the change.
+     */
+    List<Lock> writeAllReadRest(Collection<String> tables) {
+        Set<Integer> indexes = new HashSet<>();
+        for (String table : tables) indexes.add(index(table));
+        List<Lock> held = new ArrayList<>(stripes.length);
+        for (int i = 0; i < stripes.length; i++) {
+            held.add(acquire(indexes.contains(i) ? stripes[i].writeLock() : stripes[i].readLock()));
+        }
+        return held;
+    }
+
+    static void unlockAll(List<Lock> held) {
+        for (int i = held.size() - 1; i >= 0; i--) held.get(i).unlock();
+    }
+
+    /** Number of lock requests that had to wait. */
+    long waits() {
+        return waits.sum();
+    }
+
+    /** Total time spent waiting for locks, in milliseconds. */
+    double waitMillis() {
+        return waitNanos.sum() / 1_000_000.0;
+    }
+
+    /** The longest single wait, in milliseconds. */
+    double maxWaitMillis() {
+        return maxWaitNanos.get() / 1_000_000.0;
+    }
+
+    private Lock acquire(Lock lock) {
+        if (lock.tryLock()) return lock;
+        long start = System.nanoTime();
+        lock.lock();
+        long waited = System.nanoTime() - start;
+        waits.increment();
+        waitNanos.add(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        return lock;
+    }
+
+    private ReentrantReadWriteLock stripe(String table) {
+        return stripes[index(table)];
+    }
+
+    private int index(String table) {
+        return Math.floorMod(table == null ? 0 : table.hashCode(), stripes.length);
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * Deleted-row bitmaps for the chunked row lists. A chunk that had rows
+ * removed keeps them in place and sets their bit instead, so a delete
+ * neither shifts the rest of the chunk nor copies it; the list reclaims the
+ * slots later, once {@link #RECLAIM_AT} of them are dead. A chunk with no
+ * deleted rows has no bitmap at all.
+ */
+final class Tombstones {
+    /** Dead slots at which a chunk is compacted. */
+    static final int RECLAIM_AT = VersionedRowList.CHUNK_SIZE / 4;
+
+    private Tombstones() {
+    }
+
+    static long[] create(int slots) {
+        return new long[(slots + 63) >>> 6];
+    }
+
+    static void mark(long[] dead, int slot) {
+        dead[slot >>> 6] |= 1L << slot;
+    }
+
+    static boolean isDead(long[] dead, int slot) {
+        return dead != null && (dead[slot >>> 6] & 1L << slot) != 0;
+    }
+
+    /** The slot of the {@code offset}-th live row; counts whole words, then bits within one. */
+    static int slotOf(long[] dead, int offset) {
+        if (dead == null) return offset;
+        int left = offset;
+        for (int w = 0; ; w++) {
+            long live = ~dead[w];
+            int count = Long.bitCount(live);
+            if (left < count) {
+                for (int i = 0; i < left; i++) live &= live - 1;
+                return (w << 6) + Long.numberOfTrailingZeros(live);
+            }
+            left -= count;
+        }
+    }
+}
@@ -0,0 +1,457 @@
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Heap rows of one table in fixed-size chunks that are shared with
+ * snapshots. A snapshot copies only the chunk table, one entry per
+ * {@value #CHUNK_SIZE} rows, and never changes afterwards: the first
+ * change to a chunk after a snapshot copies that chunk, and appends only
+ * write past the end the snapshot can see. Chunks that no snapshot refers
+ * to any more are left to the garbage collector.
+ *
+ * Removing a row only marks it in its chunk's {@link Tombstones} bitmap;
+ * the chunk is compacted once enough of it is dead, and dead rows are never
+ * written to the file.
+ *
+ * Changes need the table's write lock. Snapshots can be taken under its
+ * read lock, by several readers at once; a snapshot is read-only and can be
+ * read from any thread without a lock.
+ *
+ * The list also remembers which blocks of the database file its rows were
+ * last saved to and which of those blocks changed since, so an appending
+ * save only writes the changed ones.
+ */
+public class VersionedRowList extends AbstractList<String[]> implements RandomAccess {
+    static final int CHUNK_SIZE = 1024;
+
+    private String[][][] chunks;
+    private int[] lengths;     // live rows in each chunk
+    private int[] used;        // slots used in each chunk, live or dead
+    private long[][] dead;     // deleted slots of each chunk, null while it has none
+    private int[] starts;      // list index of each chunk's first row
+    private long[] owners;     // version each chunk (and its bitmap) was copied in; older ones may be shared
+    private int chunkCount;
+    private int size;
+    private final AtomicLong version = new AtomicLong();   // raised by every snapshot, which readers may take at once
+    private final boolean frozen;
+    private SavedBlocks saved;   // blocks the rows were last saved to, if any
+
+    VersionedRowList() {
+        this.chunks = new String[4][][];
+        this.lengths = new int[4];
+        this.used = new int[4];
+        this.dead = new long[4][];
+        this.starts = new int[4];
+        this.owners = new long[4];
+        this.frozen = false;
+    }
+
+    VersionedRowList(Collection<String[]> rows) {
+        this();
+        for (String[] row : rows) add(row);
+    }
+
+    private VersionedRowList(VersionedRowList source) {
+        this.chunks = Arrays.copyOf(source.chunks, source.chunkCount);
+        this.lengths = Arrays.copyOf(source.lengths, source.chunkCount);
+        this.used = Arrays.copyOf(source.used, source.chunkCount);
+        this.dead = Arrays.copyOf(source.dead, source.chunkCount);
+        this.starts = Arrays.copyOf(source.starts, source.chunkCount);
+        this.owners = new long[source.chunkCount];
+        this.chunkCount = source.chunkCount;
+        this.size = source.size;
+        this.frozen = true;
+    }
+
+    /** The rows as they are now; later changes to this list don't show in it. */
+    VersionedRowList snapshot() {
+        if (frozen) return this;
+        VersionedRowList copy = new VersionedRowList(this);
+        version.incrementAndGet();
+        return copy;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String[] get(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index);
+        int c = chunkOf(index);
+        return chunks[c][Tombstones.slotOf(dead[c], index - starts[c])];
+    }
+
+    @Override
+    public String[] set(int index, String[] row) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index);
+        int c = writable(chunkOf(index));
+        if (saved != null) saved.changed(index, 0);
+        int slot = Tombstones.slotOf(dead[c], index - starts[c]);
+        String[] old = chunks[c][slot];
+        chunks[c][slot] = row;
+        return old;
+    }
+
+    @Override
+    public boolean add(String[] row) {
+        checkWritable();
+        if (chunkCount == 0 || used[chunkCount - 1] == CHUNK_SIZE) insertChunk(chunkCount, new String[CHUNK_SIZE][]);
+        // Slots past a chunk's used ones are invisible to snapshots, so appending needs no copy
+        int c = chunkCount - 1;
+        chunks[c][used[c]++] = row;
+        lengths[c]++;
+        size++;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public void add(int index, String[] row) {
+        if (index == size) {
+            add(row);
+            return;
+        }
+        if (index < 0 || index > size) throw new IndexOutOfBoundsException("Index: " + index);
+        int c = chunkOf(index);
+        if (dead[c] != null) compact(c);
+        if (lengths[c] == CHUNK_SIZE) split(c);
+        if (index - starts[c] > lengths[c]) c++;
+        c = writable(c);
+        if (saved != null) saved.changed(index, 1);
+        int at = index - starts[c];
+        System.arraycopy(chunks[c], at, chunks[c], at + 1, lengths[c] - at);
+        chunks[c][at] = row;
+        lengths[c]++;
+        used[c]++;
+        shiftStarts(c + 1, 1);
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public String[] remove(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index);
+        int c = writable(chunkOf(index));
+        if (saved != null) saved.changed(index, -1);
+        String[] row = bury(c, Tombstones.slotOf(dead[c], index - starts[c]));
+        if (lengths[c] == 0) {
+            removeChunk(c);
+        } else {
+            shiftStarts(c + 1, -1);
+            if (used[c] - lengths[c] >= Tombstones.RECLAIM_AT) compact(c);
+        }
+        size--;
+        modCount++;
+        return row;
+    }
+
+    @Override
+    public void clear() {
+        checkWritable();
+        chunks = new String[4][][];
+        lengths = new int[4];
+        used = new int[4];
+        dead = new long[4][];
+        starts = new int[4];
+        owners = new long[4];
+        chunkCount = 0;
+        size = 0;
+        saved = null;
+        modCount++;
+    }
+
+    /** Marks the matching rows deleted in one pass, chunk by chunk, without moving the others. */
+    @Override
+    public boolean removeIf(Predicate<? super String[]> filter) {
+        checkWritable();
+        int removed = 0;
+        int index = 0;   // list index of the next live row, counting the ones removed so far as gone
+        for (int c = 0; c < chunkCount; c++) {
+            int before = lengths[c];
+            for (int slot = 0; slot < used[c]; slot++) {
+                if (Tombstones.isDead(dead[c], slot)) continue;
+                if (!filter.test(chunks[c][slot])) {
+                    index++;
+                    continue;
+                }
+                if (owners[c] != version.get()) writable(c);
+                if (saved != null) saved.changed(index, -1);
+                bury(c, slot);
+            }
+            removed += before - lengths[c];
+        }
+        if (removed == 0) return false;
+        int start = 0;
+        for (int c = 0; c < chunkCount; c++) {
+            if (lengths[c] == 0) {
+                removeChunk(c--);
+                continue;
+            }
+            starts[c] = start;
+            start += lengths[c];
+            if (used[c] - lengths[c] >= Tombstones.RECLAIM_AT) compact(c);
+        }
+        size -= removed;
+        modCount++;
+        return true;
+    }
+
+    /** Passes rows {@code from} to {@code to} (exclusive) to {@code action}, chunk by chunk. */
+    void forEach(int from, int to, Consumer<? super String[]> action) {
+        if (from >= to) return;
+        int c = chunkOf(from);
+        int slot = Tombstones.slotOf(dead[c], from - starts[c]);
+        for (int index = from; index < to; index++) {
+            while (slot == used[c] || Tombstones.isDead(dead[c], slot)) {
+                if (slot == used[c]) {
+                    c++;
+                    slot = 0;
+                } else {
+                    slot++;
+                }
+            }
+            action.accept(chunks[c][slot++]);
+        }
+    }
+
+    /**
+     * Records that the rows as they are now were saved to {@code entry}'s
+     * blocks. Needs the table's write lock or all of the database's read
+     * locks.
+     */
+    void markSaved(SecdbFormat.TableEntry entry) {
+        saved = new SavedBlocks(entry);
+    }
+
+    /** Feeds the rows to a block writer; see {@link SavedBlocks#write}. */
+    void writeBlocks(SecdbFormat.BlockWriter out) throws IOException {
+        SavedBlocks.write(saved, out, size, this::writeRows);
+    }
+
+    private void writeRows(SecdbFormat.BlockWriter out, int from, int to) throws IOException {
+        if (from >= to) return;
+        int c = chunkOf(from);
+        int slot = Tombstones.slotOf(dead[c], from - starts[c]);
+        for (int index = from; index < to; index++) {
+            while (slot == used[c] || Tombstones.isDead(dead[c], slot)) {
+                if (slot == used[c]) {
+                    c++;
+                    slot = 0;
+                } else {
+                    slot++;
+                }
+            }
+            out.addRow(chunks[c][slot++]);
+        }
+    }
+
+    /** Walks the chunks directly instead of looking up every index. */
+    @Override
+    public Iterator<String[]> iterator() {
+        return new Iterator<String[]>() {
+            private final int expectedModCount = modCount;
+            private int chunk = 0;
+            private int slot = 0;
+            private int returned = 0;
+
+            @Override
+            public boolean hasNext() {
+                return returned < size;
+            }
+
+            @Override
+            public String[] next() {
+                if (modCount != expectedModCount) throw new ConcurrentModificationException();
+                if (!hasNext()) throw new NoSuchElementException();
+                while (slot == used[chunk] || Tombstones.isDead(dead[chunk], slot)) {
+                    if (slot == used[chunk]) {
+                        chunk++;
+                        slot = 0;
+                    } else {
+                        slot++;
+                    }
+                }
+                returned++;
+                return chunks[chunk][slot++];
+            }
+        };
+    }
+
+    private void checkWritable() {
+        if (frozen) throw new UnsupportedOperationException("Snapshots are read-only");
+    }
+
+    // The chunk, copied first if a snapshot may still be reading it
+    private int writable(int c) {
+        checkWritable();
+        if (owners[c] != version.get()) {
+            chunks[c] = Arrays.copyOf(chunks[c], CHUNK_SIZE);
+            if (dead[c] != null) dead[c] = dead[c].clone();
+            owners[c] = version.get();
+        }
+        return c;
+    }
+
+    // Marks a slot of a writable chunk deleted and lets go of its row
+    private String[] bury(int c, int slot) {
+        String[] row = chunks[c][slot];
+        chunks[c][slot] = null;
+        if (slot == used[c] - 1 && dead[c] == null) {
+            used[c]--;
+        } else {
+            if (dead[c] == null) dead[c] = Tombstones.create(CHUNK_SIZE);
+            Tombstones.mark(dead[c], slot);
+        }
+        lengths[c]--;
+        return row;
+    }
+
+    // Moves a chunk's live rows together into a fresh array and drops its bitmap
+    private void compact(int c) {
+        checkWritable();
+        String[][] live = new String[CHUNK_SIZE][];
+        int n = 0;
+        for (int slot = 0; slot < used[c]; slot++) {
+            if (!Tombstones.isDead(dead[c], slot)) live[n++] = chunks[c][slot];
+        }
+        chunks[c] = live;
+        used[c] = n;
+        dead[c] = null;
+        owners[c] = version.get();
+    }
+
+    private int chunkOf(int index) {
+        // Chunks are never empty, so starts are strictly increasing
+        int c = Arrays.binarySearch(starts, 0, chunkCount, index);
+        return c >= 0 ? c : -c - 2;
+    }
+
+    private void split(int c) {
+        int half = lengths[c] / 2;
+        String[][] upper = new String[CHUNK_SIZE][];
+        System.arraycopy(chunks[c], half, upper, 0, lengths[c] - half);
+        String[][] lower = Arrays.copyOf(chunks[c], CHUNK_SIZE);
+        Arrays.fill(lower, half, CHUNK_SIZE, null);
+        int upperLength = lengths[c] - half;
+        chunks[c] = lower;
+        owners[c] = version.get();
+        lengths[c] = half;
+        used[c] = half;
+        insertChunk(c + 1, upper);
+        lengths[c + 1] = upperLength;
+        used[c + 1] = upperLength;
+        starts[c + 1] = starts[c] + half;
+    }
+
+    private void insertChunk(int at, String[][] chunk) {
+        if (chunkCount == chunks.length) {
+            int capacity = chunks.length * 2;
+            chunks = Arrays.copyOf(chunks, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            used = Arrays.copyOf(used, capacity);
+            dead = Arrays.copyOf(dead, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            owners = Arrays.copyOf(owners, capacity);
+        }
+        int moved = chunkCount - at;
+        System.arraycopy(chunks, at, chunks, at + 1, moved);
+        System.arraycopy(lengths, at, lengths, at + 1, moved);
+        System.arraycopy(used, at, used, at + 1, moved);
+        System.arraycopy(dead, at, dead, at + 1, moved);
+        System.arraycopy(starts, at, starts, at + 1, moved);
+        System.arraycopy(owners, at, owners, at + 1, moved);
+        chunks[at] = chunk;
+        lengths[at] = 0;
+        used[at] = 0;
+        dead[at] = null;
+        starts[at] = at == 0 ? 0 : starts[at - 1] + lengths[at - 1];
+        owners[at] = version.get();
+        chunkCount++;
+    }
+
+    private void removeChunk(int c) {
+        int moved = chunkCount - c - 1;
+        System.arraycopy(chunks, c + 1, chunks, c, moved);
+        System.arraycopy(lengths, c + 1, lengths, c, moved);
+        System.arraycopy(used, c + 1, used, c, moved);
+        System.arraycopy(dead, c + 1, dead, c, moved);
+        System.arraycopy(starts, c + 1, starts, c, moved);
+        System.arraycopy(owners, c + 1, owners, c, moved);
+        chunkCount--;
+        chunks[chunkCount] = null;
+        dead[chunkCount] = null;
+        shiftStarts(c, -1);
+    }
+
+    private void shiftStarts(int from, int delta) {
+        for (int i = from; i < chunkCount; i++) starts[i] += delta;
+    }
+
+    /**
+     * The blocks of the database file a table's rows were last saved to,
+     * and which of them changed since. Row lists keep one to tell an
+     * appending save which blocks it can leave where they are.
+     */
+    static class SavedBlocks {
+        interface RowRange {
+            void write(SecdbFormat.BlockWriter out, int from, int to) throws IOException;
+        }
+
+        private final SecdbFormat.TableEntry entry;
+        private final int[] ends;        // list index past the last row of each block
+        private final BitSet changed;
+
+        SavedBlocks(SecdbFormat.TableEntry entry) {
+            this.entry = entry;
+            this.ends = new int[entry.blockRows.length];
+            int end = 0;
+            for (int b = 0; b < ends.length; b++) ends[b] = end += entry.blockRows[b];
+            this.changed = new BitSet(ends.length);
+        }
+
+        /** Marks the block holding the row at {@code index} as changed; {@code delta} rows were inserted (1) or removed (-1) there. */
+        void changed(int index, int delta) {
+            if (ends.length == 0 || index >= ends[ends.length - 1]) return;
+            // First block ending past index; blocks emptied by removals end where the one before does
+            int lo = 0, hi = ends.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ends[mid] > index) hi = mid;
+                else lo = mid + 1;
+            }
+            changed.set(lo);
+            for (int i = lo; i < ends.length; i++) ends[i] += delta;
+        }
+
+        /**
+         * Feeds {@code size} rows to a block writer. When appending to the
+         * file they were last saved to, unchanged blocks stay where they are,
+         * except the last one when rows were added after it: that one is
+         * written again together with them so appends don't leave a trail
+         * of small blocks.
+         */
+        static void write(SavedBlocks saved, SecdbFormat.BlockWriter out, int size, RowRange rows) throws IOException {
+            if (saved == null || !out.keeps(saved.entry.stamp)) {
+                rows.write(out, 0, size);
+                return;
+            }
+            int last = saved.ends.length - 1;
+            int from = 0;
+            for (int b = 0; b <= last; b++) {
+                boolean growing = b == last && size > saved.ends[b];
+                if (saved.changed.get(b) || growing) {
+                    rows.write(out, from, saved.ends[b]);
+                } else {
+                    out.keepBlock(saved.entry.blockOffsets[b], saved.entry.blockRows[b]);
+                }
+                from = saved.ends[b];
+            }
+            rows.write(out, from, size);
+        }
+    }
+}
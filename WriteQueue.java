@@ -0,0 +1,157 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * The single writer of one database. Changes are queued and applied in
+ * order by one thread, which takes whatever has queued up meanwhile as a
+ * batch and saves once after it; callers get a future that completes after
+ * the save that included their change, or fails if that save did.
+ *
+ * The queue is bounded. A caller that finds it full waits up to the offer
+ * timeout and then gets a {@link FullException}, so a flood of writes is
+ * pushed back to the clients instead of piling up in memory.
+ */
+public class WriteQueue {
+    /** Thrown when a change could not be queued in time. */
+    static class FullException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        FullException(String message) {
+            super(message);
+        }
+    }
+
+    private static class Task<T> {
+        final Supplier<T> change;
+        final CompletableFuture<T> done = new CompletableFuture<>();
+        T result;
+        RuntimeException error;
+
+        Task(Supplier<T> change) {
+            this.change = change;
+        }
+
+        void apply() {
+            try {
+                result = change.get();
+            } catch (RuntimeException e) {
+                error = e;
+            }
+        }
+
+        /** Completes with the change's result, or with {@code saveError} if the batch could not be saved. */
+        void complete(RuntimeException saveError) {
+            if (error != null) done.completeExceptionally(error);
+            else if (saveError != null) done.completeExceptionally(saveError);
+            else done.complete(result);
+        }
+    }
+
+    private final BlockingQueue<Task<?>> queue;
+    private final int maxBatch;
+    private final long offerTimeoutMillis;
+    private final Runnable persist;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder applied = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+
+    /**
+     * Starts the writer thread. {@code persist} saves everything applied so
+     * far and runs once per batch.
+     */
+    WriteQueue(String name, int capacity, int maxBatch, long offerTimeoutMillis, Runnable persist) {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.maxBatch = Math.max(1, maxBatch);
+        this.offerTimeoutMillis = offerTimeoutMillis;
+        this.persist = persist;
+        this.writer = new Thread(this::run, "db-writer-" + name);
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /** Queues a change; the future completes with its result once it has been saved. */
+    <T> CompletableFuture<T> submit(Supplier<T> change) {
+        Task<T> task = new Task<>(change);
+        boolean queued;
+        try {
+            queued = running && queue.offer(task, offerTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            queued = false;
+        }
+        if (!queued) {
+            rejected.increment();
+            task.done.completeExceptionally(new FullException("Write queue full, try again later"));
+            return task.done;
+        }
+        maxDepth.accumulateAndGet(queue.size(), Math::max);
+        return task.done;
+    }
+
+    /** Stops taking changes; what is already queued is still applied and saved. */
+    void shutdown() {
+        running = false;
+        // Wakes the writer if it is waiting on an empty queue
+        queue.offer(new Task<>(() -> null));
+    }
+
+    int depth() {
+        return queue.size();
+    }
+
+    int capacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    int maxDepth() {
+        return maxDepth.get();
+    }
+
+    long batches() {
+        return batches.sum();
+    }
+
+    long applied() {
+        return applied.sum();
+    }
+
+    /** Changes turned away because the queue stayed full. */
+    long rejected() {
+        return rejected.sum();
+    }
+
+    private void run() {
+        List<Task<?>> batch = new ArrayList<>(maxBatch);
+        while (running || !queue.isEmpty()) {
+            Task<?> next;
+            try {
+                next = running ? queue.take() : queue.poll();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (next == null) continue;
+            batch.add(next);
+            queue.drainTo(batch, maxBatch - 1);
+            for (Task<?> task : batch) task.apply();
+            RuntimeException saveError = null;
+            try {
+                persist.run();
+            } catch (RuntimeException e) {
+                // None of the batch is known to be saved, so every caller hears about it
+                saveError = e;
+            }
+            for (Task<?> task : batch) task.complete(saveError);
+            batches.increment();
+            applied.add(batch.size());
+            batch.clear();
+        }
+    }
+}